@@ -8,6 +8,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -50,6 +51,7 @@ import blove.baidupcs.service.response.files.CreateFileResponse;
 import blove.baidupcs.service.response.files.DiffResponse;
 import blove.baidupcs.service.response.files.ListOrSearchResponse;
 import blove.baidupcs.service.response.files.CloudDownloadListTaskResponse.ListTaskInfo;
+import blove.baidupcs.util.BufferPool;
 
 /**
  * 封装的百度个人云存储空间，提供比{@link BaiduPcsService}、{@link BaiduPcsCService}、
@@ -58,6 +60,11 @@ import blove.baidupcs.service.response.files.CloudDownloadListTaskResponse.ListT
  * @author blove
  */
 public class BaiduPcs {
+	/**
+	 * 从输入流上传时使用的缓冲区大小。
+	 */
+	private static final int TRANSFER_BUFFER_SIZE = 1024 * 64;
+
 	private final String accessToken;
 	private final String pathPrefix;
 
@@ -104,6 +111,17 @@ public class BaiduPcs {
 		this.logLevel = logLevel;
 	}
 
+	/**
+	 * 判断另一个实例是否以同一个准入标识访问同一个应用目录。如果是，两个实例中相同的路径指向同一个文件。
+	 * 
+	 * @param other
+	 *             另一个实例
+	 * @return 是否访问同一个应用目录
+	 */
+	public boolean sameSpaceAs(BaiduPcs other) {
+		return other != null && accessToken.equals(other.accessToken) && pathPrefix.equals(other.pathPrefix);
+	}
+
 	/**
 	 * 获取当前用户空间配额信息。
 	 * 
@@ -170,11 +188,7 @@ public class BaiduPcs {
 
 				@Override
 				public void writeTo(OutputStream out) throws IOException {
-					byte[] buf = new byte[1024 * 8];
-					int n;
-					while ((n = in.read(buf)) >= 0) {
-						out.write(buf, 0, n);
-					}
+					copy(in, out);
 				}
 
 				@Override
@@ -201,6 +215,74 @@ public class BaiduPcs {
 		}
 	}
 
+	/**
+	 * 将输入流的内容全部写到输出流，使用共用缓冲区池中的缓冲区。
+	 */
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buf = BufferPool.shared().acquire(TRANSFER_BUFFER_SIZE);
+		try {
+			int n;
+			while ((n = in.read(buf)) >= 0) {
+				out.write(buf, 0, n);
+			}
+		} finally {
+			BufferPool.shared().release(buf);
+		}
+	}
+
+	/**
+	 * 上传一个本地文件。<br>
+	 * 按位置直接读取文件写到请求中，不经过InputStream，也不需要额外的缓冲流。
+	 * 
+	 * @param path
+	 *             上传后的文件路径。此路径是以应用文件夹为根目录的路径。
+	 * @param localFile
+	 *             本地文件路径
+	 * @param ondup
+	 *             文件已存在的处理方式。默认为抛出异常。
+	 * @return Creation
+	 * @throws BaiduPcsException
+	 * @throws IOException
+	 *              网络错误或读取本地文件错误
+	 */
+	public FileMetaWithExtra2 upload(String path, java.nio.file.Path localFile, OnDup ondup)
+			throws BaiduPcsException, IOException {
+		return upload(path, localFile, 0, Files.size(localFile), ondup);
+	}
+
+	/**
+	 * 将本地文件的一段上传为单个文件。<br>
+	 * 按位置直接读取文件写到请求中，不经过InputStream，也不需要额外的缓冲流。
+	 * 
+	 * @param path
+	 *             上传后的文件路径。此路径是以应用文件夹为根目录的路径。
+	 * @param localFile
+	 *             本地文件路径
+	 * @param offset
+	 *             上传部分在本地文件中的起始位置
+	 * @param length
+	 *             上传部分的长度
+	 * @param ondup
+	 *             文件已存在的处理方式。默认为抛出异常。
+	 * @return Creation
+	 * @throws BaiduPcsException
+	 * @throws IOException
+	 *              网络错误、读取本地文件错误，或本地文件比指定的范围短
+	 */
+	public FileMetaWithExtra2 upload(String path, java.nio.file.Path localFile, long offset, long length,
+			OnDup ondup) throws BaiduPcsException, IOException {
+		try {
+			if (ondup == null)
+				ondup = OnDup.EXCEPTION;
+			return FileMetaWithExtra2.fromResponse(pcsCService.upload(METHOD_UPLOAD, accessToken, realPath(path),
+					new FileSliceOutput(localFile, offset, length), ondup.getRestParam()));
+		} catch (IOException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * 上传文件分块。<br>
 	 * 百度PCS服务支持每次直接上传最大2G的单个文件。<br>
@@ -243,11 +325,7 @@ public class BaiduPcs {
 
 				@Override
 				public void writeTo(OutputStream out) throws IOException {
-					byte[] buf = new byte[1024 * 8];
-					int n;
-					while ((n = in.read(buf)) >= 0) {
-						out.write(buf, 0, n);
-					}
+					copy(in, out);
 				}
 
 				@Override
@@ -273,6 +351,34 @@ public class BaiduPcs {
 		}
 	}
 
+	/**
+	 * 将本地文件的一段上传为文件分块。<br>
+	 * 按位置直接读取文件写到请求中，不需要为每个分块打开一个输入流或先读到内存。
+	 * 
+	 * @param localFile
+	 *             本地文件路径
+	 * @param offset
+	 *             块在本地文件中的起始位置
+	 * @param length
+	 *             块的长度
+	 * @return 文件块的MD5
+	 * @throws BaiduPcsException
+	 * @throws IOException
+	 *              网络错误、读取本地文件错误，或本地文件比指定的范围短
+	 * @see #uploadBlock(InputStream, long)
+	 */
+	public String uploadBlock(java.nio.file.Path localFile, long offset, long length) throws BaiduPcsException,
+			IOException {
+		try {
+			return pcsCService.uploadBlock(METHOD_UPLOAD, accessToken, UPLOADBLOCK_TYPE_TMPFILE,
+					new FileSliceOutput(localFile, offset, length)).getMd5();
+		} catch (IOException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * 与分片文件上传的uploadBlock方法配合使用，可实现超大文件（>2G）上传，同时也可用于断点续传的场景。
 	 * 
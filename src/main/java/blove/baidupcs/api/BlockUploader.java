@@ -0,0 +1,495 @@
+package blove.baidupcs.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import blove.baidupcs.api.error.BaiduPcsException;
+import blove.baidupcs.api.error.BaiduPcsMD5NotExistsException;
+import blove.baidupcs.api.error.ServerException;
+import blove.baidupcs.api.request.OnDup;
+import blove.baidupcs.api.response.FileMetaWithExtra2;
+import blove.baidupcs.util.BufferPool;
+import blove.baidupcs.util.Hashes;
+
+/**
+ * 分块并行上传工具。<br>
+ * 将本地文件分割为固定大小的块，在有限个线程中通过{@link BaiduPcs#uploadBlock(Path, long, long)}
+ * 直接从文件中读取并行上传，全部完成后按块的顺序调用{@link BaiduPcs#createSuperFile(String, List, OnDup)}合并为一个文件。<br>
+ * 每个块失败时单独重试，不会导致整个文件重新上传。<br>
+ * 通过{@link #uploadResumable(String, Path, OnDup, Path)}上传时，每完成一块都会记录到本地的清单文件中，
+ * 上传中断后再次以相同的参数调用时，将校验并跳过已经上传完成的块。
+ *
+ * @author blove
+ */
+public class BlockUploader {
+	/**
+	 * 默认分块大小。
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024 * 4;// 4MB
+	/**
+	 * 默认同时上传的块数。
+	 */
+	public static final int DEFAULT_CONCURRENCY = 4;
+	/**
+	 * 默认每个块失败后的重试次数。不包括第一次上传。
+	 */
+	public static final int DEFAULT_RETRY_TIMES = 3;
+	/**
+	 * createSuperFile支持的最大分块数。文件按指定分块大小会超过此数量时，分块大小将自动加倍。
+	 */
+	public static final int MAX_BLOCK_COUNT = 1024;
+	/**
+	 * 默认清单过期时长。服务器上的临时分块在一段时间后会被清除，超过此时长的清单将被删除。单位：毫秒。
+	 */
+	public static final long DEFAULT_MANIFEST_EXPIRE_TIME = 1000L * 60 * 60 * 24;// 1天
+
+	private static final int RETRY_SLEEP = 2000;// 重试间隔，每次重试递增
+
+	/**
+	 * 上传进度的监听器。
+	 *
+	 * @author blove
+	 */
+	public interface ProgressListener {
+		/**
+		 * 上传进度更新。每完成一块调用一次，可能在多个上传线程中调用，但不会同时调用。
+		 *
+		 * @param uploaded
+		 *             已经上传的字节数
+		 * @param total
+		 *             文件总字节数
+		 */
+		void update(long uploaded, long total);
+	}
+
+	private final BaiduPcs pcs;
+	private final int blockSize;
+	private final int concurrency;
+	private final int retryTimes;
+
+	/**
+	 * 以默认的分块大小、并发数和重试次数新建一个实例。
+	 *
+	 * @param pcs
+	 *             上传到的百度云存储
+	 */
+	public BlockUploader(BaiduPcs pcs) {
+		this(pcs, DEFAULT_BLOCK_SIZE, DEFAULT_CONCURRENCY, DEFAULT_RETRY_TIMES);
+	}
+
+	/**
+	 * 新建一个实例。
+	 *
+	 * @param pcs
+	 *             上传到的百度云存储
+	 * @param blockSize
+	 *             分块大小。单位：字节。
+	 * @param concurrency
+	 *             同时上传的块数
+	 * @param retryTimes
+	 *             每个块失败后的重试次数。不包括第一次上传。
+	 * @throws IllegalArgumentException
+	 *              分块大小或并发数不是正数，或重试次数为负数
+	 */
+	public BlockUploader(BaiduPcs pcs, int blockSize, int concurrency, int retryTimes) {
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+		if (concurrency <= 0)
+			throw new IllegalArgumentException("Concurrency must be positive: " + concurrency);
+		if (retryTimes < 0)
+			throw new IllegalArgumentException("Retry times cannot be negative: " + retryTimes);
+		this.pcs = pcs;
+		this.blockSize = blockSize;
+		this.concurrency = concurrency;
+		this.retryTimes = retryTimes;
+	}
+
+	/**
+	 * 分块并行上传一个本地文件。
+	 *
+	 * @param path
+	 *             上传后的文件路径。此路径是以应用文件夹为根目录的路径。
+	 * @param localFile
+	 *             本地文件路径
+	 * @param ondup
+	 *             文件已存在的处理方式。如果为null，则默认为抛出异常。
+	 * @return Creation
+	 * @throws BaiduPcsException
+	 * @throws IOException
+	 *              网络错误或读取本地文件错误
+	 */
+	public FileMetaWithExtra2 upload(String path, Path localFile, OnDup ondup) throws BaiduPcsException,
+			IOException {
+		long size = Files.size(localFile);
+		if (size == 0)
+			return pcs.upload(path, new byte[0], ondup);
+		return uploadBlocks(path, localFile, size, blockSizeFor(size), null, null, null, ondup);
+	}
+
+	/**
+	 * 分块并行上传一个已经计算过摘要值的本地文件。每块上传后，以预先计算的MD5校验服务器返回的MD5，
+	 * 不一致（如文件在计算后被修改）则抛出异常。<br>
+	 * 通常在{@link FileHashes#getRecogInfo()}秒传失败后调用，此时文件内容大多还在操作系统的缓存中。
+	 *
+	 * @param path
+	 *             上传后的文件路径。此路径是以应用文件夹为根目录的路径。
+	 * @param localFile
+	 *             本地文件路径
+	 * @param hashes
+	 *             文件的摘要值。分块大小必须与{@link #blockSizeFor(long)}的结果相同。
+	 * @param ondup
+	 *             文件已存在的处理方式。如果为null，则默认为抛出异常。
+	 * @param listener
+	 *             进度监听器。可以为null。
+	 * @return Creation
+	 * @throws BaiduPcsException
+	 * @throws IOException
+	 *              网络错误、读取本地文件错误，或文件内容与摘要值不符
+	 * @throws IllegalArgumentException
+	 *              摘要值的分块大小与此实例对此文件使用的分块大小不同
+	 */
+	public FileMetaWithExtra2 upload(String path, Path localFile, FileHashes hashes, OnDup ondup,
+			ProgressListener listener) throws BaiduPcsException, IOException {
+		long size = hashes.getSize();
+		if (size == 0)
+			return pcs.upload(path, new byte[0], ondup);
+		int realBlockSize = blockSizeFor(size);
+		if (hashes.getBlockSize() != realBlockSize)
+			throw new IllegalArgumentException("Block size of hashes should be " + realBlockSize + " but not "
+					+ hashes.getBlockSize());
+		if (Files.size(localFile) != size)
+			throw new IOException("File changed after hashing: " + localFile);
+		return uploadBlocks(path, localFile, size, realBlockSize, null, hashes.getBlockMD5s(), listener, ondup);
+	}
+
+	/**
+	 * 以可续传的方式分块并行上传一个本地文件，使用默认的清单过期时长。
+	 *
+	 * @param path
+	 *             上传后的文件路径。此路径是以应用文件夹为根目录的路径。
+	 * @param localFile
+	 *             本地文件路径
+	 * @param ondup
+	 *             文件已存在的处理方式。如果为null，则默认为抛出异常。
+	 * @param manifestDir
+	 *             存放清单文件的本地目录。如果不存在则创建。
+	 * @return Creation
+	 * @throws BaiduPcsException
+	 * @throws IOException
+	 *              网络错误、读取本地文件错误或读写清单文件错误
+	 * @see #uploadResumable(String, Path, OnDup, Path, long)
+	 */
+	public FileMetaWithExtra2 uploadResumable(String path, Path localFile, OnDup ondup, Path manifestDir)
+			throws BaiduPcsException, IOException {
+		return uploadResumable(path, localFile, ondup, manifestDir, DEFAULT_MANIFEST_EXPIRE_TIME);
+	}
+
+	/**
+	 * 以可续传的方式分块并行上传一个本地文件。<br>
+	 * 每完成一块，都会将其MD5记录到清单文件中。如果清单目录中已有同一源文件（路径、大小、修改时间均相同）上传到同一路径的清单，
+	 * 则先重新计算清单中记录的各块的本地MD5，与记录一致的块不再上传。全部完成后删除清单。<br>
+	 * 开始上传前会删除清单目录中超过过期时长的清单，因为服务器上对应的临时分块可能已经被清除。
+	 *
+	 * @param path
+	 *             上传后的文件路径。此路径是以应用文件夹为根目录的路径。
+	 * @param localFile
+	 *             本地文件路径
+	 * @param ondup
+	 *             文件已存在的处理方式。如果为null，则默认为抛出异常。
+	 * @param manifestDir
+	 *             存放清单文件的本地目录。如果不存在则创建。
+	 * @param manifestExpireTime
+	 *             清单过期时长。单位：毫秒。
+	 * @return Creation
+	 * @throws BaiduPcsException
+	 * @throws IOException
+	 *              网络错误、读取本地文件错误或读写清单文件错误
+	 */
+	public FileMetaWithExtra2 uploadResumable(String path, Path localFile, OnDup ondup, Path manifestDir,
+			long manifestExpireTime) throws BaiduPcsException, IOException {
+		long size = Files.size(localFile);
+		if (size == 0)
+			return pcs.upload(path, new byte[0], ondup);
+
+		Files.createDirectories(manifestDir);
+		cleanManifests(manifestDir, manifestExpireTime);
+
+		int realBlockSize = blockSizeFor(size);
+		UploadManifest manifest = UploadManifest.open(manifestDir, localFile, path, realBlockSize);
+		FileMetaWithExtra2 result;
+		try {
+			result = uploadBlocks(path, localFile, size, realBlockSize, manifest, null, null, ondup);
+		} catch (BaiduPcsMD5NotExistsException e) {
+			// 清单中记录的块在服务器上已被清除，清单作废，下次重新上传
+			manifest.delete();
+			throw e;
+		}
+		manifest.delete();
+		return result;
+	}
+
+	/**
+	 * 删除指定目录中超过过期时长的清单文件。
+	 *
+	 * @param manifestDir
+	 *             存放清单文件的本地目录
+	 * @param manifestExpireTime
+	 *             清单过期时长。单位：毫秒。
+	 * @throws IOException
+	 *              读取目录或删除文件错误
+	 */
+	public static void cleanManifests(Path manifestDir, long manifestExpireTime) throws IOException {
+		UploadManifest.deleteExpired(manifestDir, manifestExpireTime);
+	}
+
+	/**
+	 * 分块并行上传并合并。
+	 *
+	 * @param path
+	 *             上传后的文件路径
+	 * @param localFile
+	 *             本地文件路径
+	 * @param size
+	 *             文件大小，必须大于0
+	 * @param realBlockSize
+	 *             实际使用的分块大小
+	 * @param manifest
+	 *             清单。如果为null则不记录、不跳过任何块。
+	 * @param expectedMD5s
+	 *             预先计算的各块MD5，用于校验上传结果。如果为null则不校验。
+	 * @param listener
+	 *             进度监听器。可以为null。
+	 * @param ondup
+	 *             文件已存在的处理方式
+	 * @return Creation
+	 * @throws BaiduPcsException
+	 * @throws IOException
+	 */
+	private FileMetaWithExtra2 uploadBlocks(String path, final Path localFile, final long size,
+			final int realBlockSize, final UploadManifest manifest, final List<String> expectedMD5s,
+			final ProgressListener listener, OnDup ondup) throws BaiduPcsException, IOException {
+		int blockCount = (int) ((size + realBlockSize - 1) / realBlockSize);
+		final long[] uploaded = { 0 };
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, blockCount));
+		try {
+			List<Future<String>> futures = new ArrayList<>(blockCount);
+			for (int i = 0; i < blockCount; i++) {
+				final int index = i;
+				final long offset = (long) i * realBlockSize;
+				final int length = (int) Math.min(realBlockSize, size - offset);
+				futures.add(executor.submit(() -> {
+					String md5 = uploadBlockOf(localFile, offset, length, index, manifest);
+					if (expectedMD5s != null && !expectedMD5s.get(index).equalsIgnoreCase(md5))
+						throw new IOException("File changed after hashing: " + localFile);
+					if (listener != null) {
+						synchronized (uploaded) {
+							uploaded[0] += length;
+							listener.update(uploaded[0], size);
+						}
+					}
+					return md5;
+				}));
+			}
+
+			// 按块的顺序等待结果，任何一块最终失败都会中止整个上传
+			List<String> md5s = new ArrayList<>(blockCount);
+			for (Future<String> future : futures)
+				md5s.add(getResult(future));
+
+			return pcs.createSuperFile(path, md5s, ondup);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * 上传一块，如果有清单则记录，并跳过清单中已有且本地内容未变的块。
+	 */
+	private String uploadBlockOf(Path localFile, long offset, int length, int index, UploadManifest manifest)
+			throws BaiduPcsException, IOException {
+		if (manifest == null)
+			return uploadBlock(localFile, offset, length);
+
+		// 清单中已有的块，本地内容未变才跳过
+		String recorded = manifest.getBlockMD5(index);
+		if (recorded != null) {
+			byte[] bytes = BufferPool.shared().acquire(length);
+			try {
+				readBlock(localFile, offset, bytes, length);
+				if (recorded.equalsIgnoreCase(Hashes.md5Hex(bytes, 0, length)))
+					return recorded;
+			} finally {
+				BufferPool.shared().release(bytes);
+			}
+			manifest.removeBlock(index);
+		}
+		String md5 = uploadBlock(localFile, offset, length);
+		manifest.blockFinished(index, md5);
+		return md5;
+	}
+
+	/**
+	 * 上传一个块。失败时按照重试次数重试。
+	 *
+	 * @param bytes
+	 *             块内容所在的字节数组
+	 * @param length
+	 *             块内容的长度，从字节数组开头算起
+	 * @return 文件块的MD5
+	 * @throws BaiduPcsException
+	 * @throws IOException
+	 *              网络错误
+	 */
+	public String uploadBlock(byte[] bytes, int length) throws BaiduPcsException, IOException {
+		int retryCount = 0;
+		while (true) {
+			try {
+				return pcs.uploadBlock(new ByteArrayInputStream(bytes, 0, length), length);
+			} catch (IOException e) {
+				if (!isRetryable(e) || retryCount >= retryTimes)
+					throw e;
+				retryCount++;
+				sleepBeforeRetry(retryCount);
+			}
+		}
+	}
+
+	/**
+	 * 上传本地文件中的一个块，直接从文件中读取，不先读到内存。失败时按照重试次数重试。
+	 *
+	 * @param localFile
+	 *             本地文件路径
+	 * @param offset
+	 *             块在文件中的起始位置
+	 * @param length
+	 *             块的长度
+	 * @return 文件块的MD5
+	 * @throws BaiduPcsException
+	 * @throws IOException
+	 *              网络错误或读取本地文件错误
+	 */
+	public String uploadBlock(Path localFile, long offset, int length) throws BaiduPcsException, IOException {
+		int retryCount = 0;
+		while (true) {
+			try {
+				return pcs.uploadBlock(localFile, offset, length);
+			} catch (IOException e) {
+				if (!isRetryable(e) || retryCount >= retryTimes)
+					throw e;
+				retryCount++;
+				sleepBeforeRetry(retryCount);
+			}
+		}
+	}
+
+	/**
+	 * 返回指定大小的文件实际使用的分块大小。如果按照设定的分块大小会超过{@link #MAX_BLOCK_COUNT}块，则将分块大小加倍直到不超过。
+	 *
+	 * @param size
+	 *             文件大小
+	 * @return 分块大小
+	 * @throws IllegalArgumentException
+	 *              文件过大，无法分块上传
+	 */
+	public int blockSizeFor(long size) {
+		long realBlockSize = blockSize;
+		while ((size + realBlockSize - 1) / realBlockSize > MAX_BLOCK_COUNT)
+			realBlockSize *= 2;
+		if (realBlockSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("File is too large to upload by blocks: " + size);
+		return (int) realBlockSize;
+	}
+
+	/**
+	 * 从本地文件中读取一个块。
+	 *
+	 * @param localFile
+	 *             本地文件路径
+	 * @param offset
+	 *             块在文件中的起始位置
+	 * @param bytes
+	 *             读到的字节数组，从开头放起
+	 * @param length
+	 *             块的长度
+	 * @throws IOException
+	 *              读取错误，或文件在读取过程中变短
+	 */
+	static void readBlock(Path localFile, long offset, byte[] bytes, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+		try (SeekableByteChannel channel = Files.newByteChannel(localFile)) {
+			channel.position(offset);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					throw new EOFException("File is shorter than expected: " + localFile);
+			}
+		}
+	}
+
+	/**
+	 * 判断一个异常是否值得重试。网络错误和服务器错误可以重试，其他服务返回的错误（如无权限、文件已存在等）重试也不会成功。
+	 *
+	 * @param e
+	 *             异常
+	 * @return 是否值得重试
+	 */
+	static boolean isRetryable(IOException e) {
+		return !(e instanceof BaiduPcsException) || e instanceof ServerException;
+	}
+
+	/**
+	 * 重试前等待一段时间，重试次数越多等待越久。
+	 *
+	 * @param retryCount
+	 *             即将进行的是第几次重试
+	 * @throws IOException
+	 *              等待被中断
+	 */
+	static void sleepBeforeRetry(int retryCount) throws IOException {
+		try {
+			TimeUnit.MILLISECONDS.sleep((long) RETRY_SLEEP * retryCount);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * 等待并获取任务的结果，将任务抛出的异常原样抛出。
+	 *
+	 * @param future
+	 *             任务
+	 * @return 结果
+	 * @throws IOException
+	 *              任务抛出IOException，或等待被中断
+	 */
+	static <T> T getResult(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			else
+				throw new RuntimeException(cause);
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+package blove.baidupcs.api;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import blove.baidupcs.api.response.FileMetaWithExtra1;
+import blove.baidupcs.util.PropertiesFiles;
+
+/**
+ * 可续传下载的日志文件。放在本地文件旁边，记录远程文件的标识（大小、修改时间、fs_id、分块MD5列表）和已经写入本地文件的字节范围。
+ * 写出时先写到临时文件再原子地替换。
+ *
+ * @author blove
+ */
+class DownloadJournal {
+	static final String FILE_SUFFIX = ".download";
+
+	private static final String PROP_KEY_SIZE = "size";
+	private static final String PROP_KEY_MTIME = "mtime";
+	private static final String PROP_KEY_FS_ID = "fs_id";
+	private static final String PROP_KEY_BLOCK_LIST = "block_list";
+	private static final String PROP_KEY_RANGES = "ranges";
+
+	private final Path journalFile;
+	private final Properties props;
+	/**
+	 * 已完成的范围，起始位置到结束位置（不包含）。相邻或重叠的范围总是合并在一起。
+	 */
+	private final TreeMap<Long, Long> ranges = new TreeMap<>();
+	private final Object saveLock = new Object();
+
+	private DownloadJournal(Path journalFile, Properties props) {
+		this.journalFile = journalFile;
+		this.props = props;
+	}
+
+	/**
+	 * 返回指定本地文件对应的日志文件路径。
+	 *
+	 * @param localFile
+	 *             本地文件
+	 * @return 日志文件路径
+	 */
+	static Path journalFileOf(Path localFile) {
+		return localFile.resolveSibling(localFile.getFileName() + FILE_SUFFIX);
+	}
+
+	/**
+	 * 打开指定本地文件的日志。如果已有日志、本地文件存在，且日志中记录的远程文件标识与当前的一致，则沿用之；否则新建一个空日志并写出。
+	 *
+	 * @param localFile
+	 *             本地文件
+	 * @param meta
+	 *             远程文件当前的元信息
+	 * @return 日志
+	 * @throws IOException
+	 */
+	static DownloadJournal open(Path localFile, FileMetaWithExtra1 meta) throws IOException {
+		Path journalFile = journalFileOf(localFile);
+		Properties identity = identityOf(meta);
+
+		Properties props = PropertiesFiles.load(journalFile);
+		if (props != null && Files.exists(localFile)) {
+			boolean same = true;
+			for (String key : identity.stringPropertyNames())
+				if (!identity.getProperty(key).equals(props.getProperty(key)))
+					same = false;
+			if (same) {
+				DownloadJournal journal = new DownloadJournal(journalFile, props);
+				if (journal.parseRanges(meta.getSize()))
+					return journal;
+			}
+		}
+
+		// 没有日志或远程文件已变化，重新开始
+		DownloadJournal journal = new DownloadJournal(journalFile, identity);
+		journal.save(null);
+		return journal;
+	}
+
+	private static Properties identityOf(FileMetaWithExtra1 meta) {
+		Properties props = new Properties();
+		props.setProperty(PROP_KEY_SIZE, Long.toString(meta.getSize()));
+		props.setProperty(PROP_KEY_MTIME, Long.toString(meta.getMtime()));
+		props.setProperty(PROP_KEY_FS_ID, Long.toString(meta.getFsID()));
+		List<String> blockList = meta.getBlockList();
+		props.setProperty(PROP_KEY_BLOCK_LIST, blockList == null ? "" : String.join(",", blockList));
+		return props;
+	}
+
+	/**
+	 * 从属性中解析已完成的范围。
+	 *
+	 * @param size
+	 *             文件大小
+	 * @return 是否解析成功
+	 */
+	private boolean parseRanges(long size) {
+		String rangesStr = props.getProperty(PROP_KEY_RANGES, "");
+		if (rangesStr.isEmpty())
+			return true;
+		try {
+			for (String rangeStr : rangesStr.split(",")) {
+				int sep = rangeStr.indexOf('-');
+				long start = Long.parseLong(rangeStr.substring(0, sep));
+				long end = Long.parseLong(rangeStr.substring(sep + 1));
+				if (start < 0 || start >= end || end > size)
+					return false;
+				add(start, end);
+			}
+			return true;
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 记录一个范围已经写入本地文件（不写出）。
+	 *
+	 * @param start
+	 *             起始位置
+	 * @param end
+	 *             结束位置，不包含
+	 */
+	synchronized void add(long start, long end) {
+		Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+		if (floor != null && floor.getValue() >= start) {
+			start = floor.getKey();
+			end = Math.max(end, floor.getValue());
+		}
+		Map.Entry<Long, Long> next;
+		while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+			end = Math.max(end, next.getValue());
+			ranges.remove(next.getKey());
+		}
+		ranges.put(start, end);
+	}
+
+	/**
+	 * 返回指定大小的文件中尚未完成的范围。
+	 *
+	 * @param size
+	 *             文件大小
+	 * @return 范围列表，每个元素为起始位置和结束位置（不包含）
+	 */
+	synchronized List<long[]> missing(long size) {
+		List<long[]> missing = new ArrayList<>();
+		long position = 0;
+		for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+			if (range.getKey() > position)
+				missing.add(new long[] { position, range.getKey() });
+			position = range.getValue();
+		}
+		if (position < size)
+			missing.add(new long[] { position, size });
+		return missing;
+	}
+
+	/**
+	 * 写出日志。先取得当前已记录的范围，将本地文件落盘，再写出这些范围，保证日志中的范围不会多于已经落盘的内容。
+	 *
+	 * @param dataChannel
+	 *             本地文件的通道。如果为null则不落盘（用于还没有写入任何内容时）。
+	 * @throws IOException
+	 */
+	void save(FileChannel dataChannel) throws IOException {
+		synchronized (saveLock) {
+			String rangesStr = rangesString();
+			if (dataChannel != null)
+				dataChannel.force(false);
+			props.setProperty(PROP_KEY_RANGES, rangesStr);
+			PropertiesFiles.storeAtomically(props, journalFile, "Baidupcs resumable download journal.");
+		}
+	}
+
+	private synchronized String rangesString() {
+		StringBuilder rangesStr = new StringBuilder();
+		for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+			if (rangesStr.length() > 0)
+				rangesStr.append(',');
+			rangesStr.append(range.getKey()).append('-').append(range.getValue());
+		}
+		return rangesStr.toString();
+	}
+
+	/**
+	 * 删除日志文件。下载全部完成后调用。
+	 *
+	 * @throws IOException
+	 */
+	void delete() throws IOException {
+		synchronized (saveLock) {
+			Files.deleteIfExists(journalFile);
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package blove.baidupcs.api;
+
+import static java.nio.file.StandardOpenOption.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import blove.baidupcs.api.request.RapidUploadRecogInfo;
+
+/**
+ * 本地文件摘要值的持久索引，文件未变化时不必重新计算{@link FileHashes}。<br>
+ * 以文件的绝对路径为键，记录文件的大小、修改时间和文件标识（如inode，如果文件系统提供），三者都与当前文件一致时才认为命中。<br>
+ * 索引保存在一个目录中：新的记录追加到日志文件，每条记录带有长度和校验值，进程崩溃留下的不完整记录在下次打开时丢弃；
+ * 日志中的记录数超过当前条目数（且至少{@value #MIN_COMPACT_RECORDS}条）时，将全部条目写为快照（先写临时文件再原子地替换），
+ * 然后清空日志。打开时先读快照，再按顺序应用日志。<br>
+ * 打开期间持有日志文件的排他锁，同一个目录同时只能由一个实例打开，关闭时将日志写入磁盘并释放锁。<br>
+ * 线程安全。
+ *
+ * @author blove
+ */
+public class FileHashIndex implements Closeable {
+	private static final String SNAPSHOT_FILE = "snapshot";
+	private static final String LOG_FILE = "log";
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	private static final int SNAPSHOT_MAGIC = 0x42504849;// "BPHI"
+	private static final int VERSION = 1;
+	/**
+	 * 触发压缩的最小日志记录数。
+	 */
+	private static final int MIN_COMPACT_RECORDS = 1000;
+	/**
+	 * 单条记录的最大字节数，超过则认为记录已损坏。
+	 */
+	private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+	private final Path dir;
+	private final Map<String, Entry> entries = new HashMap<>();
+	private FileChannel log;
+	private int logRecords = 0;
+
+	private FileHashIndex(Path dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * 打开指定目录中的索引。如果目录或索引不存在则新建。
+	 *
+	 * @param dir
+	 *             索引所在的本地目录
+	 * @return 索引
+	 * @throws IOException
+	 *              读写索引文件错误，或索引已被其他进程或实例打开
+	 */
+	public static FileHashIndex open(Path dir) throws IOException {
+		Files.createDirectories(dir);
+		FileHashIndex index = new FileHashIndex(dir);
+		index.log = FileChannel.open(dir.resolve(LOG_FILE), CREATE, READ, WRITE);
+		try {
+			FileLock lock;
+			try {
+				lock = index.log.tryLock();
+			} catch (OverlappingFileLockException e) {
+				lock = null;
+			}
+			if (lock == null)
+				throw new IOException("Hash index is in use: " + dir);
+			index.load();
+		} catch (IOException | RuntimeException e) {
+			index.log.close();
+			throw e;
+		}
+		return index;
+	}
+
+	/**
+	 * 文件的状态，与记录时一致才认为文件未变化。
+	 */
+	private static class FileState {
+		final long size;
+		final long mtime;
+		final String fileKey;
+
+		FileState(long size, long mtime, String fileKey) {
+			this.size = size;
+			this.mtime = mtime;
+			this.fileKey = fileKey;
+		}
+
+		static FileState of(Path file) throws IOException {
+			BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+			Object fileKey = attrs.fileKey();
+			return new FileState(attrs.size(), attrs.lastModifiedTime().toMillis(), fileKey == null ? ""
+					: fileKey.toString());
+		}
+
+		boolean sameAs(FileState other) {
+			return size == other.size && mtime == other.mtime && fileKey.equals(other.fileKey);
+		}
+	}
+
+	private static class Entry {
+		final String path;
+		final FileState state;
+		final FileHashes hashes;
+
+		Entry(String path, FileState state, FileHashes hashes) {
+			this.path = path;
+			this.state = state;
+			this.hashes = hashes;
+		}
+	}
+
+	/**
+	 * 获取索引中记录的文件摘要值。
+	 *
+	 * @param localFile
+	 *             本地文件路径
+	 * @param blockSize
+	 *             分块大小
+	 * @return 摘要值。如果没有记录，或文件已变化，或记录的分块大小不同，则返回null。
+	 * @throws IOException
+	 *              读取文件属性错误
+	 */
+	public FileHashes get(Path localFile, int blockSize) throws IOException {
+		String key = localFile.toAbsolutePath().normalize().toString();
+		FileState state = FileState.of(localFile);
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry == null || !entry.state.sameAs(state) || entry.hashes.getBlockSize() != blockSize)
+				return null;
+			return entry.hashes;
+		}
+	}
+
+	/**
+	 * 获取文件的摘要值。如果索引中有未过时的记录则直接返回，否则通过{@link FileHashes#compute(Path, int)}计算并记录。
+	 * 计算期间文件发生变化时，结果照常返回，但不记录。
+	 *
+	 * @param localFile
+	 *             本地文件路径
+	 * @param blockSize
+	 *             分块大小
+	 * @return 摘要值
+	 * @throws IOException
+	 *              读取文件或写出索引错误
+	 */
+	public FileHashes compute(Path localFile, int blockSize) throws IOException {
+		FileHashes hashes = get(localFile, blockSize);
+		if (hashes != null)
+			return hashes;
+
+		FileState before = FileState.of(localFile);
+		hashes = FileHashes.compute(localFile, blockSize);
+		if (FileState.of(localFile).sameAs(before))
+			put(new Entry(localFile.toAbsolutePath().normalize().toString(), before, hashes));
+		return hashes;
+	}
+
+	/**
+	 * 返回索引中的条目数。
+	 *
+	 * @return 条目数
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private synchronized void put(Entry entry) throws IOException {
+		checkOpen();
+		entries.put(entry.path, entry);
+		ByteBuffer record = frame(encode(entry));
+		while (record.hasRemaining())
+			log.write(record);
+		logRecords++;
+		if (logRecords >= MIN_COMPACT_RECORDS && logRecords > entries.size())
+			compact();
+	}
+
+	/**
+	 * 将全部条目写为快照并清空日志。
+	 *
+	 * @throws IOException
+	 *              写出索引文件错误
+	 */
+	public synchronized void compact() throws IOException {
+		checkOpen();
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(content);
+		out.writeInt(SNAPSHOT_MAGIC);
+		out.writeInt(VERSION);
+		for (Entry entry : entries.values()) {
+			ByteBuffer record = frame(encode(entry));
+			out.write(record.array(), 0, record.limit());
+		}
+		out.flush();
+
+		// 临时文件内容落盘之后再替换，然后才清空日志；中途崩溃时日志会再次应用到快照上，结果相同
+		Path snapshotFile = dir.resolve(SNAPSHOT_FILE);
+		Path tempFile = dir.resolve(SNAPSHOT_FILE + TEMP_FILE_SUFFIX);
+		try (FileChannel channel = FileChannel.open(tempFile, CREATE, WRITE, TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(content.toByteArray());
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(true);
+		}
+		Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		log.truncate(0);
+		log.force(true);
+		logRecords = 0;
+	}
+
+	/**
+	 * 将日志写入磁盘，然后关闭日志文件并释放锁。
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (log != null) {
+			try {
+				log.force(true);
+			} finally {
+				log.close();
+				log = null;
+			}
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (log == null)
+			throw new IOException("Hash index is closed: " + dir);
+	}
+
+	/**
+	 * 读取快照和已打开的日志。日志末尾不完整或损坏的记录被截掉。
+	 */
+	private void load() throws IOException {
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(dir.resolve(SNAPSHOT_FILE)))) {
+			DataInputStream dataIn = new DataInputStream(in);
+			if (dataIn.readInt() == SNAPSHOT_MAGIC && dataIn.readInt() == VERSION) {
+				byte[] record;
+				while ((record = readRecord(dataIn)) != null)
+					apply(record);
+			}
+		} catch (NoSuchFileException | EOFException e) {
+			// 没有快照，或快照为空
+		}
+
+		long validSize = 0;
+		// 不关闭此流，否则会关闭日志文件
+		DataInputStream dataIn = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(log.position(0))));
+		byte[] record;
+		while ((record = readRecord(dataIn)) != null) {
+			apply(record);
+			validSize += 8 + record.length;
+			logRecords++;
+		}
+		log.truncate(validSize);
+		log.position(validSize);
+
+		if (logRecords >= MIN_COMPACT_RECORDS && logRecords > entries.size())
+			compact();
+	}
+
+	private void apply(byte[] record) throws IOException {
+		Entry entry = decode(record);
+		entries.put(entry.path, entry);
+	}
+
+	/**
+	 * 读取一条记录。
+	 *
+	 * @return 记录内容。如果已到末尾，或记录不完整、损坏，则返回null。
+	 */
+	private static byte[] readRecord(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if (length < 0 || length > MAX_RECORD_SIZE)
+				return null;
+			byte[] record = new byte[length];
+			in.readFully(record);
+			return checksum(record) == checksum ? record : null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 为记录加上长度和校验值。
+	 */
+	private static ByteBuffer frame(byte[] record) {
+		ByteBuffer buffer = ByteBuffer.allocate(8 + record.length);
+		buffer.putInt(record.length).putInt(checksum(record)).put(record);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static int checksum(byte[] record) {
+		CRC32 crc32 = new CRC32();
+		crc32.update(record, 0, record.length);
+		return (int) crc32.getValue();
+	}
+
+	private static byte[] encode(Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(entry.path);
+		out.writeLong(entry.state.size);
+		out.writeLong(entry.state.mtime);
+		out.writeUTF(entry.state.fileKey);
+		out.writeInt(entry.hashes.getBlockSize());
+		RapidUploadRecogInfo recogInfo = entry.hashes.getRecogInfo();
+		out.writeBoolean(recogInfo != null);
+		if (recogInfo != null) {
+			out.writeUTF(recogInfo.getContentMD5());
+			out.writeUTF(recogInfo.getSliceMD5());
+			out.writeUTF(recogInfo.getContentCRC32());
+		}
+		List<String> blockMD5s = entry.hashes.getBlockMD5s();
+		out.writeInt(blockMD5s.size());
+		for (String md5 : blockMD5s)
+			out.writeUTF(md5);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static Entry decode(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		String path = in.readUTF();
+		FileState state = new FileState(in.readLong(), in.readLong(), in.readUTF());
+		int blockSize = in.readInt();
+		RapidUploadRecogInfo recogInfo = null;
+		if (in.readBoolean()) {
+			recogInfo = new RapidUploadRecogInfo();
+			recogInfo.setContentLength(state.size);
+			recogInfo.setContentMD5(in.readUTF());
+			recogInfo.setSliceMD5(in.readUTF());
+			recogInfo.setContentCRC32(in.readUTF());
+		}
+		int blockCount = in.readInt();
+		List<String> blockMD5s = new ArrayList<>(blockCount);
+		for (int i = 0; i < blockCount; i++)
+			blockMD5s.add(in.readUTF());
+		return new Entry(path, state, new FileHashes(state.size, blockSize, blockMD5s, recogInfo));
+	}
+}
@@ -0,0 +1,167 @@
+package blove.baidupcs.api;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import blove.baidupcs.api.request.RapidUploadRecogInfo;
+import blove.baidupcs.util.Hashes;
+
+/**
+ * 本地文件的各种摘要值：秒传所需的识别信息，以及按指定分块大小分块后各块的MD5。<br>
+ * 通过{@link #compute(Path, int)}只读一遍文件得到全部结果：文件按窗口映射到内存，每个窗口由当前线程计算整个文件的MD5，
+ * 同时由另外两个线程分别计算CRC32和各块的MD5。秒传失败时，可以将结果交给
+ * {@link BlockUploader#upload(String, Path, FileHashes, OnDup, BlockUploader.ProgressListener)}分块上传，
+ * 不必再次计算，并以各块的MD5校验上传结果。
+ *
+ * @author blove
+ */
+public class FileHashes {
+	/**
+	 * 每次映射到内存的最大字节数。实际的窗口大小是分块大小的整数倍。
+	 */
+	private static final int MAX_WINDOW_SIZE = 1024 * 1024 * 64;// 64MB
+
+	private static final ExecutorService HASH_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "baidupcs-hash");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final long size;
+	private final int blockSize;
+	private final List<String> blockMD5s;
+	private final RapidUploadRecogInfo recogInfo;
+
+	FileHashes(long size, int blockSize, List<String> blockMD5s, RapidUploadRecogInfo recogInfo) {
+		this.size = size;
+		this.blockSize = blockSize;
+		this.blockMD5s = Collections.unmodifiableList(blockMD5s);
+		this.recogInfo = recogInfo;
+	}
+
+	/**
+	 * 计算本地文件的摘要值。
+	 *
+	 * @param localFile
+	 *             本地文件路径
+	 * @param blockSize
+	 *             分块大小。单位：字节。
+	 * @return 实例
+	 * @throws IOException
+	 *              读取本地文件错误
+	 * @throws IllegalArgumentException
+	 *              分块大小不是正数
+	 */
+	public static FileHashes compute(Path localFile, int blockSize) throws IOException {
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+
+		try (FileChannel channel = FileChannel.open(localFile, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long windowSize = (long) blockSize * Math.max(1, MAX_WINDOW_SIZE / blockSize);
+
+			MessageDigest md5 = Hashes.newMD5();
+			CRC32 crc32 = new CRC32();
+			List<String> blockMD5s = new ArrayList<>((int) ((size + blockSize - 1) / blockSize));
+			String sliceMD5 = null;
+
+			for (long windowStart = 0; windowStart < size; windowStart += windowSize) {
+				MappedByteBuffer window = channel.map(MapMode.READ_ONLY, windowStart,
+						Math.min(windowSize, size - windowStart));
+
+				// 每个线程使用自己的视图，互不影响位置
+				final ByteBuffer crcView = window.duplicate();
+				Future<?> crcFuture = HASH_EXECUTOR.submit(() -> crc32.update(crcView));
+				final ByteBuffer blockView = window.duplicate();
+				Future<List<String>> blockFuture = HASH_EXECUTOR.submit(() -> blockMD5sOf(blockView, blockSize));
+
+				if (windowStart == 0 && size >= RapidUploadRecogInfo.SLICE_SIZE) {
+					ByteBuffer slice = window.duplicate();
+					slice.limit((int) RapidUploadRecogInfo.SLICE_SIZE);
+					MessageDigest sliceDigest = Hashes.newMD5();
+					sliceDigest.update(slice);
+					sliceMD5 = Hashes.hexString(sliceDigest.digest());
+				}
+				md5.update(window.duplicate());
+
+				BlockUploader.getResult(crcFuture);
+				blockMD5s.addAll(BlockUploader.getResult(blockFuture));
+			}
+
+			RapidUploadRecogInfo recogInfo = null;
+			if (sliceMD5 != null) {
+				recogInfo = new RapidUploadRecogInfo();
+				recogInfo.setContentLength(size);
+				recogInfo.setContentMD5(Hashes.hexString(md5.digest()));
+				recogInfo.setSliceMD5(sliceMD5);
+				recogInfo.setContentCRC32(String.valueOf(crc32.getValue()));
+			}
+			return new FileHashes(size, blockSize, blockMD5s, recogInfo);
+		}
+	}
+
+	/**
+	 * 计算缓冲区中各块的MD5。缓冲区从块的开头开始，最后一块可以不满。
+	 */
+	private static List<String> blockMD5sOf(ByteBuffer buffer, int blockSize) {
+		List<String> md5s = new ArrayList<>();
+		MessageDigest digest = Hashes.newMD5();
+		while (buffer.hasRemaining()) {
+			ByteBuffer block = buffer.slice();
+			block.limit(Math.min(blockSize, block.remaining()));
+			buffer.position(buffer.position() + block.remaining());
+			digest.update(block);
+			md5s.add(Hashes.hexString(digest.digest()));
+		}
+		return md5s;
+	}
+
+	/**
+	 * 文件大小。
+	 *
+	 * @return 字节数
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * 计算各块MD5时使用的分块大小。
+	 *
+	 * @return 字节数
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * 按顺序返回各块的MD5，以十六进制小写字符串表示。
+	 *
+	 * @return 不可修改的列表
+	 */
+	public List<String> getBlockMD5s() {
+		return blockMD5s;
+	}
+
+	/**
+	 * 秒传所需的识别信息。
+	 *
+	 * @return 识别信息。如果文件小于{@link RapidUploadRecogInfo#SLICE_SIZE}，不符合秒传条件，则返回null。
+	 */
+	public RapidUploadRecogInfo getRecogInfo() {
+		return recogInfo;
+	}
+}
@@ -0,0 +1,83 @@
+package blove.baidupcs.api;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import retrofit.mime.TypedOutput;
+import blove.baidupcs.util.BufferPool;
+
+/**
+ * 以本地文件的一段作为上传内容的TypedOutput。<br>
+ * 每次写出时打开文件，按位置读取，直接写到请求的输出流，不经过InputStream和额外的缓冲流；读取用的缓冲区取自共用的{@link BufferPool}。
+ * 因为按位置读取，可以多次写出（如重试或打印日志时），每次内容相同。
+ *
+ * @author blove
+ */
+class FileSliceOutput implements TypedOutput {
+	private static final int BUFFER_SIZE = 1024 * 64;
+
+	private final Path localFile;
+	private final long offset;
+	private final long length;
+
+	/**
+	 * @param localFile
+	 *             本地文件路径
+	 * @param offset
+	 *             起始位置
+	 * @param length
+	 *             长度
+	 * @throws IllegalArgumentException
+	 *              起始位置或长度为负数
+	 */
+	FileSliceOutput(Path localFile, long offset, long length) {
+		if (offset < 0)
+			throw new IllegalArgumentException("Offset cannot be negative: " + offset);
+		if (length < 0)
+			throw new IllegalArgumentException("Length cannot be negative: " + length);
+		this.localFile = localFile;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] buf = BufferPool.shared().acquire(BUFFER_SIZE);
+		ByteBuffer buffer = ByteBuffer.wrap(buf);
+		try (FileChannel channel = FileChannel.open(localFile, StandardOpenOption.READ)) {
+			long position = offset;
+			long remaining = length;
+			while (remaining > 0) {
+				buffer.clear().limit((int) Math.min(buf.length, remaining));
+				int n = channel.read(buffer, position);
+				if (n < 0)
+					throw new EOFException("File is shorter than expected: " + localFile);
+				out.write(buf, 0, n);
+				position += n;
+				remaining -= n;
+			}
+		} finally {
+			BufferPool.shared().release(buf);
+		}
+	}
+
+	@Override
+	public String mimeType() {
+		return "application/octet-stream";
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public String fileName() {
+		return "file";
+	}
+}
@@ -0,0 +1,213 @@
+package blove.baidupcs.api;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import blove.baidupcs.api.error.BaiduPcsException;
+import blove.baidupcs.api.request.OnDup;
+import blove.baidupcs.api.response.FileMetaWithExtra1;
+import blove.baidupcs.api.response.FileMetaWithExtra2;
+import blove.baidupcs.util.BufferPool;
+
+/**
+ * 在两个百度云存储之间拷贝文件的流水线工具，不经过本地文件。<br>
+ * 将源文件按{@link BlockUploader}的分块方式分块，各块通过{@link BaiduPcs#download(String, long, long)}并行下载到缓冲区，
+ * 每块下载完成后立即通过{@link BaiduPcs#uploadBlock(InputStream, long)}上传到目标，下载和上传互相重叠。
+ * 全部上传完成后按块的顺序调用{@link BaiduPcs#createSuperFile(String, List, OnDup)}合并为一个文件，
+ * 因此失败时目标文件不会只有一部分。<br>
+ * 缓冲区是固定数量、循环使用的，一块上传完成后其缓冲区才能用于下一块，内存占用不超过缓冲区数乘以分块大小。
+ * 缓冲区取自共用的{@link BufferPool}，拷贝结束后归还。
+ * 每块的下载和上传失败时单独重试。
+ *
+ * @author blove
+ */
+public class PipelinedCopier {
+	/**
+	 * 默认缓冲区数。
+	 */
+	public static final int DEFAULT_BUFFER_COUNT = 4;
+
+	private final BaiduPcs source;
+	private final BaiduPcs target;
+	private final BlockUploader uploader;
+	private final int bufferCount;
+	private final int retryTimes;
+
+	/**
+	 * 以默认的分块大小、缓冲区数和重试次数新建一个实例。
+	 *
+	 * @param source
+	 *             源文件所在的百度云存储
+	 * @param target
+	 *             拷贝到的百度云存储
+	 */
+	public PipelinedCopier(BaiduPcs source, BaiduPcs target) {
+		this(source, target, BlockUploader.DEFAULT_BLOCK_SIZE, DEFAULT_BUFFER_COUNT,
+				BlockUploader.DEFAULT_RETRY_TIMES);
+	}
+
+	/**
+	 * 新建一个实例。
+	 *
+	 * @param source
+	 *             源文件所在的百度云存储
+	 * @param target
+	 *             拷贝到的百度云存储
+	 * @param blockSize
+	 *             分块大小。单位：字节。文件过大时将按{@link BlockUploader#blockSizeFor(long)}加倍。
+	 * @param bufferCount
+	 *             缓冲区数，即同时下载或上传的最大块数
+	 * @param retryTimes
+	 *             每块下载或上传失败后的重试次数。不包括第一次。
+	 * @throws IllegalArgumentException
+	 *              分块大小或缓冲区数不是正数，或重试次数为负数
+	 */
+	public PipelinedCopier(BaiduPcs source, BaiduPcs target, int blockSize, int bufferCount, int retryTimes) {
+		if (bufferCount <= 0)
+			throw new IllegalArgumentException("Buffer count must be positive: " + bufferCount);
+		this.uploader = new BlockUploader(target, blockSize, bufferCount, retryTimes);
+		this.source = source;
+		this.target = target;
+		this.bufferCount = bufferCount;
+		this.retryTimes = retryTimes;
+	}
+
+	/**
+	 * 拷贝一个文件。
+	 *
+	 * @param sourcePath
+	 *             源文件路径。此路径是以源存储的应用文件夹为根目录的路径。
+	 * @param targetPath
+	 *             拷贝后的文件路径。此路径是以目标存储的应用文件夹为根目录的路径。
+	 * @param ondup
+	 *             文件已存在的处理方式。如果为null，则默认为抛出异常。
+	 * @return Creation
+	 * @throws BaiduPcsException
+	 * @throws IOException
+	 *              网络错误，或源路径是目录
+	 */
+	public FileMetaWithExtra2 copy(final String sourcePath, String targetPath, OnDup ondup)
+			throws BaiduPcsException, IOException {
+		FileMetaWithExtra1 meta = source.meta(sourcePath);
+		if (meta.isDir())
+			throw new IOException("It is a directory: " + sourcePath);
+		long size = meta.getSize();
+		if (size == 0)
+			return target.upload(targetPath, new byte[0], ondup);
+
+		int realBlockSize = uploader.blockSizeFor(size);
+		int blockCount = (int) ((size + realBlockSize - 1) / realBlockSize);
+		int ringSize = Math.min(bufferCount, blockCount);
+
+		final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(ringSize);
+		for (int i = 0; i < ringSize; i++)
+			freeBuffers.add(BufferPool.shared().acquire(realBlockSize));
+		final AtomicBoolean failed = new AtomicBoolean(false);
+
+		ExecutorService downloadExecutor = Executors.newFixedThreadPool(ringSize);
+		ExecutorService uploadExecutor = Executors.newFixedThreadPool(ringSize);
+		try {
+			List<CompletableFuture<String>> futures = new ArrayList<>(blockCount);
+			for (int i = 0; i < blockCount; i++) {
+				// 每块完成（无论成功与否）都会归还缓冲区，所以这里不会永远等待
+				final byte[] buffer = takeBuffer(freeBuffers);
+				if (failed.get()) {
+					// 已经有块最终失败，不再开始新的块，下面等待结果时会抛出其异常
+					break;
+				}
+				final long offset = (long) i * realBlockSize;
+				final int length = (int) Math.min(realBlockSize, size - offset);
+				CompletableFuture<String> future = CompletableFuture.supplyAsync(() -> {
+					try {
+						downloadBlock(sourcePath, offset, buffer, length);
+						return buffer;
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				}, downloadExecutor).thenApplyAsync(bytes -> {
+					try {
+						return uploader.uploadBlock(bytes, length);
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				}, uploadExecutor);
+				future.whenComplete((md5, e) -> {
+					if (e != null)
+						failed.set(true);
+					freeBuffers.add(buffer);
+				});
+				futures.add(future);
+			}
+
+			// 按块的顺序等待结果，任何一块最终失败都会中止整个拷贝
+			List<String> md5s = new ArrayList<>(blockCount);
+			for (CompletableFuture<String> future : futures)
+				md5s.add(BlockUploader.getResult(future));
+			return target.createSuperFile(targetPath, md5s, ondup);
+		} finally {
+			downloadExecutor.shutdownNow();
+			uploadExecutor.shutdownNow();
+			// 失败时仍在使用中的缓冲区不归还，由GC回收
+			byte[] buffer;
+			while ((buffer = freeBuffers.poll()) != null)
+				BufferPool.shared().release(buffer);
+		}
+	}
+
+	private static byte[] takeBuffer(BlockingQueue<byte[]> freeBuffers) throws IOException {
+		try {
+			return freeBuffers.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for a free buffer.");
+		}
+	}
+
+	/**
+	 * 下载源文件的一块到缓冲区。失败时按照重试次数重试，每次都从块的开头重新下载。
+	 *
+	 * @param sourcePath
+	 *             源文件路径
+	 * @param offset
+	 *             块在文件中的起始位置
+	 * @param buffer
+	 *             缓冲区
+	 * @param length
+	 *             块的长度
+	 * @throws BaiduPcsException
+	 * @throws IOException
+	 *              网络错误，或文件比预期的短
+	 */
+	private void downloadBlock(String sourcePath, long offset, byte[] buffer, int length) throws BaiduPcsException,
+			IOException {
+		int retryCount = 0;
+		while (true) {
+			try (InputStream in = source.download(sourcePath, offset, offset + length - 1).in()) {
+				int readCount = 0;
+				while (readCount < length) {
+					int readOnce = in.read(buffer, readCount, length - readCount);
+					if (readOnce < 0)
+						throw new EOFException("File is shorter than expected: " + sourcePath);
+					readCount += readOnce;
+				}
+				return;
+			} catch (IOException e) {
+				if (!BlockUploader.isRetryable(e) || retryCount >= retryTimes)
+					throw e;
+				retryCount++;
+				BlockUploader.sleepBeforeRetry(retryCount);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,471 @@
+package blove.baidupcs.api;
+
+import static java.nio.file.StandardOpenOption.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import blove.baidupcs.api.error.BaiduPcsException;
+import blove.baidupcs.api.response.FileMetaWithExtra1;
+import blove.baidupcs.util.BufferPool;
+
+/**
+ * 分段并行下载工具。<br>
+ * 将文件按字节范围分为若干段，在有限个线程中通过{@link BaiduPcs#download(String, long, long)}并行下载，
+ * 每段直接写到本地文件的对应位置。初始段数根据文件大小决定；当有线程空闲而仍有段未下载完时，
+ * 将剩余最多的段从中间一分为二，由空闲线程下载后一半，以免一个慢连接拖慢整个下载。<br>
+ * 通过{@link #downloadResumable(String, Path)}下载时，在本地文件旁边保存一个日志文件，记录已经写入的字节范围，
+ * 下载中断后再次调用时只下载缺少的范围。如果远程文件已经变化，则从头重新下载。
+ *
+ * @author blove
+ */
+public class RangeDownloader {
+	/**
+	 * 默认同时下载的段数。
+	 */
+	public static final int DEFAULT_CONCURRENCY = 4;
+	/**
+	 * 默认最小段大小。初始分段和拆分慢段时都不会产生比此更小的段。
+	 */
+	public static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024 * 2;// 2MB
+	/**
+	 * 默认每段失败后的重试次数。不包括第一次下载。
+	 */
+	public static final int DEFAULT_RETRY_TIMES = 3;
+
+	private static final int BUFFER_SIZE = 1024 * 64;
+	private static final long JOURNAL_SAVE_INTERVAL = 1024 * 1024 * 8;// 每下载这么多字节写出一次日志
+
+	/**
+	 * 下载进度的监听器。
+	 *
+	 * @author blove
+	 */
+	public interface ProgressListener {
+		/**
+		 * 下载进度更新。可能在多个下载线程中调用，但不会同时调用。
+		 *
+		 * @param downloaded
+		 *             已经下载的字节数，包括续传之前已经下载的部分
+		 * @param total
+		 *             文件总字节数
+		 */
+		void update(long downloaded, long total);
+	}
+
+	private final BaiduPcs pcs;
+	private final int concurrency;
+	private final long minSegmentSize;
+	private final int retryTimes;
+
+	/**
+	 * 以默认的并发数、最小段大小和重试次数新建一个实例。
+	 *
+	 * @param pcs
+	 *             下载自的百度云存储
+	 */
+	public RangeDownloader(BaiduPcs pcs) {
+		this(pcs, DEFAULT_CONCURRENCY, DEFAULT_MIN_SEGMENT_SIZE, DEFAULT_RETRY_TIMES);
+	}
+
+	/**
+	 * 新建一个实例。
+	 *
+	 * @param pcs
+	 *             下载自的百度云存储
+	 * @param concurrency
+	 *             同时下载的段数
+	 * @param minSegmentSize
+	 *             最小段大小。单位：字节。不能小于64KB。
+	 * @param retryTimes
+	 *             每段失败后的重试次数。不包括第一次下载。
+	 * @throws IllegalArgumentException
+	 *              参数超出范围
+	 */
+	public RangeDownloader(BaiduPcs pcs, int concurrency, long minSegmentSize, int retryTimes) {
+		if (concurrency <= 0)
+			throw new IllegalArgumentException("Concurrency must be positive: " + concurrency);
+		if (minSegmentSize < BUFFER_SIZE)
+			throw new IllegalArgumentException("Min segment size cannot be smaller than " + BUFFER_SIZE + ": "
+					+ minSegmentSize);
+		if (retryTimes < 0)
+			throw new IllegalArgumentException("Retry times cannot be negative: " + retryTimes);
+		this.pcs = pcs;
+		this.concurrency = concurrency;
+		this.minSegmentSize = minSegmentSize;
+		this.retryTimes = retryTimes;
+	}
+
+	/**
+	 * 分段并行下载一个文件到本地。如果本地文件已存在则覆盖。
+	 *
+	 * @param path
+	 *             下载文件路径。此路径是以应用文件夹为根目录的路径。
+	 * @param localFile
+	 *             本地文件路径
+	 * @throws BaiduPcsException
+	 * @throws IOException
+	 *              网络错误、写入本地文件错误，或下载路径是目录
+	 */
+	public void download(String path, Path localFile) throws BaiduPcsException, IOException {
+		FileMetaWithExtra1 meta = metaOfFile(path);
+		long size = meta.getSize();
+
+		try (FileChannel channel = FileChannel.open(localFile, CREATE, WRITE, TRUNCATE_EXISTING)) {
+			if (size == 0)
+				return;
+
+			DownloadTask task = new DownloadTask(path, channel, size, null, null);
+			List<long[]> ranges = new ArrayList<>();
+			ranges.add(new long[] { 0, size });
+			task.run(ranges);
+		}
+	}
+
+	/**
+	 * 以可续传的方式分段并行下载一个文件到本地。
+	 *
+	 * @param path
+	 *             下载文件路径。此路径是以应用文件夹为根目录的路径。
+	 * @param localFile
+	 *             本地文件路径
+	 * @throws BaiduPcsException
+	 * @throws IOException
+	 *              网络错误、读写本地文件错误，或下载路径是目录
+	 * @see #downloadResumable(String, Path, ProgressListener)
+	 */
+	public void downloadResumable(String path, Path localFile) throws BaiduPcsException, IOException {
+		downloadResumable(path, localFile, null);
+	}
+
+	/**
+	 * 以可续传的方式分段并行下载一个文件到本地。<br>
+	 * 下载过程中在本地文件旁边保存一个日志文件（文件名为本地文件名加上“{@value DownloadJournal#FILE_SUFFIX}”），
+	 * 记录远程文件的大小、修改时间、fs_id和分块MD5列表，以及已经写入本地文件并落盘的字节范围。
+	 * 再次调用时，如果远程文件未变化，则只下载缺少的范围；否则从头重新下载。全部完成后删除日志文件。<br>
+	 * 如果本地文件已存在但没有日志文件，则覆盖之。
+	 *
+	 * @param path
+	 *             下载文件路径。此路径是以应用文件夹为根目录的路径。
+	 * @param localFile
+	 *             本地文件路径
+	 * @param listener
+	 *             进度监听器。可以为null。
+	 * @throws BaiduPcsException
+	 * @throws IOException
+	 *              网络错误、读写本地文件错误，或下载路径是目录
+	 */
+	public void downloadResumable(String path, Path localFile, ProgressListener listener) throws BaiduPcsException,
+			IOException {
+		FileMetaWithExtra1 meta = metaOfFile(path);
+		long size = meta.getSize();
+
+		DownloadJournal journal = DownloadJournal.open(localFile, meta);
+		try (FileChannel channel = FileChannel.open(localFile, CREATE, WRITE)) {
+			if (size > 0) {
+				DownloadTask task = new DownloadTask(path, channel, size, journal, listener);
+				try {
+					task.run(journal.missing(size));
+				} catch (IOException | RuntimeException | Error e) {
+					// 保留失败之前已经下载的部分
+					try {
+						journal.save(channel);
+					} catch (IOException saveException) {
+						e.addSuppressed(saveException);
+					}
+					throw e;
+				}
+			}
+			// 重新开始时本地文件可能比远程文件长
+			channel.truncate(size);
+			channel.force(false);
+		}
+		journal.delete();
+	}
+
+	/**
+	 * 判断本地文件是否是一个未完成的可续传下载，即旁边存在下载日志文件。
+	 *
+	 * @param localFile
+	 *             本地文件路径
+	 * @return 是否是未完成的可续传下载
+	 */
+	public static boolean isPartial(Path localFile) {
+		return Files.exists(DownloadJournal.journalFileOf(localFile));
+	}
+
+	private FileMetaWithExtra1 metaOfFile(String path) throws BaiduPcsException, IOException {
+		FileMetaWithExtra1 meta = pcs.meta(path);
+		if (meta.isDir())
+			throw new IOException("It is a directory: " + path);
+		return meta;
+	}
+
+	/**
+	 * 文件中的一段。由下载线程推进position，由拆分操作缩短end，都在所属{@link DownloadTask}的锁内进行。
+	 *
+	 * @author blove
+	 */
+	private static class Segment {
+		/**
+		 * 下一个要下载的字节位置。
+		 */
+		long position;
+		/**
+		 * 段的结束位置，不包含。
+		 */
+		long end;
+
+		Segment(long position, long end) {
+			this.position = position;
+			this.end = end;
+		}
+
+		long remaining() {
+			return end - position;
+		}
+	}
+
+	/**
+	 * 一个文件的下载任务，负责分配段和协调各个下载线程。
+	 *
+	 * @author blove
+	 */
+	private class DownloadTask {
+		final String path;
+		final FileChannel channel;
+		final long size;
+		final DownloadJournal journal;
+		final ProgressListener listener;
+
+		/**
+		 * 尚未开始下载的段。
+		 */
+		final Deque<Segment> pending = new LinkedList<>();
+		/**
+		 * 正在下载的段。
+		 */
+		final List<Segment> active = new LinkedList<>();
+
+		/**
+		 * 是否有线程已经失败。失败后其他线程尽快停止。
+		 */
+		volatile boolean failed = false;
+
+		/**
+		 * 已下载的字节数。
+		 */
+		long downloaded;
+		/**
+		 * 上次写出日志之后下载的字节数。
+		 */
+		long unsaved = 0;
+
+		DownloadTask(String path, FileChannel channel, long size, DownloadJournal journal, ProgressListener listener) {
+			this.path = path;
+			this.channel = channel;
+			this.size = size;
+			this.journal = journal;
+			this.listener = listener;
+		}
+
+		/**
+		 * 下载指定的各个范围，启动下载线程并等待全部完成。
+		 *
+		 * @param ranges
+		 *             要下载的范围，每个元素为起始位置和结束位置（不包含）。不能为空。
+		 * @throws IOException
+		 */
+		void run(List<long[]> ranges) throws IOException {
+			long remaining = 0;
+			for (long[] range : ranges) {
+				pending.add(new Segment(range[0], range[1]));
+				remaining += range[1] - range[0];
+			}
+			downloaded = size - remaining;
+
+			// 先将初始段拆分到与线程数相同，空闲线程之后靠拆分取得新段
+			int threadCount = (int) Math.max(1, Math.min(concurrency, remaining / minSegmentSize));
+			while (pending.size() < threadCount) {
+				Segment tail = split(pending);
+				if (tail == null)
+					break;
+				pending.add(tail);
+			}
+			threadCount = Math.min(threadCount, pending.size());
+
+			ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+			try {
+				List<Future<Void>> futures = new ArrayList<>(threadCount);
+				for (int i = 0; i < threadCount; i++) {
+					futures.add(executor.submit(() -> {
+						try {
+							Segment segment;
+							while ((segment = nextSegment()) != null) {
+								fetch(segment);
+								finished(segment);
+							}
+							return null;
+						} catch (IOException | RuntimeException | Error e) {
+							failed = true;
+							throw e;
+						}
+					}));
+				}
+				for (Future<Void> future : futures)
+					BlockUploader.getResult(future);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		/**
+		 * 取出下一个要下载的段。没有未开始的段时，拆分剩余最多的正在下载的段。
+		 *
+		 * @return 段。如果已经没有可下载的段则返回null。
+		 */
+		synchronized Segment nextSegment() {
+			if (failed)
+				return null;
+			Segment segment = pending.poll();
+			if (segment == null)
+				segment = splitLargest();
+			if (segment != null)
+				active.add(segment);
+			return segment;
+		}
+
+		/**
+		 * 将剩余最多的正在下载的段从中间拆分，原段缩短为前一半。
+		 *
+		 * @return 拆出的后一半。如果剩余最多的段也不足两个最小段大小，则不拆分，返回null。
+		 */
+		private Segment splitLargest() {
+			return split(active);
+		}
+
+		private Segment split(Collection<Segment> segments) {
+			Segment largest = null;
+			for (Segment segment : segments)
+				if (largest == null || segment.remaining() > largest.remaining())
+					largest = segment;
+			if (largest == null || largest.remaining() < minSegmentSize * 2)
+				return null;
+
+			// 中点至少在当前位置一个缓冲区之后，保证下载线程正在读的那一次不会越过新的end
+			long mid = largest.position + Math.max(largest.remaining() / 2, BUFFER_SIZE);
+			Segment tail = new Segment(mid, largest.end);
+			largest.end = mid;
+			return tail;
+		}
+
+		synchronized void finished(Segment segment) {
+			active.remove(segment);
+		}
+
+		synchronized long position(Segment segment) {
+			return segment.position;
+		}
+
+		/**
+		 * 返回一次最多可以读取的字节数。
+		 */
+		synchronized int readableSize(Segment segment) {
+			return (int) Math.min(BUFFER_SIZE, segment.remaining());
+		}
+
+		synchronized void advance(Segment segment, int size) {
+			if (journal != null)
+				journal.add(segment.position, segment.position + size);
+			segment.position += size;
+			downloaded += size;
+			unsaved += size;
+			if (listener != null)
+				listener.update(downloaded, this.size);
+		}
+
+		/**
+		 * 写出日志，如果距离上次写出已经下载了足够多的字节。
+		 *
+		 * @throws IOException
+		 */
+		void saveJournalIfNeeded() throws IOException {
+			if (journal == null)
+				return;
+			synchronized (this) {
+				if (unsaved < JOURNAL_SAVE_INTERVAL)
+					return;
+				unsaved = 0;
+			}
+			journal.save(channel);
+		}
+
+		/**
+		 * 下载一段，直到到达此段的end（end可能在下载过程中被拆分缩短）。失败时从已下载的位置重试。
+		 *
+		 * @param segment
+		 *             段
+		 * @throws IOException
+		 */
+		void fetch(Segment segment) throws IOException {
+			byte[] buf = BufferPool.shared().acquire(BUFFER_SIZE);
+			try {
+				fetch(segment, buf);
+			} finally {
+				BufferPool.shared().release(buf);
+			}
+		}
+
+		private void fetch(Segment segment, byte[] buf) throws IOException {
+			int retryCount = 0;
+			while (true) {
+				long start;
+				long end;
+				synchronized (this) {
+					start = segment.position;
+					end = segment.end;
+				}
+				if (start >= end)
+					return;
+
+				try (InputStream in = pcs.download(path, start, end - 1).in()) {
+					int readSize;
+					while ((readSize = readableSize(segment)) > 0) {
+						if (failed)
+							return;
+						int readOnce = in.read(buf, 0, readSize);
+						if (readOnce < 0)
+							throw new EOFException("Unexpected end of range " + start + "-" + (end - 1) + ": " + path);
+						long position = position(segment);
+						ByteBuffer src = ByteBuffer.wrap(buf, 0, readOnce);
+						while (src.hasRemaining())
+							position += channel.write(src, position);
+						advance(segment, readOnce);
+						saveJournalIfNeeded();
+						retryCount = 0;
+					}
+					return;
+				} catch (IOException e) {
+					if (!BlockUploader.isRetryable(e) || retryCount >= retryTimes)
+						throw e;
+					retryCount++;
+					BlockUploader.sleepBeforeRetry(retryCount);
+				}
+			}
+		}
+	}
+
+}
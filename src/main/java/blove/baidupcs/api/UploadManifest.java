@@ -0,0 +1,159 @@
+package blove.baidupcs.api;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import blove.baidupcs.util.Hashes;
+import blove.baidupcs.util.PropertiesFiles;
+
+/**
+ * 可续传上传的清单文件。记录一次分块上传的源文件信息、目标路径、分块大小和已经上传完成的块的MD5，
+ * 每完成一块即写出一次。写出时先写到临时文件再原子地替换，保证进程在任何时刻崩溃都不会留下损坏的清单。
+ *
+ * @author blove
+ */
+class UploadManifest {
+	static final String FILE_SUFFIX = ".upload";
+
+	private static final String PROP_KEY_SOURCE = "source";
+	private static final String PROP_KEY_TARGET = "target";
+	private static final String PROP_KEY_SIZE = "size";
+	private static final String PROP_KEY_MTIME = "mtime";
+	private static final String PROP_KEY_BLOCK_SIZE = "block_size";
+	private static final String PROP_KEY_CREATE_TIME = "create_time";
+	private static final String PROP_KEY_BLOCK_PREFIX = "block.";
+
+	private final Path manifestFile;
+	private final Properties props;
+
+	private UploadManifest(Path manifestFile, Properties props) {
+		this.manifestFile = manifestFile;
+		this.props = props;
+	}
+
+	/**
+	 * 打开指定上传对应的清单。如果已有清单且与当前的源文件（路径、大小、修改时间）、目标路径和分块大小都一致，则沿用之；否则新建一个空清单。
+	 *
+	 * @param manifestDir
+	 *             清单文件所在目录
+	 * @param source
+	 *             本地源文件
+	 * @param target
+	 *             上传后的文件路径
+	 * @param blockSize
+	 *             分块大小
+	 * @return 清单
+	 * @throws IOException
+	 */
+	static UploadManifest open(Path manifestDir, Path source, String target, int blockSize) throws IOException {
+		Path absoluteSource = source.toAbsolutePath();
+		String sourceStr = absoluteSource.toString();
+		String size = Long.toString(Files.size(absoluteSource));
+		String mtime = Long.toString(Files.getLastModifiedTime(absoluteSource).toMillis());
+		String blockSizeStr = Integer.toString(blockSize);
+
+		byte[] key = (sourceStr + "\n" + target).getBytes(StandardCharsets.UTF_8);
+		String name = Hashes.md5Hex(key, 0, key.length);
+		Path manifestFile = manifestDir.resolve(name + FILE_SUFFIX);
+
+		Properties props = PropertiesFiles.load(manifestFile);
+		if (props != null && sourceStr.equals(props.getProperty(PROP_KEY_SOURCE))
+				&& target.equals(props.getProperty(PROP_KEY_TARGET)) && size.equals(props.getProperty(PROP_KEY_SIZE))
+				&& mtime.equals(props.getProperty(PROP_KEY_MTIME))
+				&& blockSizeStr.equals(props.getProperty(PROP_KEY_BLOCK_SIZE)))
+			return new UploadManifest(manifestFile, props);
+
+		// 没有清单或源文件已变化，重新开始
+		props = new Properties();
+		props.setProperty(PROP_KEY_SOURCE, sourceStr);
+		props.setProperty(PROP_KEY_TARGET, target);
+		props.setProperty(PROP_KEY_SIZE, size);
+		props.setProperty(PROP_KEY_MTIME, mtime);
+		props.setProperty(PROP_KEY_BLOCK_SIZE, blockSizeStr);
+		props.setProperty(PROP_KEY_CREATE_TIME, Long.toString(System.currentTimeMillis()));
+		UploadManifest manifest = new UploadManifest(manifestFile, props);
+		manifest.save();
+		return manifest;
+	}
+
+	/**
+	 * 删除指定目录中创建时间早于指定时长之前的清单。服务器上的临时分块过期后，这些清单已经没有意义。
+	 *
+	 * @param manifestDir
+	 *             清单文件所在目录
+	 * @param expireTime
+	 *             过期时长。单位：毫秒。
+	 * @throws IOException
+	 */
+	static void deleteExpired(Path manifestDir, long expireTime) throws IOException {
+		if (!Files.isDirectory(manifestDir))
+			return;
+		long now = System.currentTimeMillis();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(manifestDir, "*" + FILE_SUFFIX)) {
+			for (Path manifestFile : stream) {
+				long createTime;
+				Properties props = PropertiesFiles.load(manifestFile);
+				try {
+					createTime = Long.parseLong(props.getProperty(PROP_KEY_CREATE_TIME));
+				} catch (NullPointerException | NumberFormatException e) {
+					// 无法识别的清单，按文件修改时间处理
+					createTime = Files.getLastModifiedTime(manifestFile).toMillis();
+				}
+				if (now - createTime > expireTime)
+					Files.deleteIfExists(manifestFile);
+			}
+		}
+	}
+
+	/**
+	 * 返回记录的指定块的MD5。
+	 *
+	 * @param index
+	 *             块序号
+	 * @return MD5。如果此块尚未上传完成则返回null。
+	 */
+	synchronized String getBlockMD5(int index) {
+		return props.getProperty(PROP_KEY_BLOCK_PREFIX + index);
+	}
+
+	/**
+	 * 记录一个块已经上传完成，并写出清单。
+	 *
+	 * @param index
+	 *             块序号
+	 * @param md5
+	 *             块的MD5
+	 * @throws IOException
+	 */
+	synchronized void blockFinished(int index, String md5) throws IOException {
+		props.setProperty(PROP_KEY_BLOCK_PREFIX + index, md5);
+		save();
+	}
+
+	/**
+	 * 移除一个块的记录（不写出），用于校验不通过的块。
+	 *
+	 * @param index
+	 *             块序号
+	 */
+	synchronized void removeBlock(int index) {
+		props.remove(PROP_KEY_BLOCK_PREFIX + index);
+	}
+
+	/**
+	 * 删除清单文件。上传全部完成后调用。
+	 *
+	 * @throws IOException
+	 */
+	synchronized void delete() throws IOException {
+		Files.deleteIfExists(manifestFile);
+	}
+
+	private void save() throws IOException {
+		PropertiesFiles.storeAtomically(props, manifestFile, "Baidupcs resumable upload manifest.");
+	}
+}
@@ -3,9 +3,11 @@ package blove.baidupcs.api.request;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.zip.CRC32;
 
+import blove.baidupcs.util.BufferPool;
+import blove.baidupcs.util.Hashes;
+
 /**
  * 秒传文件所需的文件识别信息参数。
  * 
@@ -14,6 +16,8 @@ import java.util.zip.CRC32;
 public class RapidUploadRecogInfo {
 	public static final long SLICE_SIZE = 1024 * 256;
 
+	private static final int BUFFER_SIZE = 1024 * 64;
+
 	private long contentLength;
 	private String contentMD5;
 	private String sliceMD5;
@@ -47,13 +51,12 @@ public class RapidUploadRecogInfo {
 		if (size < SLICE_SIZE)
 			return null;
 
+		MessageDigest md5 = Hashes.newMD5();
+		MessageDigest sliceMD5 = Hashes.newMD5();
+		CRC32 crc32 = new CRC32();
+		byte[] buf = BufferPool.shared().acquire(BUFFER_SIZE);
 		try {
 			RapidUploadRecogInfo instance = new RapidUploadRecogInfo();
-
-			MessageDigest md5 = MessageDigest.getInstance("MD5");
-			MessageDigest sliceMD5 = MessageDigest.getInstance("MD5");
-			CRC32 crc32 = new CRC32();
-			byte[] buf = new byte[8192];
 			int readOnce;
 			long readCount = 0;
 
@@ -71,7 +74,7 @@ public class RapidUploadRecogInfo {
 			// 如果读到了SLICE_SIZE则计算sliceMD5，否则判断为流不足SLICE_SIZE，返回null
 			if (readCount < SLICE_SIZE)
 				return null;
-			instance.setSliceMD5(hexString(sliceMD5.digest()));
+			instance.setSliceMD5(Hashes.hexString(sliceMD5.digest()));
 
 			// 读取一直到size或者流结束
 			while ((readOnce = in.read(buf, 0,
@@ -84,29 +87,16 @@ public class RapidUploadRecogInfo {
 			}
 
 			// 计算contentMD5和contentCRC32
-			instance.setContentMD5(hexString(md5.digest()));
+			instance.setContentMD5(Hashes.hexString(md5.digest()));
 			instance.setContentCRC32(String.valueOf(crc32.getValue()));
 
 			instance.setContentLength(readCount);
 
 			return instance;
 
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-			return null;
-		}
-	}
-
-	private static String hexString(byte[] bytes) {
-		StringBuffer hexString = new StringBuffer();
-		for (int i = 0; i < bytes.length; i++) {
-			if ((0xff & bytes[i]) < 0x10) {
-				hexString.append("0" + Integer.toHexString((0xFF & bytes[i])));
-			} else {
-				hexString.append(Integer.toHexString(0xFF & bytes[i]));
-			}
+		} finally {
+			BufferPool.shared().release(buf);
 		}
-		return hexString.toString();
 	}
 
 	/**
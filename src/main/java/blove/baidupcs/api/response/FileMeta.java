@@ -25,11 +25,11 @@ public class FileMeta {
 	/**
 	 * 返回以应用目录为根目录的路径。
 	 * 
-	 * @return
+	 * @return 路径。如果是应用目录本身，则返回"/"。
 	 */
 	public String getPathInApp() {
 		String[] paths = path.split("/", 4);
-		return "/" + paths[3];
+		return paths.length < 4 ? "/" : "/" + paths[3];
 	}
 
 	/**
@@ -9,9 +9,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
-import blove.baidupcs.api.BaiduPcs;
 import blove.baidupcs.api.error.BaiduPcsFileNotExistsException;
-import blove.baidupcs.api.response.FileMetaWithExtra1;
+import blove.baidupcs.api.response.FileMeta;
 
 public class BaiduPcsBasicFileAttributeView implements BasicFileAttributeView {
 	public static final String VIEW_NAME = "basic";
@@ -26,14 +25,14 @@ public class BaiduPcsBasicFileAttributeView implements BasicFileAttributeView {
 	public static final String DYNAMIC_ATTR_IS_OTHER = "isOther";
 	public static final String DYNAMIC_ATTR_FILE_KEY = "fileKey";
 
-	private final BaiduPcs service;
+	private final BaiduPcsFileStore store;
 	private final BaiduPcsPath path;
 	private final String pathServiceStr;
 
 	BaiduPcsBasicFileAttributeView(BaiduPcsPath path) {
 		this.path = path;
 		this.pathServiceStr = path.toServiceString();
-		this.service = path.getFileSystem().getFileStore().getService();
+		this.store = path.getFileSystem().getFileStore();
 	}
 
 	@Override
@@ -44,7 +43,10 @@ public class BaiduPcsBasicFileAttributeView implements BasicFileAttributeView {
 	@Override
 	public BasicFileAttributes readAttributes() throws IOException {
 		try {
-			FileMetaWithExtra1 meta = service.meta(pathServiceStr);
+			// 从目录列表得到的路径带有元信息快照，可以直接使用
+			FileMeta meta = path.getMetaSnapshot();
+			if (meta == null)
+				meta = store.basicMeta(pathServiceStr);
 			return new BaiduPcsBasicFileAttributes(meta.getCtime() * 1000, meta.getMtime() * 1000, meta.isDir(),
 					meta.getSize(), meta.getFsID());
 		} catch (BaiduPcsFileNotExistsException e) {
@@ -1,66 +1,187 @@
 package blove.baidupcs.fs;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import blove.baidupcs.api.BaiduPcs;
 import blove.baidupcs.api.error.BaiduPcsFileNotExistsException;
 import blove.baidupcs.api.response.FileMetaWithExtra2;
 
+/**
+ * 目录流。按页列出目录：遍历时才获取第一页，遍历当前页的同时在后台获取下一页，过滤器在遍历时逐个应用。<br>
+ * 页大小由文件存储的配置决定。遍历期间目录内容发生变化时，可能遗漏或重复某些条目。
+ *
+ * @author blove
+ */
 public class BaiduPcsDirectoryStream implements DirectoryStream<Path> {
 
-	private final List<FileMetaWithExtra2> fileInfos;
 	private final BaiduPcsPath dir;
+	private final String dirServiceStr;
+	private final Filter<? super Path> filter;
+	private final BaiduPcsFileStore store;
+	private final BaiduPcs service;
+	private final int pageSize;
+	private final long metaGeneration;
+
+	private boolean closed = false;
+	private PagedIterator iterator;
 
 	BaiduPcsDirectoryStream(BaiduPcsPath dir, Filter<? super Path> filter) throws IOException {
-		try {
-			this.dir = dir;
+		this.dir = dir;
+		this.dirServiceStr = dir.toServiceString();
+		this.filter = filter;
+		this.store = dir.getFileSystem().getFileStore();
+		this.service = store.getService();
+		this.pageSize = store.getListPageSize();
+		// 在list之前取得版本，list期间有文件改变则快照不可用
+		this.metaGeneration = store.metaGeneration();
 
-			BaiduPcs service = ((BaiduPcsFileStore) Files.getFileStore(dir)).getService();
-			if (!service.meta(dir.toServiceString()).isDir())
+		try {
+			if (!store.basicMeta(dirServiceStr).isDir())
 				throw new NotDirectoryException(dir.toString());
-			fileInfos = service.list(dir.toServiceString());
-			Iterator<FileMetaWithExtra2> itr = fileInfos.iterator();
-			while (itr.hasNext()) {
-				Path path = dir.resolve(itr.next().getFileName());
-				if (!filter.accept(path))
-					itr.remove();
-			}
 		} catch (BaiduPcsFileNotExistsException e) {
 			throw new NoSuchFileException(dir.toString());
 		}
 	}
 
 	@Override
-	public void close() throws IOException {
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		if (iterator != null)
+			iterator.cancelPrefetch();
 	}
 
 	@Override
-	public Iterator<Path> iterator() {
-		return new Iterator<Path>() {
-			Iterator<FileMetaWithExtra2> itr = fileInfos.iterator();
+	public synchronized Iterator<Path> iterator() {
+		if (closed)
+			throw new IllegalStateException("Directory stream is closed.");
+		if (iterator != null)
+			throw new IllegalStateException("Iterator already obtained.");
+		iterator = new PagedIterator();
+		return iterator;
+	}
+
+	/**
+	 * 获取指定起始索引的一页。
+	 */
+	private List<FileMetaWithExtra2> fetchPage(int start) throws IOException {
+		return service.list(dirServiceStr, null, null, start, start + pageSize);
+	}
+
+	private class PagedIterator implements Iterator<Path> {
+		private Iterator<FileMetaWithExtra2> page = Collections.emptyIterator();
+		private int nextPageStart = 0;
+		private boolean lastPage = false;
+		/**
+		 * 正在后台获取的下一页。如果为null，则还没有开始获取。
+		 */
+		private Future<List<FileMetaWithExtra2>> prefetch;
+		private Path next;
+
+		@Override
+		public boolean hasNext() {
+			synchronized (BaiduPcsDirectoryStream.this) {
+				while (next == null) {
+					if (closed)
+						return false;
+					if (page.hasNext()) {
+						FileMetaWithExtra2 fileInfo = page.next();
+						BaiduPcsPath path = ((BaiduPcsPath) dir.resolve(fileInfo.getFileName())).withMetaSnapshot(
+								fileInfo, metaGeneration);
+						try {
+							if (filter == null || filter.accept(path))
+								next = path;
+						} catch (IOException e) {
+							throw new DirectoryIteratorException(e);
+						}
+					} else if (lastPage) {
+						return false;
+					} else {
+						try {
+							nextPage();
+						} catch (IOException e) {
+							throw new DirectoryIteratorException(e);
+						}
+					}
+				}
+				return true;
+			}
+		}
+
+		/**
+		 * 取得下一页，并开始在后台获取再下一页。
+		 */
+		private void nextPage() throws IOException {
+			List<FileMetaWithExtra2> fileInfos;
+			if (prefetch == null)
+				fileInfos = fetchPage(nextPageStart);
+			else
+				fileInfos = waitForPrefetch();
+			nextPageStart += pageSize;
+			lastPage = fileInfos.size() < pageSize;
+			page = fileInfos.iterator();
+
+			if (!lastPage) {
+				final int start = nextPageStart;
+				prefetch = store.getBackgroundExecutor().submit(() -> fetchPage(start));
+			} else {
+				prefetch = null;
+			}
+		}
 
-			@Override
-			public boolean hasNext() {
-				return itr.hasNext();
+		private List<FileMetaWithExtra2> waitForPrefetch() throws IOException {
+			try {
+				return prefetch.get();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while listing " + dir);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				else if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				else if (cause instanceof Error)
+					throw (Error) cause;
+				else
+					throw new RuntimeException(cause);
 			}
+		}
 
-			@Override
-			public Path next() {
-				return dir.resolve(itr.next().getFileName());
+		void cancelPrefetch() {
+			if (prefetch != null) {
+				prefetch.cancel(true);
+				prefetch = null;
 			}
+		}
 
-			@Override
-			public void remove() {
-				throw new UnsupportedOperationException("Remove in directory stream iterator is not supported.");
+		@Override
+		public Path next() {
+			synchronized (BaiduPcsDirectoryStream.this) {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				Path path = next;
+				next = null;
+				return path;
 			}
-		};
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Remove in directory stream iterator is not supported.");
+		}
 	}
 
 }
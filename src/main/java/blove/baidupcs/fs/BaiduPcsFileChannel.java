@@ -2,11 +2,11 @@ package blove.baidupcs.fs;
 
 import static java.nio.file.StandardOpenOption.*;
 
-import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.NonReadableChannelException;
 import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.SeekableByteChannel;
@@ -15,37 +15,59 @@ import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 
 import blove.baidupcs.api.BaiduPcs;
+import blove.baidupcs.api.BlockUploader;
 import blove.baidupcs.api.error.BaiduPcsFileNotExistsException;
 import blove.baidupcs.api.request.OnDup;
 import blove.baidupcs.api.response.FileMeta;
+import blove.baidupcs.fs.CachedFileAccessor.AccessorView;
+import blove.baidupcs.fs.CachedFileAccessor.CacheItem;
+import blove.baidupcs.fs.CachedFileAccessor.FileAccessor;
 
+/**
+ * 可随机读写的文件通道。通过文件存储的{@link CachedFileAccessor}读写文件内容：读取时分段下载需要的部分，
+ * 同一文件的各个通道共用读缓存；写入先放在此通道的写缓存中，写缓存满时暂存到本地的溢出文件，
+ * 写出（关闭或同步写入）时才将原文件内容与写入的内容合并，分块上传后重新合并为文件。
+ *
+ * @author blove
+ */
 public class BaiduPcsFileChannel implements SeekableByteChannel {
 
 	private final BaiduPcs service;
+	private final BaiduPcsFileStore store;
 
 	private final String pathServiceStr;
+	private final Path cachePath;
 
 	private final boolean readable, writable;
 	private final boolean append;
 	private final boolean deleteOnClose;
 	private final boolean sync;
 
-	private boolean needCreate;
+	private final RemoteFileAccessor fileAccessor;
+	private final AccessorView view;
 
 	private boolean isOpen = true;
-	private Path cacheFilePath;
-	private SeekableByteChannel cacheFileChannel;
-	private boolean changed = false;
+	private long position = 0;
+	/**
+	 * 文件大小，包括还未写出的部分。
+	 */
+	private long size;
 
 	BaiduPcsFileChannel(BaiduPcsPath path, Set<? extends OpenOption> options)
 			throws IOException {
 		this.pathServiceStr = path.toServiceString();
-		service = path.getFileSystem().getFileStore().getService();
+		this.cachePath = path.toAbsolutePath();
+		store = path.getFileSystem().getFileStore();
+		service = store.getService();
 
 		append = options.contains(APPEND);
 		writable = options.contains(WRITE) || append;
@@ -56,20 +78,19 @@ public class BaiduPcsFileChannel implements SeekableByteChannel {
 		boolean truncate = options.contains(TRUNCATE_EXISTING);
 		boolean createNew = options.contains(CREATE_NEW);
 		boolean create = options.contains(CREATE);
-		needCreate = createNew || create;
 
 		// 检查文件是否存在
-		boolean alreadyExists;
+		FileMeta meta;
 		try {
-			FileMeta meta = service.meta(pathServiceStr);
+			meta = service.meta(pathServiceStr);
 			// 没抛异常，文件存在
 			if (meta.isDir())// 不可以是目录
 				throw new IOException("It is a directory: " + path);
-			alreadyExists = true;
 		} catch (BaiduPcsFileNotExistsException e) {
 			// 文件不存在
-			alreadyExists = false;
+			meta = null;
 		}
+		boolean alreadyExists = meta != null;
 
 		// 如果指定了CREATE_NEW，则必须保证文件不存在
 		if (createNew && alreadyExists)
@@ -79,16 +100,18 @@ public class BaiduPcsFileChannel implements SeekableByteChannel {
 		if (!(create || createNew) && !alreadyExists)
 			throw new NoSuchFileException(path.toString());
 
-		// 准备缓存文件
-		cacheFilePath = Files.createTempFile(null, null);
-		if (!truncate) {
-			try {
-				try (InputStream in = service.download(pathServiceStr).in()) {
-					Files.copy(in, cacheFilePath,
-							StandardCopyOption.REPLACE_EXISTING);
-				}
-			} catch (BaiduPcsFileNotExistsException e) {
-			}
+		// 新建的文件和截断的文件，在写出之前都以空文件为基础，不能使用已有的读缓存
+		CachedFileAccessor cache = store.getFileAccessor();
+		if (alreadyExists && !(truncate && writable)) {
+			size = meta.getSize();
+			fileAccessor = new RemoteFileAccessor(size, false);
+			view = cache.newView(cachePath,
+					BaiduPcsFileStore.fileVersion(meta), fileAccessor);
+		} else {
+			size = 0;
+			fileAccessor = new RemoteFileAccessor(0, true);
+			cache.invalidate(cachePath);
+			view = cache.newView(cachePath, fileAccessor);
 		}
 	}
 
@@ -99,19 +122,22 @@ public class BaiduPcsFileChannel implements SeekableByteChannel {
 
 	@Override
 	public synchronized void close() throws IOException {
-		if (deleteOnClose) {
-			try {
-				service.delete(pathServiceStr);
-			} catch (Exception e) {
-				throw new RuntimeException(e);
+		if (!isOpen)
+			return;
+		isOpen = false;
+		try {
+			if (deleteOnClose) {
+				store.getFileAccessor().invalidate(cachePath);
+				try {
+					service.delete(pathServiceStr);
+				} catch (BaiduPcsFileNotExistsException e) {
+				}
+			} else {
+				flush();
 			}
-		} else {
-			flush();
+		} finally {
+			fileAccessor.close();
 		}
-		Files.deleteIfExists(cacheFilePath);
-		cacheFilePath = null;
-		cacheFileChannel = null;
-		isOpen = false;
 	}
 
 	private void checkOpen() throws ClosedChannelException {
@@ -124,8 +150,25 @@ public class BaiduPcsFileChannel implements SeekableByteChannel {
 		checkOpen();
 		if (!readable)
 			throw new NonReadableChannelException();
-		prepareCacheFileChannel();
-		return cacheFileChannel.read(dst);
+		if (position >= size)
+			return -1;
+		if (!dst.hasRemaining())
+			return 0;
+
+		// 不读超过文件末尾的部分
+		int oriLimit = dst.limit();
+		if (dst.remaining() > size - position)
+			dst.limit(dst.position() + (int) (size - position));
+		int readSize;
+		try {
+			readSize = view.read(position, dst);
+		} finally {
+			dst.limit(oriLimit);
+		}
+		if (readSize == 0)
+			return -1;
+		position += readSize;
+		return readSize;
 	}
 
 	@Override
@@ -133,12 +176,13 @@ public class BaiduPcsFileChannel implements SeekableByteChannel {
 		checkOpen();
 		if (!writable)
 			throw new NonWritableChannelException();
-		prepareCacheFileChannel();
 		if (append)
-			cacheFileChannel.position(cacheFileChannel.size());
-		int writeSize = cacheFileChannel.write(src);
+			position = size;
+		int writeSize = src.remaining();
 		if (writeSize > 0) {
-			changed = true;
+			view.write(position, src);
+			position += writeSize;
+			size = Math.max(size, position);
 			if (sync)
 				flush();
 		}
@@ -148,74 +192,293 @@ public class BaiduPcsFileChannel implements SeekableByteChannel {
 	@Override
 	public synchronized long position() throws IOException {
 		checkOpen();
-		if (!writable)
-			throw new NonWritableChannelException();
-		prepareCacheFileChannel();
-		return cacheFileChannel.position();
+		return position;
 	}
 
 	@Override
 	public synchronized SeekableByteChannel position(long newPosition)
 			throws IOException {
 		checkOpen();
-		prepareCacheFileChannel();
-		cacheFileChannel.position(newPosition);
+		if (newPosition < 0)
+			throw new IllegalArgumentException(
+					"Position cannot be negative: " + newPosition);
+		position = newPosition;
 		return this;
 	}
 
 	@Override
 	public synchronized long size() throws IOException {
 		checkOpen();
-		prepareCacheFileChannel();
-		return cacheFileChannel.size();
+		return size;
 	}
 
 	@Override
 	public synchronized SeekableByteChannel truncate(long size)
 			throws IOException {
 		checkOpen();
-		prepareCacheFileChannel();
-		long oriSize = cacheFileChannel.size();
-		cacheFileChannel.truncate(size);
-		if (cacheFileChannel.size() != oriSize) {
-			changed = true;
+		if (!writable)
+			throw new NonWritableChannelException();
+		if (size < 0)
+			throw new IllegalArgumentException("Size cannot be negative: "
+					+ size);
+		if (size < this.size) {
+			view.truncate(size);
+			this.size = size;
 			if (sync)
 				flush();
 		}
+		if (position > size)
+			position = size;
 		return this;
 	}
 
 	/**
-	 * 确保cacheFileChannel准备好以供使用。
-	 * 
+	 * 将未写出的数据写出。
+	 *
 	 * @throws IOException
 	 */
-	private void prepareCacheFileChannel() throws IOException {
-		if (cacheFileChannel == null) {
-			cacheFileChannel = Files.newByteChannel(cacheFilePath,
-					StandardOpenOption.READ, StandardOpenOption.WRITE);
-			changed = false;
+	private void flush() throws IOException {
+		view.flush();
+		try {
+			// 没有写入任何数据的新建或截断的文件，也要写出
+			fileAccessor.commit(size);
+		} catch (IOException | RuntimeException e) {
+			// 读缓存中可能已有未能写出的内容，清除之；暂存的内容仍在，下次写出时重试
+			store.getFileAccessor().invalidate(cachePath);
+			throw e;
 		}
 	}
 
 	/**
-	 * 将未写出的数据写出。
-	 * 
-	 * @throws IOException
+	 * 通过分段下载读取、通过分块上传写出文件的FileAccessor。<br>
+	 * 百度云存储的文件不能部分修改，所以写出的内容先按其在文件中的位置暂存在本地的溢出文件中，读取时覆盖在原文件内容之上；
+	 * 提交时才将原文件内容与暂存的内容合并，按块上传后重新合并为文件。这样写缓存多次写满也只在提交时上传一次。
+	 * 上次由此通道提交、此后没有修改的块直接使用上次的MD5，不再下载和上传，所以追加写入或同步写入时只上传改动的块。
+	 *
+	 * @author blove
 	 */
-	private void flush() throws IOException {
-		if ((cacheFileChannel != null && changed) || needCreate) {
-			if (cacheFileChannel != null) {
-				cacheFileChannel.close();
-				cacheFileChannel = null;
+	private class RemoteFileAccessor implements FileAccessor {
+		/**
+		 * 云存储中文件的大小。
+		 */
+		private long baseSize;
+		/**
+		 * 云存储中的文件内容仍然有效的大小，截断后变小。在此之内的内容从云存储下载，之外的内容视为0。
+		 */
+		private long baseValidSize;
+		/**
+		 * 云存储中的文件是否与作为基础的文件内容不一致（新建或截断了但还未写出）。
+		 */
+		private boolean needRebuild;
+		/**
+		 * 已暂存到溢出文件的范围，以起始位置为key，结束位置（不包含）为value。范围互不重叠也不相接。
+		 */
+		private final NavigableMap<Long, Long> spilledRanges = new TreeMap<>();
+		/**
+		 * 溢出文件。第一次暂存时创建，关闭时删除。
+		 */
+		private FileChannel spillFile;
+		/**
+		 * 上次提交时的分块大小和各块的MD5。如果为null则没有提交过。
+		 */
+		private int lastBlockSize;
+		private List<String> lastBlockMD5s;
+
+		RemoteFileAccessor(long baseSize, boolean needRebuild) {
+			this.baseSize = baseSize;
+			this.baseValidSize = baseSize;
+			this.needRebuild = needRebuild;
+		}
+
+		@Override
+		public synchronized byte[] read(long startIndex, long size)
+				throws IOException {
+			// 通道内的文件大小可能因写入而大于基础内容，中间未写入的部分为0
+			long end = Math.min(startIndex + size, BaiduPcsFileChannel.this.size);
+			if (startIndex >= end)
+				return new byte[0];
+			byte[] bytes = new byte[(int) (end - startIndex)];
+			fill(bytes, startIndex);
+			return bytes;
+		}
+
+		@Override
+		public synchronized void write(Collection<CacheItem> cacheItems)
+				throws IOException {
+			if (spillFile == null)
+				spillFile = FileChannel.open(
+						Files.createTempFile("baidupcs-", ".spill"), READ,
+						WRITE, DELETE_ON_CLOSE);
+			for (CacheItem item : cacheItems) {
+				ByteBuffer buffer = ByteBuffer.wrap(item.getBytes());
+				while (buffer.hasRemaining())
+					spillFile.write(buffer,
+							item.getStartIndex() + buffer.position());
+				addSpilledRange(item.getStartIndex(), item.getStartIndex()
+						+ item.getBytes().length);
 			}
+		}
 
-			try (BufferedInputStream in = new BufferedInputStream(
-					Files.newInputStream(cacheFilePath, StandardOpenOption.READ))) {
-				service.upload(pathServiceStr, in, Files.size(cacheFilePath),
+		@Override
+		public synchronized void truncate(long size) throws IOException {
+			baseValidSize = Math.min(baseValidSize, size);
+			Map.Entry<Long, Long> lower = spilledRanges.lowerEntry(size);
+			if (lower != null && lower.getValue() > size)
+				spilledRanges.put(lower.getKey(), size);
+			spilledRanges.tailMap(size, true).clear();
+			if (spillFile != null && spillFile.size() > size)
+				spillFile.truncate(size);
+		}
+
+		/**
+		 * 如果云存储中的文件与通道中的内容不一致，则将基础内容与暂存的内容合并，按块上传后重新合并为文件，大小为指定大小。
+		 *
+		 * @param size
+		 *            文件大小
+		 * @throws IOException
+		 */
+		synchronized void commit(long size) throws IOException {
+			if (!needRebuild && spilledRanges.isEmpty() && size == baseSize
+					&& baseValidSize == baseSize)
+				return;
+
+			FileMeta meta;
+			int blockSize = 0;
+			List<String> md5s = null;
+			if (size == 0) {
+				meta = service.upload(pathServiceStr, new byte[0],
+						OnDup.OVERWRITE);
+			} else {
+				BlockUploader uploader = new BlockUploader(service,
+						store.getWriteBlockSize(), 1,
+						BlockUploader.DEFAULT_RETRY_TIMES);
+				blockSize = uploader.blockSizeFor(size);
+				md5s = new ArrayList<>();
+				for (long offset = 0; offset < size; offset += blockSize) {
+					int length = (int) Math.min(blockSize, size - offset);
+					String md5 = unchangedBlockMD5(md5s.size(), blockSize,
+							offset, length);
+					if (md5 == null) {
+						byte[] bytes = new byte[length];
+						fill(bytes, offset);
+						md5 = uploader.uploadBlock(bytes, length);
+					}
+					md5s.add(md5);
+				}
+				meta = service.createSuperFile(pathServiceStr, md5s,
 						OnDup.OVERWRITE);
 			}
-			needCreate = false;
+
+			baseSize = baseValidSize = size;
+			needRebuild = false;
+			spilledRanges.clear();
+			if (spillFile != null)
+				spillFile.truncate(0);
+			lastBlockSize = blockSize;
+			lastBlockMD5s = md5s;
+			// 读缓存已经由视图更新，只需记下新的版本
+			store.getFileAccessor().updateVersion(cachePath,
+					BaiduPcsFileStore.fileVersion(meta));
+		}
+
+		/**
+		 * 删除溢出文件。
+		 *
+		 * @throws IOException
+		 */
+		synchronized void close() throws IOException {
+			if (spillFile != null) {
+				spillFile.close();
+				spillFile = null;
+			}
+		}
+
+		/**
+		 * 将文件从指定位置开始的内容装入字节数组：先装入仍然有效的基础内容（如果没有被暂存的内容完全覆盖），
+		 * 再用暂存的内容覆盖，其余部分为0。
+		 *
+		 * @param bytes
+		 *            字节数组
+		 * @param offset
+		 *            起始位置
+		 * @throws IOException
+		 */
+		private void fill(byte[] bytes, long offset) throws IOException {
+			long end = offset + bytes.length;
+			long baseEnd = Math.min(end, baseValidSize);
+			if (offset < baseEnd && !isSpilled(offset, baseEnd)) {
+				byte[] baseBytes = BaiduPcsReadChannel.downloadRange(service,
+						pathServiceStr, offset, baseEnd);
+				System.arraycopy(baseBytes, 0, bytes, 0, baseBytes.length);
+			}
+
+			for (Map.Entry<Long, Long> range : spilledRangesIn(offset, end)) {
+				long from = Math.max(offset, range.getKey());
+				long to = Math.min(end, range.getValue());
+				ByteBuffer buffer = ByteBuffer.wrap(bytes, (int) (from - offset),
+						(int) (to - from));
+				while (buffer.hasRemaining())
+					if (spillFile.read(buffer, offset + buffer.position()) < 0)
+						throw new EOFException("Spill file is shorter than expected: "
+								+ pathServiceStr);
+			}
+		}
+
+		/**
+		 * 返回上次提交的、此后没有修改的块的MD5。
+		 *
+		 * @return MD5。如果没有提交过，或分块方式不同，或块的位置和长度与上次不同，或块中有截断、暂存的修改，则返回null。
+		 */
+		private String unchangedBlockMD5(int index, int blockSize,
+				long offset, int length) {
+			if (lastBlockMD5s == null || blockSize != lastBlockSize
+					|| index >= lastBlockMD5s.size())
+				return null;
+			if (offset + length > baseValidSize
+					|| Math.min(blockSize, baseSize - offset) != length)
+				return null;
+			return spilledRangesIn(offset, offset + length).isEmpty() ? lastBlockMD5s
+					.get(index) : null;
+		}
+
+		/**
+		 * 加入一个暂存范围，与相交或相接的已有范围合并。
+		 */
+		private void addSpilledRange(long start, long end) {
+			Map.Entry<Long, Long> floor = spilledRanges.floorEntry(start);
+			if (floor != null && floor.getValue() >= start) {
+				start = floor.getKey();
+				end = Math.max(end, floor.getValue());
+			}
+			Map.Entry<Long, Long> next;
+			while ((next = spilledRanges.ceilingEntry(start)) != null
+					&& next.getKey() <= end) {
+				end = Math.max(end, next.getValue());
+				spilledRanges.remove(next.getKey());
+			}
+			spilledRanges.put(start, end);
+		}
+
+		/**
+		 * 返回指定范围是否完全是暂存的内容。范围互不相接，所以只需检查包含起始位置的一个范围。
+		 */
+		private boolean isSpilled(long start, long end) {
+			Map.Entry<Long, Long> floor = spilledRanges.floorEntry(start);
+			return floor != null && floor.getValue() >= end;
+		}
+
+		/**
+		 * 返回与指定范围相交的暂存范围，按起始位置排序。
+		 */
+		private Collection<Map.Entry<Long, Long>> spilledRangesIn(long start,
+				long end) {
+			List<Map.Entry<Long, Long>> ranges = new ArrayList<>();
+			Map.Entry<Long, Long> lower = spilledRanges.lowerEntry(start);
+			if (lower != null && lower.getValue() > start)
+				ranges.add(lower);
+			ranges.addAll(spilledRanges.subMap(start, true, end, false)
+					.entrySet());
+			return ranges;
 		}
 	}
 
@@ -3,35 +3,135 @@ package blove.baidupcs.fs;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.FileStore;
+import java.nio.file.Paths;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.attribute.FileStoreAttributeView;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import retrofit.RestAdapter.LogLevel;
 import blove.baidupcs.api.BaiduPcs;
+import blove.baidupcs.api.BlockUploader;
+import blove.baidupcs.api.PipelinedCopier;
 import blove.baidupcs.api.error.BaiduPcsException;
 import blove.baidupcs.api.error.BaiduPcsFileNotExistsException;
 import blove.baidupcs.api.request.OnDup;
+import blove.baidupcs.api.request.Order;
+import blove.baidupcs.api.request.OrderBy;
+import blove.baidupcs.api.request.RapidUploadRecogInfo;
+import blove.baidupcs.api.response.FileMeta;
 import blove.baidupcs.api.response.FileMetaWithExtra1;
 import blove.baidupcs.api.response.FileMetaWithExtra2;
 import blove.baidupcs.api.response.Quota;
+import blove.baidupcs.fs.util.Batcher;
 import blove.baidupcs.fs.util.Cache;
 import blove.baidupcs.service.request.files.MoveBatchOrCopyBatchParam.FromTo;
+import blove.baidupcs.util.BufferPool;
 
 public class BaiduPcsFileStore extends FileStore {
 	private static final String FILESTORE_TYPE = "baidupcs";
 	/**
-	 * 属性和list缓存超时时间。
+	 * 默认属性缓存超时时间。单位：毫秒。
 	 * 
 	 * @see CachedService
 	 */
-	private static final int META_CACHE_EXPIRE_TIME = 5000;
-
-	private final BaiduPcs service;
+	private static final long DEFAULT_META_CACHE_EXPIRE_TIME = 30000;
+	/**
+	 * 默认属性缓存最大条目数。
+	 * 
+	 * @see CachedService
+	 */
+	private static final int DEFAULT_META_CACHE_SIZE = 10000;
+	/**
+	 * 默认“文件不存在”缓存超时时间。单位：毫秒。
+	 * 
+	 * @see CachedService
+	 */
+	private static final long DEFAULT_NOT_EXISTS_CACHE_EXPIRE_TIME = 1000;
+	/**
+	 * 默认合并获取元信息请求的时间窗口。单位：毫秒。
+	 * 
+	 * @see CachedService
+	 */
+	private static final long DEFAULT_META_BATCH_WINDOW = 2;
+	/**
+	 * 默认合并获取元信息请求时一批的最大路径数。
+	 * 
+	 * @see CachedService
+	 */
+	private static final int DEFAULT_META_BATCH_SIZE = 100;
+	/**
+	 * 默认合并删除、移动、拷贝请求的时间窗口。单位：毫秒。
+	 * 
+	 * @see CachedService
+	 */
+	private static final long DEFAULT_WRITE_BATCH_WINDOW = 10;
+	/**
+	 * 默认合并删除、移动、拷贝请求时一批的最大数量。默认为1，即不合并。
+	 * 
+	 * @see CachedService
+	 */
+	private static final int DEFAULT_WRITE_BATCH_SIZE = 1;
+	/**
+	 * 属性缓存统计信息的属性名，值为{@link Cache.Stats}。
+	 * 
+	 * @see #getAttribute(String)
+	 */
+	public static final String ATTRIBUTE_META_CACHE_STATS = "cache:metaStats";
+	/**
+	 * “文件不存在”缓存统计信息的属性名，值为{@link Cache.Stats}。
+	 * 
+	 * @see #getAttribute(String)
+	 */
+	public static final String ATTRIBUTE_NOT_EXISTS_CACHE_STATS = "cache:notExistsStats";
+	/**
+	 * 共用传输缓冲区池统计信息的属性名，值为{@link BufferPool.Stats}。
+	 * 
+	 * @see #getAttribute(String)
+	 */
+	public static final String ATTRIBUTE_BUFFER_POOL_STATS = "pool:bufferStats";
+	/**
+	 * 默认文件内容缓存总容量。
+	 */
+	private static final long DEFAULT_FILE_CACHE_SIZE = 1024 * 1024 * 64;// 64MB
+	/**
+	 * 默认文件内容写缓存容量。
+	 */
+	private static final long DEFAULT_FILE_WRITE_CACHE_SIZE = 1024 * 1024 * 16;// 16MB
+	/**
+	 * 默认读取文件内容时一次下载的最小字节数。
+	 */
+	private static final int DEFAULT_FILE_READ_MIN_SIZE = 1024 * 1024;// 1MB
+	/**
+	 * 默认顺序写入时同时上传的块数。
+	 */
+	private static final int DEFAULT_WRITE_BLOCKS_IN_FLIGHT = 2;
+	/**
+	 * 默认列出目录时每页的条目数。
+	 */
+	private static final int DEFAULT_LIST_PAGE_SIZE = 1000;
+
+	private final CachedService service;
+	private final long metaCacheExpireTime;
+	private final CachedFileAccessor fileAccessor;
+	private final int writeBlockSize;
+	private final int writeBlocksInFlight;
+	private final int copyBufferCount;
+	private final int listPageSize;
+	private final ExecutorService backgroundExecutor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "baidupcs-background");
+		thread.setDaemon(true);
+		return thread;
+	});
 	private final String appName;
 
 	/**
@@ -43,12 +143,52 @@ public class BaiduPcsFileStore extends FileStore {
 	 *             文件系统根目录路径，此路径以应用目录为根目录。null或空为应用目录。
 	 * @param logLevel
 	 *             打印的日志级别
+	 * @param env
+	 *             新建文件系统时提供的配置。可以为null。
 	 * @throws IOException
 	 */
-	BaiduPcsFileStore(String accessToken, String appName, String dir, LogLevel logLevel) throws IOException {
-		this.service = new CachedService(accessToken, appName, logLevel);
+	BaiduPcsFileStore(String accessToken, String appName, String dir, LogLevel logLevel, Map<String, ?> env)
+			throws IOException {
+		this.metaCacheExpireTime = longEnv(env, BaiduPcsFileSystemProvider.ENV_KEY_META_CACHE_EXPIRE_TIME,
+				DEFAULT_META_CACHE_EXPIRE_TIME);
+		this.service = new CachedService(accessToken, appName, logLevel, metaCacheExpireTime, longEnv(env,
+				BaiduPcsFileSystemProvider.ENV_KEY_NOT_EXISTS_CACHE_EXPIRE_TIME, DEFAULT_NOT_EXISTS_CACHE_EXPIRE_TIME), intEnv(env,
+				BaiduPcsFileSystemProvider.ENV_KEY_META_CACHE_SIZE, DEFAULT_META_CACHE_SIZE), longEnv(env,
+				BaiduPcsFileSystemProvider.ENV_KEY_META_BATCH_WINDOW, DEFAULT_META_BATCH_WINDOW), intEnv(env,
+				BaiduPcsFileSystemProvider.ENV_KEY_META_BATCH_SIZE, DEFAULT_META_BATCH_SIZE), longEnv(env,
+				BaiduPcsFileSystemProvider.ENV_KEY_WRITE_BATCH_WINDOW, DEFAULT_WRITE_BATCH_WINDOW), intEnv(env,
+				BaiduPcsFileSystemProvider.ENV_KEY_WRITE_BATCH_SIZE, DEFAULT_WRITE_BATCH_SIZE));
+		this.writeBlockSize = intEnv(env, BaiduPcsFileSystemProvider.ENV_KEY_WRITE_BLOCK_SIZE,
+				BlockUploader.DEFAULT_BLOCK_SIZE);
+		this.writeBlocksInFlight = intEnv(env, BaiduPcsFileSystemProvider.ENV_KEY_WRITE_BLOCKS_IN_FLIGHT,
+				DEFAULT_WRITE_BLOCKS_IN_FLIGHT);
+		this.copyBufferCount = intEnv(env, BaiduPcsFileSystemProvider.ENV_KEY_COPY_BUFFER_COUNT,
+				PipelinedCopier.DEFAULT_BUFFER_COUNT);
+		this.listPageSize = intEnv(env, BaiduPcsFileSystemProvider.ENV_KEY_LIST_PAGE_SIZE, DEFAULT_LIST_PAGE_SIZE);
+		Object spillFile = env == null ? null : env.get(BaiduPcsFileSystemProvider.ENV_KEY_FILE_SPILL_FILE);
+		this.fileAccessor = new CachedFileAccessor(longEnv(env, BaiduPcsFileSystemProvider.ENV_KEY_FILE_CACHE_SIZE,
+				DEFAULT_FILE_CACHE_SIZE), longEnv(env, BaiduPcsFileSystemProvider.ENV_KEY_FILE_WRITE_CACHE_SIZE,
+				DEFAULT_FILE_WRITE_CACHE_SIZE), intEnv(env, BaiduPcsFileSystemProvider.ENV_KEY_FILE_READ_MIN_SIZE,
+				DEFAULT_FILE_READ_MIN_SIZE), longEnv(env, BaiduPcsFileSystemProvider.ENV_KEY_FILE_OFFHEAP_CACHE_SIZE,
+				0), spillFile == null ? null : Paths.get(spillFile.toString()));
 		this.appName = appName;
 
+		try {
+			createDir(dir);
+		} catch (IOException | RuntimeException e) {
+			try {
+				close();
+			} catch (IOException closeException) {
+				e.addSuppressed(closeException);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * 如果根目录不存在则创建之。
+	 */
+	private void createDir(String dir) throws IOException {
 		List<String> dirItems = clearDirItems(Arrays.asList(dir.split("/")));
 
 		int unexistIndex = dirItems.size();
@@ -72,6 +212,65 @@ public class BaiduPcsFileStore extends FileStore {
 		}
 	}
 
+	/**
+	 * 从env中读取一个正整数配置项。值可以是数字或字符串。
+	 * 
+	 * @param env
+	 *             配置。可以为null。
+	 * @param key
+	 *             配置项
+	 * @param defaultValue
+	 *             未指定时的默认值
+	 * @return 配置值
+	 * @throws IllegalArgumentException
+	 *              配置值不是正整数
+	 */
+	static int intEnv(Map<String, ?> env, String key, int defaultValue) {
+		long value = longEnv(env, key, defaultValue);
+		if (value > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Value of " + key + " is too large: " + value);
+		return (int) value;
+	}
+
+	/**
+	 * 从env中读取一个正整数配置项。值可以是数字或字符串。
+	 * 
+	 * @param env
+	 *             配置。可以为null。
+	 * @param key
+	 *             配置项
+	 * @param defaultValue
+	 *             未指定时的默认值
+	 * @return 配置值
+	 * @throws IllegalArgumentException
+	 *              配置值不是正整数
+	 */
+	static long longEnv(Map<String, ?> env, String key, long defaultValue) {
+		Object value = env == null ? null : env.get(key);
+		if (value == null)
+			return defaultValue;
+		long longValue;
+		try {
+			longValue = value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value of " + key + ": " + value, e);
+		}
+		if (longValue <= 0)
+			throw new IllegalArgumentException("Value of " + key + " must be positive: " + value);
+		return longValue;
+	}
+
+	/**
+	 * 返回文件的版本，用于文件内容缓存判断文件是否变化。以fs_id、修改时间和大小作为版本，文件被替换或修改后版本即不同。
+	 * 
+	 * @param meta
+	 *             文件元信息
+	 * @return 版本
+	 */
+	static Object fileVersion(FileMeta meta) {
+		return meta.getFsID() + ":" + meta.getMtime() + ":" + meta.getSize();
+	}
+
 	/**
 	 * 清除dirItems中的空元素。
 	 * 
@@ -103,24 +302,149 @@ public class BaiduPcsFileStore extends FileStore {
 	}
 
 	/**
-	 * 带有缓存的百度云存储服务。当获取元信息时，元信息将被缓存下来，并保留5秒。因实际应用中获取属性的操作往往很频繁，获取元信息时先到此缓存中查找，
-	 * 若没有再fetch。
+	 * 带有缓存的百度云存储服务。当获取元信息时，元信息将被缓存下来，默认保留30秒、最多10000条。因实际应用中获取属性的操作往往很频繁，
+	 * 获取元信息时先到此缓存中查找，若没有再fetch。多个线程同时获取同一路径的元信息时，只fetch一次。<br>
+	 * 文件不存在的结果也会缓存，默认保留1秒，期间再获取此路径的元信息直接抛出缓存的异常。上传、创建目录、移动、复制时，
+	 * 清除目标路径及其所有上级目录的“不存在”缓存，因此刚刚创建的路径不会被报告为不存在。<br>
+	 * 缓存维护按路径排序的键索引，一个目录下的所有路径在索引中是连续的。移动、删除目录以及覆盖目标时，清除整个子树的缓存。<br>
+	 * list得到的子文件元信息不包含block_list等，因此放在单独的基本元信息缓存中，通过{@link #basicMeta(String)}获取，
+	 * 列出目录之后读取其中各文件的属性不需要再逐个请求。<br>
+	 * 缓存中没有时，短时间内（默认2毫秒）对多个路径的获取请求合并为一次批量获取，每批最多默认100个路径；
+	 * 没有其他进行中的获取请求时立即获取，不等待。<br>
+	 * 删除、移动、拷贝单个文件的请求也可以同样合并为批量请求（默认不合并）。批量请求失败时逐个重新请求，使每个调用者得到各自的异常；
+	 * 批量请求不是原子操作，失败前已完成的部分在重新请求时可能报告文件不存在。
 	 * 
 	 * @author blove
 	 */
 	private static class CachedService extends BaiduPcs {
+		/**
+		 * 元信息版本。每当有文件改变时递增。
+		 */
+		private final AtomicLong generation = new AtomicLong();
 		private final Cache<String, FileMetaWithExtra1> metaCache;
-
-		CachedService(String accessToken, String appName, LogLevel logLevel) {
+		private final Cache<String, BaiduPcsFileNotExistsException> notExistsCache;
+		private final Cache<String, FileMeta> basicMetaCache;
+		private final Batcher<String, FileMetaWithExtra1> metaBatcher;
+		private final Batcher<String, Boolean> deleteBatcher;
+		private final Batcher<FromTo, Boolean> moveBatcher;
+		private final Batcher<FromTo, Boolean> copyBatcher;
+
+		CachedService(String accessToken, String appName, LogLevel logLevel, long metaCacheExpireTime,
+				long notExistsCacheExpireTime, int metaCacheSize, long metaBatchWindow, int metaBatchSize,
+				long writeBatchWindow, int writeBatchSize) {
 			super(accessToken, appName, logLevel);
-			metaCache = new Cache<>(META_CACHE_EXPIRE_TIME);
+			// 修改操作不合并相同的键。一批失败时无法知道哪些已经执行，全部视为未完成，逐个执行以得到各自的结果或异常
+			deleteBatcher = new Batcher<>(writeBatchWindow, writeBatchSize, false, paths -> {
+				try {
+					super.delete(paths);
+					return allDone(paths);
+				} catch (IOException | RuntimeException e) {
+					return Collections.emptyMap();
+				}
+			}, path -> {
+				super.delete(path);
+				return Boolean.TRUE;
+			});
+			moveBatcher = new Batcher<>(writeBatchWindow, writeBatchSize, false, fromTos -> {
+				try {
+					super.move(fromTos);
+					return allDone(fromTos);
+				} catch (IOException | RuntimeException e) {
+					return Collections.emptyMap();
+				}
+			}, fromTo -> {
+				super.move(fromTo.getFrom(), fromTo.getTo());
+				return Boolean.TRUE;
+			});
+			copyBatcher = new Batcher<>(writeBatchWindow, writeBatchSize, false, fromTos -> {
+				try {
+					super.copy(fromTos);
+					return allDone(fromTos);
+				} catch (IOException | RuntimeException e) {
+					return Collections.emptyMap();
+				}
+			}, fromTo -> {
+				super.copy(fromTo.getFrom(), fromTo.getTo());
+				return Boolean.TRUE;
+			});
+			metaBatcher = new Batcher<>(metaBatchWindow, metaBatchSize, paths -> {
+				// 按规范化的路径对应，不依赖返回的顺序，也不依赖请求的路径与返回的路径写法相同
+				Map<String, FileMetaWithExtra1> fetched = new HashMap<>();
+				for (FileMetaWithExtra1 meta : super.meta(paths))
+					fetched.put(normalizePath(meta.getPathInApp()), meta);
+				Map<String, FileMetaWithExtra1> metas = new HashMap<>();
+				for (String path : paths) {
+					FileMetaWithExtra1 meta = fetched.get(normalizePath(path));
+					if (meta != null)
+						metas.put(path, meta);
+				}
+				return metas;
+			}, super::meta);
+			metaCache = new Cache<>(metaCacheExpireTime, metaCacheSize, String::compareTo);
+			notExistsCache = new Cache<>(notExistsCacheExpireTime, metaCacheSize, String::compareTo);
+			basicMetaCache = new Cache<>(metaCacheExpireTime, metaCacheSize, String::compareTo);
+		}
+
+		/**
+		 * 规范化应用内的路径：以"/"开头，没有连续的"/"，除根目录外不以"/"结尾。
+		 */
+		private static String normalizePath(String path) {
+			String normalized = ("/" + path).replaceAll("/+", "/");
+			if (normalized.length() > 1 && normalized.endsWith("/"))
+				normalized = normalized.substring(0, normalized.length() - 1);
+			return normalized;
+		}
+
+		private static <K> Map<K, Boolean> allDone(List<K> keys) {
+			Map<K, Boolean> done = new HashMap<>();
+			for (K key : keys)
+				done.put(key, Boolean.TRUE);
+			return done;
+		}
+
+		/**
+		 * 指定路径的文件已经改变，清除其元信息缓存。如果是目录，其下所有路径的元信息缓存也一并清除。
+		 * 
+		 * @param path
+		 *             路径
+		 */
+		private void changed(String path) {
+			generation.incrementAndGet();
+			notExistsCache.remove(path);
+			if (path.equals("/")) {
+				metaCache.clear();
+				basicMetaCache.clear();
+				return;
+			}
+			metaCache.remove(path);
+			basicMetaCache.remove(path);
+			// "/"的下一个字符是"0"，[path/, path0)正好是path下的所有路径
+			metaCache.removeRange(path + "/", path + "0");
+			basicMetaCache.removeRange(path + "/", path + "0");
+		}
+
+		/**
+		 * 指定路径的文件已经创建（或替换），清除其元信息缓存、其下所有路径的“不存在”缓存（移动或拷贝来的目录带有子路径），
+		 * 及所有上级目录的“不存在”缓存（上级目录会随之自动创建）。
+		 * 
+		 * @param path
+		 *             路径
+		 */
+		private void created(String path) {
+			changed(path);
+			if (path.equals("/"))
+				notExistsCache.clear();
+			else
+				notExistsCache.removeRange(path + "/", path + "0");
+			for (int index = path.lastIndexOf('/'); index > 0; index = path.lastIndexOf('/', index - 1))
+				notExistsCache.remove(path.substring(0, index));
 		}
 
 		@Override
 		public FileMetaWithExtra2 upload(String path, byte[] bytes, OnDup ondup) throws BaiduPcsException,
 				IOException {
 			FileMetaWithExtra2 ret = super.upload(path, bytes, ondup);
-			metaCache.remove(path);
+			created(path);
 			return ret;
 		}
 
@@ -128,7 +452,15 @@ public class BaiduPcsFileStore extends FileStore {
 		public FileMetaWithExtra2 upload(String path, InputStream in, long size, OnDup ondup)
 				throws BaiduPcsException, IOException {
 			FileMetaWithExtra2 ret = super.upload(path, in, size, ondup);
-			metaCache.remove(path);
+			created(path);
+			return ret;
+		}
+
+		@Override
+		public FileMetaWithExtra2 upload(String path, java.nio.file.Path localFile, long offset, long length,
+				OnDup ondup) throws BaiduPcsException, IOException {
+			FileMetaWithExtra2 ret = super.upload(path, localFile, offset, length, ondup);
+			created(path);
 			return ret;
 		}
 
@@ -136,18 +468,75 @@ public class BaiduPcsFileStore extends FileStore {
 		public FileMetaWithExtra2 createSuperFile(String path, List<String> blockList, OnDup ondup)
 				throws BaiduPcsException, IOException {
 			FileMetaWithExtra2 ret = super.createSuperFile(path, blockList, ondup);
-			metaCache.remove(path);
+			created(path);
+			return ret;
+		}
+
+		@Override
+		public FileMetaWithExtra2 rapidUpload(String path, RapidUploadRecogInfo recogInfo, OnDup onDup)
+				throws BaiduPcsException, IOException {
+			FileMetaWithExtra2 ret = super.rapidUpload(path, recogInfo, onDup);
+			created(path);
+			return ret;
+		}
+
+		@Override
+		public FileMetaWithExtra2 mkdir(String path) throws BaiduPcsException, IOException {
+			FileMetaWithExtra2 ret = super.mkdir(path);
+			created(path);
 			return ret;
 		}
 
 		@Override
 		public FileMetaWithExtra1 meta(String path) throws BaiduPcsException, IOException {
-			FileMetaWithExtra1 meta = metaCache.get(path);
-			if (meta == null) {
-				meta = super.meta(path);
-				metaCache.put(path, meta);
+			// 缓存的“不存在”直接抛出。异常对象是共用的
+			BaiduPcsFileNotExistsException notExists = notExistsCache.get(path);
+			if (notExists != null)
+				throw notExists;
+
+			return metaCache.get(path, key -> {
+				// 查询期间如果有文件改变（例如此路径刚被创建），得到的“不存在”可能已经过时，不缓存。
+				// 检查和放入在缓存的锁内进行：文件改变时先递增版本再清除缓存，清除会等到放入之后，所以不会留下过时的结果
+				long loadGeneration = generation.get();
+				try {
+					return metaBatcher.get(key);
+				} catch (BaiduPcsFileNotExistsException e) {
+					synchronized (notExistsCache) {
+						if (generation.get() == loadGeneration)
+							notExistsCache.put(key, e);
+					}
+					throw e;
+				}
+			});
+		}
+
+		/**
+		 * 获取文件或目录的基本元信息（不包含block_list等）。先在list得到的基本元信息缓存中查找，若没有再通过{@link #meta(String)}获取。
+		 * 
+		 * @param path
+		 *             路径
+		 * @return 基本元信息
+		 * @throws BaiduPcsException
+		 * @throws IOException
+		 */
+		FileMeta basicMeta(String path) throws BaiduPcsException, IOException {
+			FileMeta meta = basicMetaCache.get(path);
+			if (meta != null)
+				return meta;
+			return meta(path);
+		}
+
+		@Override
+		public List<FileMetaWithExtra2> list(String path, OrderBy by, Order order, int startIndex, int endIndex)
+				throws BaiduPcsException, IOException {
+			List<FileMetaWithExtra2> metas = super.list(path, by, order, startIndex, endIndex);
+			String parent = path.endsWith("/") ? path : path + "/";
+			for (FileMetaWithExtra2 meta : metas) {
+				String childPath = parent + meta.getFileName();
+				notExistsCache.remove(childPath);
+				basicMetaCache.put(childPath, meta);
 			}
-			return meta;
+			return metas;
 		}
 
 		@Override
@@ -163,11 +552,17 @@ public class BaiduPcsFileStore extends FileStore {
 					metas[i] = meta;
 			}
 
+			if (fetchs.isEmpty())
+				return Arrays.asList(metas);
+
 			List<FileMetaWithExtra1> fetchedMetas = super.meta(fetchs);
 			Iterator<FileMetaWithExtra1> fetchedMetaItr = fetchedMetas.iterator();
 			for (int i = 0; i < metas.length; i++) {
-				if (metas[i] == null)
+				if (metas[i] == null) {
 					metas[i] = fetchedMetaItr.next();
+					notExistsCache.remove(paths.get(i));
+					metaCache.put(paths.get(i), metas[i]);
+				}
 			}
 
 			return Arrays.asList(metas);
@@ -175,28 +570,44 @@ public class BaiduPcsFileStore extends FileStore {
 
 		@Override
 		public void move(String from, String to) throws BaiduPcsException, IOException {
-			super.move(from, to);
-			metaCache.remove(from);
+			moveBatcher.get(new FromTo(from, to));
+			changed(from);
+			created(to);
 		}
 
 		@Override
 		public void move(List<FromTo> fromTos) throws BaiduPcsException, IOException {
 			super.move(fromTos);
+			for (FromTo fromTo : fromTos) {
+				changed(fromTo.getFrom());
+				created(fromTo.getTo());
+			}
+		}
+
+		@Override
+		public void copy(String from, String to) throws BaiduPcsException, IOException {
+			copyBatcher.get(new FromTo(from, to));
+			created(to);
+		}
+
+		@Override
+		public void copy(List<FromTo> fromTos) throws BaiduPcsException, IOException {
+			super.copy(fromTos);
 			for (FromTo fromTo : fromTos)
-				metaCache.remove(fromTo.getFrom());
+				created(fromTo.getTo());
 		}
 
 		@Override
 		public void delete(String path) throws BaiduPcsException, IOException {
-			super.delete(path);
-			metaCache.remove(path);
+			deleteBatcher.get(path);
+			changed(path);
 		}
 
 		@Override
 		public void delete(List<String> paths) throws BaiduPcsException, IOException {
 			super.delete(paths);
 			for (String path : paths)
-				metaCache.remove(path);
+				changed(path);
 		}
 
 	}
@@ -205,6 +616,127 @@ public class BaiduPcsFileStore extends FileStore {
 		return service;
 	}
 
+	/**
+	 * 获取文件或目录的基本元信息，可能来自之前列出目录时的结果，因此不包含block_list等。用于读取文件属性等只需要基本信息的场合。
+	 * 
+	 * @param path
+	 *             服务路径
+	 * @return 基本元信息
+	 * @throws BaiduPcsFileNotExistsException
+	 *              文件不存在
+	 * @throws IOException
+	 */
+	FileMeta basicMeta(String path) throws IOException {
+		return service.basicMeta(path);
+	}
+
+	/**
+	 * 返回元信息版本。通过此文件存储改变任何文件都会使版本递增。
+	 * 
+	 * @return 元信息版本
+	 * @see BaiduPcsPath#withMetaSnapshot(FileMeta, long)
+	 */
+	long metaGeneration() {
+		return service.generation.get();
+	}
+
+	/**
+	 * 判断元信息快照是否仍然可用：未超过元信息缓存超时时间，且此后没有通过此文件存储改变任何文件。
+	 * 
+	 * @param snapshotTime
+	 *             快照时间
+	 * @param snapshotGeneration
+	 *             快照时的元信息版本
+	 * @return 是否可用
+	 */
+	boolean isMetaSnapshotValid(long snapshotTime, long snapshotGeneration) {
+		return System.currentTimeMillis() - snapshotTime <= metaCacheExpireTime
+				&& service.generation.get() == snapshotGeneration;
+	}
+
+	/**
+	 * 返回属性缓存到目前为止的统计信息。
+	 * 
+	 * @return 统计信息
+	 */
+	public Cache.Stats getMetaCacheStats() {
+		return service.metaCache.stats();
+	}
+
+	/**
+	 * 返回“文件不存在”缓存到目前为止的统计信息。
+	 * 
+	 * @return 统计信息
+	 */
+	public Cache.Stats getNotExistsCacheStats() {
+		return service.notExistsCache.stats();
+	}
+
+	/**
+	 * 返回此文件存储中所有文件通道共用的文件内容缓存。
+	 * 
+	 * @return 文件内容缓存
+	 */
+	CachedFileAccessor getFileAccessor() {
+		return fileAccessor;
+	}
+
+	/**
+	 * 返回顺序写入文件时的分块大小。
+	 * 
+	 * @return 分块大小
+	 */
+	int getWriteBlockSize() {
+		return writeBlockSize;
+	}
+
+	/**
+	 * 返回顺序写入文件时同时上传的最大块数。
+	 * 
+	 * @return 块数
+	 */
+	int getWriteBlocksInFlight() {
+		return writeBlocksInFlight;
+	}
+
+	/**
+	 * 返回从其他存储空间拷贝文件到此存储空间时使用的缓冲区数。
+	 * 
+	 * @return 缓冲区数
+	 */
+	int getCopyBufferCount() {
+		return copyBufferCount;
+	}
+
+	/**
+	 * 返回列出目录时每页的条目数。
+	 * 
+	 * @return 条目数
+	 */
+	int getListPageSize() {
+		return listPageSize;
+	}
+
+	/**
+	 * 返回执行后台任务（如预先获取目录的下一页）的线程池。线程都是守护线程，空闲时自动结束。
+	 * 
+	 * @return 线程池
+	 */
+	ExecutorService getBackgroundExecutor() {
+		return backgroundExecutor;
+	}
+
+	/**
+	 * 结束后台线程，并释放文件缓存的堆外空间。文件系统关闭时调用。
+	 * 
+	 * @throws IOException
+	 *              关闭溢出文件错误
+	 */
+	void close() throws IOException {
+		backgroundExecutor.shutdownNow();
+		fileAccessor.close();
+	}
+
 	@Override
 	public String name() {
 		return appName;
@@ -251,9 +783,19 @@ public class BaiduPcsFileStore extends FileStore {
 		return null;
 	}
 
+	/**
+	 * 目前只支持{@link #ATTRIBUTE_META_CACHE_STATS}、{@link #ATTRIBUTE_NOT_EXISTS_CACHE_STATS}和
+	 * {@link #ATTRIBUTE_BUFFER_POOL_STATS}。
+	 */
 	@Override
 	public Object getAttribute(String attribute) throws IOException {
-		throw new UnsupportedOperationException("No FileStoreAttributeViews is supported.");
+		if (ATTRIBUTE_META_CACHE_STATS.equals(attribute))
+			return getMetaCacheStats();
+		if (ATTRIBUTE_NOT_EXISTS_CACHE_STATS.equals(attribute))
+			return getNotExistsCacheStats();
+		if (ATTRIBUTE_BUFFER_POOL_STATS.equals(attribute))
+			return BufferPool.shared().stats();
+		throw new UnsupportedOperationException("Attribute not supported: " + attribute);
 	}
 
 }
@@ -9,6 +9,7 @@ import java.nio.file.WatchService;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -22,6 +23,7 @@ public class BaiduPcsFileSystem extends FileSystem {
 	private final BaiduPcsFileStore store;
 	private final String appName;
 	private final String[] dir;
+	private volatile boolean closed = false;
 
 	/**
 	 * @param provider
@@ -33,11 +35,13 @@ public class BaiduPcsFileSystem extends FileSystem {
 	 *             文件系统根目录路径，此路径以应用目录为根目录。null或空为应用目录。
 	 * @param logLevel
 	 *             打印的日志级别
+	 * @param env
+	 *             新建文件系统时提供的配置。可以为null。
 	 * 
 	 * @throws IOException
 	 */
 	BaiduPcsFileSystem(BaiduPcsFileSystemProvider provider, String accessToken, String appName, List<String> dir,
-			LogLevel logLevel) throws IOException {
+			LogLevel logLevel, Map<String, ?> env) throws IOException {
 		this.provider = provider;
 		this.appName = appName;
 		this.dir = dir == null ? new String[0] : dir.toArray(new String[dir.size()]);
@@ -49,7 +53,7 @@ public class BaiduPcsFileSystem extends FileSystem {
 			for (String dirItem : dir)
 				dirStr.append("/").append(dirItem);
 
-		this.store = new BaiduPcsFileStore(accessToken, appName, dirStr.toString(), logLevel);
+		this.store = new BaiduPcsFileStore(accessToken, appName, dirStr.toString(), logLevel, env);
 	}
 
 	String getAppName() {
@@ -66,19 +70,25 @@ public class BaiduPcsFileSystem extends FileSystem {
 	}
 
 	/**
-	 * 不能关闭文件系统。抛出UnsupportedOperationException。
+	 * 关闭文件系统，结束文件存储的后台线程并释放文件缓存的堆外空间。已关闭时不做任何事。
 	 * 
-	 * @throws UnsupportedOperationException
+	 * @throws IOException
+	 *              关闭溢出文件错误
 	 * @see java.nio.file.FileSystem#close()
 	 */
 	@Override
-	public void close() throws UnsupportedOperationException {
-		throw new UnsupportedOperationException();
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		store.close();
 	}
 
 	@Override
 	public boolean isOpen() {
-		return true;
+		return !closed;
 	}
 
 	@Override
@@ -2,7 +2,6 @@ package blove.baidupcs.fs;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URI;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.AccessDeniedException;
@@ -35,13 +34,19 @@ import java.util.Set;
 
 import retrofit.RestAdapter.LogLevel;
 import blove.baidupcs.api.BaiduPcs;
+import blove.baidupcs.api.BlockUploader;
+import blove.baidupcs.api.PipelinedCopier;
+import blove.baidupcs.api.error.BaiduPcsException;
 import blove.baidupcs.api.error.BaiduPcsFileExistsException;
 import blove.baidupcs.api.error.BaiduPcsFileNotExistsException;
 import blove.baidupcs.api.error.BaiduPcsIllegalFileNameException;
 import blove.baidupcs.api.error.BaiduPcsParentDirNotExistsException;
 import blove.baidupcs.api.error.NoAuthException;
+import blove.baidupcs.api.request.RapidUploadRecogInfo;
+import blove.baidupcs.api.response.FileMeta;
 import blove.baidupcs.api.response.FileMetaWithExtra1;
 import blove.baidupcs.api.response.FileMetaWithExtra2;
+import blove.baidupcs.util.Hashes;
 
 /**
  * 以在百度个人云存储中的某个目录为根目录的文件系统提供者。<br>
@@ -53,6 +58,22 @@ import blove.baidupcs.api.response.FileMetaWithExtra2;
  * DIR：文件系统所在路径，此路径以应用目录为根目录，以斜线为分隔符（可选，默认为应用目录）<br>
  * FILE_PATH：文件路径，以斜线为分隔符<br>
  * env中用"loglevel"作为key，以"none"/"basic"/"headers"/"full"指定打印的日志级别。不指定时默认"none"。<br>
+ * env中用"write_block_size"作为key，指定顺序写入文件时的分块大小（字节），不指定时默认4MB；
+ * 用"write_blocks_in_flight"作为key，指定顺序写入文件时同时上传的最大块数，不指定时默认2。<br>
+ * env中用"copy_buffer_count"作为key，指定从其他存储空间拷贝文件到此文件系统时使用的缓冲区数（每个缓冲区为一个写入分块大小），
+ * 不指定时默认4。<br>
+ * env中用"file_cache_size"、"file_write_cache_size"作为key，指定各个文件通道共用的文件内容缓存总容量和其中写缓存的容量（字节），
+ * 不指定时默认64MB和16MB；用"file_read_min_size"作为key，指定读取文件内容时一次下载的最小字节数，不指定时默认1MB。<br>
+ * env中用"file_offheap_cache_size"作为key，指定堆外读缓存的容量（字节），从堆上淘汰的读缓存移到这里，不指定时不使用堆外读缓存；
+ * 用"file_spill_file"作为key，指定一个本地文件路径，堆外读缓存将映射此文件使用，不指定时使用直接内存。<br>
+ * env中用"meta_cache_expire_time"作为key，指定文件属性缓存的超时时间（毫秒），不指定时默认30秒；
+ * 用"meta_cache_size"作为key，指定文件属性缓存的最大条目数，不指定时默认10000；
+ * 用"not_exists_cache_expire_time"作为key，指定“文件不存在”结果的缓存超时时间（毫秒），不指定时默认1秒。<br>
+ * env中用"meta_batch_window"作为key，指定合并获取元信息请求的时间窗口（毫秒），不指定时默认2毫秒；
+ * 用"meta_batch_size"作为key，指定合并时一批的最大路径数，为1时不合并，不指定时默认100。<br>
+ * env中用"write_batch_size"作为key，指定合并删除、移动、拷贝请求时一批的最大数量，不指定时默认1，即不合并；
+ * 用"write_batch_window"作为key，指定合并的时间窗口（毫秒），不指定时默认10毫秒。<br>
+ * env中用"list_page_size"作为key，指定列出目录时每页的条目数，不指定时默认1000。<br>
  * 示例：baidupcs://abcdefghijklmn:myapp/fs/dir#/somedir/file
  * 
  * @author blove
@@ -66,6 +87,28 @@ public class BaiduPcsFileSystemProvider extends FileSystemProvider {
 	public static final String ENV_VALUE_LOGLEVEL_HEADERS = "headers";
 	public static final String ENV_VALUE_LOGLEVEL_FULL = "full";
 
+	public static final String ENV_KEY_WRITE_BLOCK_SIZE = "write_block_size";
+	public static final String ENV_KEY_WRITE_BLOCKS_IN_FLIGHT = "write_blocks_in_flight";
+	public static final String ENV_KEY_COPY_BUFFER_COUNT = "copy_buffer_count";
+
+	public static final String ENV_KEY_FILE_CACHE_SIZE = "file_cache_size";
+	public static final String ENV_KEY_FILE_WRITE_CACHE_SIZE = "file_write_cache_size";
+	public static final String ENV_KEY_FILE_READ_MIN_SIZE = "file_read_min_size";
+	public static final String ENV_KEY_FILE_OFFHEAP_CACHE_SIZE = "file_offheap_cache_size";
+	public static final String ENV_KEY_FILE_SPILL_FILE = "file_spill_file";
+
+	public static final String ENV_KEY_META_CACHE_EXPIRE_TIME = "meta_cache_expire_time";
+	public static final String ENV_KEY_META_CACHE_SIZE = "meta_cache_size";
+	public static final String ENV_KEY_NOT_EXISTS_CACHE_EXPIRE_TIME = "not_exists_cache_expire_time";
+
+	public static final String ENV_KEY_META_BATCH_WINDOW = "meta_batch_window";
+	public static final String ENV_KEY_META_BATCH_SIZE = "meta_batch_size";
+
+	public static final String ENV_KEY_WRITE_BATCH_WINDOW = "write_batch_window";
+	public static final String ENV_KEY_WRITE_BATCH_SIZE = "write_batch_size";
+
+	public static final String ENV_KEY_LIST_PAGE_SIZE = "list_page_size";
+
 	@Override
 	public String getScheme() {
 		return SCHEME;
@@ -137,7 +180,7 @@ public class BaiduPcsFileSystemProvider extends FileSystemProvider {
 			}
 		}
 
-		return new BaiduPcsFileSystem(this, fsInfo.accessToken, fsInfo.appName, fsInfo.dir, logLevel);
+		return new BaiduPcsFileSystem(this, fsInfo.accessToken, fsInfo.appName, fsInfo.dir, logLevel, env);
 	}
 
 	@Override
@@ -189,6 +232,16 @@ public class BaiduPcsFileSystemProvider extends FileSystemProvider {
 	@Override
 	public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs)
 			throws IOException {
+		// 只读时按需分段下载，不必在打开时下载整个文件
+		if (!options.contains(StandardOpenOption.WRITE) && !options.contains(StandardOpenOption.APPEND)
+				&& !options.contains(StandardOpenOption.DELETE_ON_CLOSE))
+			return new BaiduPcsReadChannel(checkPathType(path));
+		// 不读、不追加、从头写的，边写边分块上传，不必先写到本地临时文件
+		if (!options.contains(StandardOpenOption.READ) && !options.contains(StandardOpenOption.APPEND)
+				&& !options.contains(StandardOpenOption.DELETE_ON_CLOSE)
+				&& (options.contains(StandardOpenOption.TRUNCATE_EXISTING) || options
+						.contains(StandardOpenOption.CREATE_NEW)))
+			return new BaiduPcsWriteChannel(checkPathType(path), options);
 		return new BaiduPcsFileChannel(checkPathType(path), options);
 	}
 
@@ -335,24 +388,17 @@ public class BaiduPcsFileSystemProvider extends FileSystemProvider {
 			boolean copiedPartly = false;// 记录是否拷贝了一部分，失败恢复时应删除
 			try {
 				if (sourceService.equals(targetService)) {
-					// 在一个存储空间，直接调用API移动（可能移动非空目录）
-					sourceService.move(sourcePathServiceStr, targetPathServiceStr);
+					// 在一个存储空间，直接调用API拷贝
+					sourceService.copy(sourcePathServiceStr, targetPathServiceStr);
 				} else {
 					// 不在一个存储空间
 					if (sourceIsDir) {
 						// source是目录，直接创建target目录
 						targetService.mkdir(targetPathServiceStr);
-					} else {
-						// source是文件，从source读入，写出到target
+					} else if (!rapidCopy(sourcePath, targetPath)) {
+						// source是文件，且无法秒传，分块边下载边上传
 						copiedPartly = true;
-						try (OutputStream targetOut = newOutputStream(targetPath);
-								InputStream sourceIn = newInputStream(sourcePath)) {
-							byte[] buf = new byte[1024 * 8];
-							int readOnce;
-							while ((readOnce = sourceIn.read(buf)) >= 0) {
-								targetOut.write(buf, 0, readOnce);
-							}
-						}
+						pipelinedCopy(sourcePath, targetPath);
 					}
 				}
 			} catch (IOException | RuntimeException e) {
@@ -379,6 +425,75 @@ public class BaiduPcsFileSystemProvider extends FileSystemProvider {
 
 	private final Random random = new Random();
 
+	/**
+	 * 尝试通过秒传将一个文件拷贝到另一个存储空间，不需要传输文件内容。<br>
+	 * 文件MD5取自列出目录时得到的元信息（路径带有的快照或基本元信息缓存）；如果没有，则查询文件的元信息，
+	 * 只有一块的文件，其块的MD5即为文件的MD5。校验段MD5通过下载文件的前{@link RapidUploadRecogInfo#SLICE_SIZE}字节计算。
+	 * 文件太小、得不到MD5，或服务器以权限以外的任何原因拒绝秒传（如不认识此内容、识别信息不匹配）时，返回false，由调用者改为传输文件内容。
+	 * 
+	 * @param sourcePath
+	 *             源文件
+	 * @param targetPath
+	 *             目标文件。必须不存在。
+	 * @return 是否拷贝成功
+	 * @throws IOException
+	 *              网络错误等
+	 */
+	private boolean rapidCopy(BaiduPcsPath sourcePath, BaiduPcsPath targetPath) throws IOException {
+		BaiduPcsFileStore sourceStore = getFileStore(sourcePath);
+		String sourcePathServiceStr = sourcePath.toServiceString();
+		FileMeta meta = sourcePath.getMetaSnapshot();
+		if (!(meta instanceof FileMetaWithExtra2))
+			meta = sourceStore.basicMeta(sourcePathServiceStr);
+		if (meta.getSize() < RapidUploadRecogInfo.SLICE_SIZE)
+			return false;
+		String md5;
+		if (meta instanceof FileMetaWithExtra2) {
+			md5 = ((FileMetaWithExtra2) meta).getMd5();
+		} else {
+			List<String> blockList = sourceStore.getService().meta(sourcePathServiceStr).getBlockList();
+			md5 = blockList.size() == 1 ? blockList.get(0) : null;
+		}
+		if (md5 == null || md5.isEmpty())
+			return false;
+
+		RapidUploadRecogInfo recogInfo = new RapidUploadRecogInfo();
+		recogInfo.setContentLength(meta.getSize());
+		recogInfo.setContentMD5(md5);
+		byte[] slice = BaiduPcsReadChannel.downloadRange(sourceStore.getService(), sourcePathServiceStr, 0,
+				RapidUploadRecogInfo.SLICE_SIZE);
+		recogInfo.setSliceMD5(Hashes.md5Hex(slice, 0, slice.length));
+		// CRC32需要完整的文件内容，不提供
+
+		try {
+			serviceOf(targetPath).rapidUpload(targetPath.toServiceString(), recogInfo, null);
+			return true;
+		} catch (NoAuthException e) {
+			throw e;
+		} catch (BaiduPcsException e) {
+			// 秒传只是捷径，被拒绝时改为传输文件内容；网络错误仍然抛出
+			return false;
+		}
+	}
+
+	/**
+	 * 将一个文件拷贝到另一个存储空间，分块并行下载，每块下载完成后立即上传，最后合并。不经过本地临时文件。
+	 * 
+	 * @param sourcePath
+	 *             源文件
+	 * @param targetPath
+	 *             目标文件。必须不存在。
+	 * @throws IOException
+	 *              网络错误等
+	 * @see PipelinedCopier
+	 */
+	private void pipelinedCopy(BaiduPcsPath sourcePath, BaiduPcsPath targetPath) throws IOException {
+		BaiduPcsFileStore targetStore = getFileStore(targetPath);
+		new PipelinedCopier(serviceOf(sourcePath), serviceOf(targetPath), targetStore.getWriteBlockSize(),
+				targetStore.getCopyBufferCount(), BlockUploader.DEFAULT_RETRY_TIMES).copy(
+				sourcePath.toServiceString(), targetPath.toServiceString(), null);
+	}
+
 	@Override
 	public void move(Path source, Path target, CopyOption... options) throws IOException {
 		BaiduPcsPath sourcePath = checkPathType(source);
@@ -458,17 +573,10 @@ public class BaiduPcsFileSystemProvider extends FileSystemProvider {
 					if (sourceIsDir) {
 						// source是目录，直接创建target目录
 						targetService.mkdir(targetPathServiceStr);
-					} else {
-						// source是文件，从source读入，写出到target
+					} else if (!rapidCopy(sourcePath, targetPath)) {
+						// source是文件，且无法秒传，分块边下载边上传
 						copiedPartly = true;
-						try (OutputStream targetOut = newOutputStream(targetPath);
-								InputStream sourceIn = newInputStream(sourcePath)) {
-							byte[] buf = new byte[1024 * 8];
-							int readOnce;
-							while ((readOnce = sourceIn.read(buf)) >= 0) {
-								targetOut.write(buf, 0, readOnce);
-							}
-						}
+						pipelinedCopy(sourcePath, targetPath);
 					}
 				}
 			} catch (IOException | RuntimeException e) {
@@ -533,7 +641,7 @@ public class BaiduPcsFileSystemProvider extends FileSystemProvider {
 	public void checkAccess(Path path, AccessMode... modes) throws IOException {
 		BaiduPcsPath pcsPath = checkPathType(path);
 		try {
-			serviceOf(pcsPath).meta(pcsPath.toServiceString());
+			getFileStore(pcsPath).basicMeta(pcsPath.toServiceString());
 		} catch (BaiduPcsFileNotExistsException e) {
 			throw new NoSuchFileException(path.toString());
 		} catch (IOException e) {
@@ -596,7 +704,7 @@ public class BaiduPcsFileSystemProvider extends FileSystemProvider {
 		new BaiduPcsBasicFileAttributeView(pcsPath).setAttribute(attrName, value);
 	}
 
-	private BaiduPcsPath checkPathType(Path path) throws ProviderMismatchException {
+	static BaiduPcsPath checkPathType(Path path) throws ProviderMismatchException {
 		if (path != null && !(path instanceof BaiduPcsPath))
 			throw new ProviderMismatchException("Param is not an instance of BaiduPcsPath, but of "
 					+ path.getClass().getName());
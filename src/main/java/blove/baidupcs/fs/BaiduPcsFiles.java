@@ -0,0 +1,546 @@
+package blove.baidupcs.fs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import blove.baidupcs.api.BaiduPcs;
+import blove.baidupcs.api.error.BaiduPcsFileNotExistsException;
+import blove.baidupcs.api.error.NoAuthException;
+import blove.baidupcs.api.response.FileMeta;
+import blove.baidupcs.api.response.FileMetaWithExtra2;
+
+/**
+ * 百度云存储文件系统特有的文件操作。
+ *
+ * @author blove
+ */
+public final class BaiduPcsFiles {
+	/**
+	 * 在不同存储空间之间递归拷贝时，遍历源文件树的并行数。
+	 */
+	private static final int COPY_WALK_PARALLELISM = 4;
+
+	private BaiduPcsFiles() {
+	}
+
+	/**
+	 * 递归删除指定的文件或目录。只需一次请求，目录由服务器端整个删除，不需要在客户端遍历。
+	 *
+	 * @param path
+	 *             路径
+	 * @throws NoSuchFileException
+	 *              路径不存在
+	 * @throws AccessDeniedException
+	 *              没有权限
+	 * @throws IOException
+	 *              路径是文件系统的根目录，或网络错误等
+	 */
+	public static void deleteRecursively(Path path) throws IOException {
+		BaiduPcsPath pcsPath = BaiduPcsFileSystemProvider.checkPathType(path);
+		if (pcsPath.toAbsolutePath().normalize().getNameCount() == 0)
+			throw new IOException("Cannot delete the root directory.");
+		BaiduPcsFileStore store = pcsPath.getFileSystem().getFileStore();
+		try {
+			store.getService().delete(pcsPath.toServiceString());
+		} catch (BaiduPcsFileNotExistsException e) {
+			throw new NoSuchFileException(path.toString());
+		} catch (NoAuthException e) {
+			throw new AccessDeniedException(path.toString(), null, "Delete failed");
+		}
+		store.getFileAccessor().invalidate(pcsPath.toAbsolutePath());
+	}
+
+	/**
+	 * 递归拷贝文件或目录。<br>
+	 * 在同一存储空间内时，只需一次请求，由服务器端拷贝整个目录。在不同存储空间之间时，并行遍历源文件树，逐个创建目录、拷贝文件，
+	 * 文件优先尝试秒传。
+	 *
+	 * @param source
+	 *             源路径
+	 * @param target
+	 *             目标路径
+	 * @param options
+	 *             只支持{@link StandardCopyOption#REPLACE_EXISTING}，此时已存在的目标将先被递归删除。
+	 * @throws NoSuchFileException
+	 *              源路径不存在
+	 * @throws FileAlreadyExistsException
+	 *              目标已存在，且未指定REPLACE_EXISTING
+	 * @throws DirectoryNotEmptyException
+	 *              源路径在目标目录之内
+	 * @throws IOException
+	 *              目标在源目录之内，或网络错误等。目标与源路径相同时什么也不做。
+	 */
+	public static void copyRecursively(Path source, Path target, CopyOption... options) throws IOException {
+		transferRecursively(source, target, false, options);
+	}
+
+	/**
+	 * 递归移动文件或目录。<br>
+	 * 在同一存储空间内时，只需一次请求，由服务器端移动整个目录。在不同存储空间之间时，先递归拷贝，再递归删除源路径。
+	 *
+	 * @param source
+	 *             源路径
+	 * @param target
+	 *             目标路径
+	 * @param options
+	 *             只支持{@link StandardCopyOption#REPLACE_EXISTING}，此时已存在的目标将先被递归删除。
+	 * @throws NoSuchFileException
+	 *              源路径不存在
+	 * @throws FileAlreadyExistsException
+	 *              目标已存在，且未指定REPLACE_EXISTING
+	 * @throws DirectoryNotEmptyException
+	 *              源路径在目标目录之内
+	 * @throws IOException
+	 *              目标在源目录之内，或网络错误等。目标与源路径相同时什么也不做。
+	 */
+	public static void moveRecursively(Path source, Path target, CopyOption... options) throws IOException {
+		transferRecursively(source, target, true, options);
+	}
+
+	private static void transferRecursively(Path source, Path target, boolean move, CopyOption... options)
+			throws IOException {
+		BaiduPcsPath sourcePath = BaiduPcsFileSystemProvider.checkPathType(source);
+		BaiduPcsPath targetPath = BaiduPcsFileSystemProvider.checkPathType(target);
+		BaiduPcsFileStore sourceStore = sourcePath.getFileSystem().getFileStore();
+		BaiduPcsFileStore targetStore = targetPath.getFileSystem().getFileStore();
+		boolean replaceExisting = false;
+		for (CopyOption option : options) {
+			if (option == StandardCopyOption.REPLACE_EXISTING)
+				replaceExisting = true;
+			else
+				throw new UnsupportedOperationException(option + " not supported.");
+		}
+
+		try {
+			sourceStore.basicMeta(sourcePath.toServiceString());
+		} catch (BaiduPcsFileNotExistsException e) {
+			throw new NoSuchFileException(source.toString());
+		}
+
+		// 删除已存在的目标之前先确认目标不是源本身，也不在源之内，也不包含源，否则会删除源。
+		// 不同的文件系统可能以同一个准入标识访问同一个应用目录，此时也要检查
+		BaiduPcs sourceService = sourceStore.getService();
+		boolean sameStore = sourceService.equals(targetStore.getService());
+		if (sameStore || sourceService.sameSpaceAs(targetStore.getService())) {
+			String sourceStr = sourcePath.toServiceString();
+			String targetStr = targetPath.toServiceString();
+			if (targetStr.equals(sourceStr))
+				return;
+			if (isAncestor(sourceStr, targetStr))
+				throw new IOException("Target is inside the source: " + target);
+			if (isAncestor(targetStr, sourceStr))
+				throw new DirectoryNotEmptyException(target.toString());
+		}
+
+		boolean targetExists;
+		try {
+			targetStore.basicMeta(targetPath.toServiceString());
+			targetExists = true;
+		} catch (BaiduPcsFileNotExistsException e) {
+			targetExists = false;
+		}
+		if (targetExists) {
+			if (!replaceExisting)
+				throw new FileAlreadyExistsException(target.toString());
+			deleteRecursively(target);
+		}
+
+		if (sameStore) {
+			// 在一个存储空间，服务器端完成
+			if (move) {
+				sourceService.move(sourcePath.toServiceString(), targetPath.toServiceString());
+				sourceStore.getFileAccessor().invalidate(sourcePath.toAbsolutePath());
+			} else {
+				sourceService.copy(sourcePath.toServiceString(), targetPath.toServiceString());
+			}
+			return;
+		}
+
+		// 不在一个存储空间，按先序逐个创建目录、拷贝文件
+		try (Stream<Path> paths = walk(source, COPY_WALK_PARALLELISM, true)) {
+			Iterator<Path> itr = paths.iterator();
+			while (itr.hasNext()) {
+				Path path = itr.next();
+				Path targetChild = target.resolve(sourcePath.relativize(path).toString());
+				if (Files.isDirectory(path))
+					Files.createDirectory(targetChild);
+				else
+					Files.copy(path, targetChild);
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		if (move)
+			deleteRecursively(source);
+	}
+
+	/**
+	 * 判断一个服务器端路径是否在另一个之内（不包括相同的情况）。
+	 */
+	private static boolean isAncestor(String ancestor, String path) {
+		return path.startsWith(ancestor.endsWith("/") ? ancestor : ancestor + "/");
+	}
+
+	/**
+	 * 并行遍历以指定路径为根的文件树。与{@link java.nio.file.Files#walk(Path, java.nio.file.FileVisitOption...)}
+	 * 类似，返回的流包含起始路径本身及其下所有文件和目录，但多个目录同时列出，同时进行的请求数不超过指定的并行数。<br>
+	 * 返回的路径带有列出目录时得到的元信息，读取其基本属性不需要再请求。<br>
+	 * 如果要求保持顺序，则按深度优先的先序返回，与Files.walk一致，即将遍历到的子目录仍然提前并行列出；否则按列出完成的顺序返回，吞吐量最大。<br>
+	 * 两种方式提前列出的结果都有上限，消费者较慢时，后台的列出随之暂停。<br>
+	 * 列出目录出错时，流在遍历到此处时抛出{@link UncheckedIOException}。使用完毕后应关闭返回的流，以结束后台线程。
+	 *
+	 * @param start
+	 *             起始路径
+	 * @param parallelism
+	 *             同时列出的最大目录数
+	 * @param ordered
+	 *             是否保持深度优先的先序
+	 * @return 路径流
+	 * @throws IllegalArgumentException
+	 *              并行数不是正数
+	 * @throws NoSuchFileException
+	 *              起始路径不存在
+	 * @throws IOException
+	 */
+	public static Stream<Path> walk(Path start, int parallelism, boolean ordered) throws IOException {
+		if (parallelism <= 0)
+			throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+		BaiduPcsPath startPath = BaiduPcsFileSystemProvider.checkPathType(start);
+		BaiduPcsFileStore store = startPath.getFileSystem().getFileStore();
+		FileMeta startMeta;
+		try {
+			startMeta = store.basicMeta(startPath.toServiceString());
+		} catch (BaiduPcsFileNotExistsException e) {
+			throw new NoSuchFileException(start.toString());
+		}
+		startPath = startPath.withMetaSnapshot(startMeta, store.metaGeneration());
+
+		if (!startMeta.isDir())
+			return Stream.of(startPath);
+
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+			Thread thread = new Thread(runnable, "baidupcs-walk");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Iterator<Path> iterator;
+		try {
+			Entry startEntry = new Entry(startPath, true);
+			iterator = ordered ? new OrderedWalker(startEntry, store, executor, parallelism)
+					: new UnorderedWalker(startEntry, store, executor, parallelism);
+		} catch (RuntimeException | Error e) {
+			executor.shutdownNow();
+			throw e;
+		}
+		int characteristics = Spliterator.DISTINCT | Spliterator.NONNULL | (ordered ? Spliterator.ORDERED : 0);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, characteristics), false)
+				.onClose(executor::shutdownNow);
+	}
+
+	/**
+	 * 遍历到的一个路径。
+	 */
+	private static class Entry {
+		final BaiduPcsPath path;
+		final boolean isDir;
+
+		Entry(BaiduPcsPath path, boolean isDir) {
+			this.path = path;
+			this.isDir = isDir;
+		}
+	}
+
+	/**
+	 * 列出指定目录，返回的路径带有元信息快照。
+	 */
+	private static List<Entry> listDir(BaiduPcsPath dir, BaiduPcsFileStore store) throws IOException {
+		long generation = store.metaGeneration();
+		List<FileMetaWithExtra2> fileInfos = store.getService().list(dir.toServiceString());
+		List<Entry> children = new ArrayList<>(fileInfos.size());
+		for (FileMetaWithExtra2 fileInfo : fileInfos)
+			children.add(new Entry(((BaiduPcsPath) dir.resolve(fileInfo.getFileName())).withMetaSnapshot(fileInfo,
+					generation), fileInfo.isDir()));
+		return children;
+	}
+
+	/**
+	 * 按深度优先的先序遍历。即将遍历到的目录提前并行列出，遍历到时再等待结果；没有提前列出的目录在遍历到时直接列出。<br>
+	 * 提前列出的目录数不超过并行数的{@value #READ_AHEAD_PER_THREAD}倍，遍历到之后才能再提前列出其他目录，
+	 * 因此消费者较慢时，内存中只有当前路径上的各层列表和有限个提前列出的结果。
+	 */
+	private static class OrderedWalker implements Iterator<Path> {
+		private static final int READ_AHEAD_PER_THREAD = 4;
+
+		private final BaiduPcsFileStore store;
+		private final ExecutorService executor;
+		/**
+		 * 提前列出的许可。提交列出任务时取得，遍历到此目录时归还。
+		 */
+		private final Semaphore readAhead;
+		private final Deque<Cursor> stack = new ArrayDeque<>();
+		private Node next;
+
+		private class Node {
+			final BaiduPcsPath path;
+			final boolean isDir;
+			/**
+			 * 提前提交的列出任务。如果不是目录，或没有提前列出，则为null。只在遍历的线程中访问。
+			 */
+			Future<List<Node>> children;
+
+			Node(Entry entry) {
+				this.path = entry.path;
+				this.isDir = entry.isDir;
+			}
+		}
+
+		/**
+		 * 一个目录的子节点列表，以及遍历和提前列出到的位置。
+		 */
+		private class Cursor {
+			final List<Node> nodes;
+			int index = 0;
+			/**
+			 * 此位置之前的节点都已考虑过是否提前列出。
+			 */
+			int readAheadIndex = 0;
+
+			Cursor(List<Node> nodes) {
+				this.nodes = nodes;
+			}
+		}
+
+		OrderedWalker(Entry start, BaiduPcsFileStore store, ExecutorService executor, int parallelism) {
+			this.store = store;
+			this.executor = executor;
+			this.readAhead = new Semaphore(parallelism * READ_AHEAD_PER_THREAD);
+			this.next = new Node(start);
+			readAhead(next);
+		}
+
+		private List<Node> list(BaiduPcsPath dir) throws IOException {
+			List<Entry> children = listDir(dir, store);
+			List<Node> nodes = new ArrayList<>(children.size());
+			for (Entry child : children)
+				nodes.add(new Node(child));
+			return nodes;
+		}
+
+		/**
+		 * 如果还有许可，则提前提交目录的列出任务。
+		 *
+		 * @return 是否取得了许可
+		 */
+		private boolean readAhead(Node node) {
+			if (!readAhead.tryAcquire())
+				return false;
+			try {
+				node.children = executor.submit(() -> list(node.path));
+			} catch (RejectedExecutionException e) {
+				// 流已关闭
+				readAhead.release();
+			}
+			return true;
+		}
+
+		/**
+		 * 从栈顶开始，按遍历的顺序提前列出后面的目录，直到没有许可。
+		 */
+		private void readAhead() {
+			for (Cursor cursor : stack) {
+				cursor.readAheadIndex = Math.max(cursor.readAheadIndex, cursor.index);
+				while (cursor.readAheadIndex < cursor.nodes.size()) {
+					Node node = cursor.nodes.get(cursor.readAheadIndex);
+					if (node.isDir && node.children == null && !readAhead(node))
+						return;
+					cursor.readAheadIndex++;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null) {
+				Cursor top = stack.peek();
+				if (top == null)
+					return false;
+				if (top.index < top.nodes.size())
+					next = top.nodes.get(top.index++);
+				else
+					stack.pop();
+			}
+			return true;
+		}
+
+		@Override
+		public Path next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Node node = next;
+			next = null;
+			if (node.isDir) {
+				stack.push(new Cursor(getChildren(node)));
+				readAhead();
+			}
+			return node.path;
+		}
+
+		private List<Node> getChildren(Node node) {
+			if (node.children == null) {
+				try {
+					return list(node.path);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			try {
+				return node.children.get();
+			} catch (InterruptedException e) {
+				throw new UncheckedIOException(new InterruptedIOException("Interrupted while walking " + node.path));
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw new UncheckedIOException((IOException) cause);
+				else if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				else if (cause instanceof Error)
+					throw (Error) cause;
+				else
+					throw new RuntimeException(cause);
+			} finally {
+				node.children = null;
+				readAhead.release();
+			}
+		}
+	}
+
+	/**
+	 * 不保持顺序的遍历。各个列出任务把结果放入队列，并提交子目录的列出任务，遍历时从队列中依次取出。<br>
+	 * 队列的容量为并行数的{@value #QUEUE_CAPACITY_PER_THREAD}倍，队列满时列出任务等待消费者取出，不再继续列出，
+	 * 因此消费者较慢时不会把整个文件树读入内存。
+	 */
+	private static class UnorderedWalker implements Iterator<Path> {
+		private static final Object END = new Object();
+		private static final int QUEUE_CAPACITY_PER_THREAD = 1000;
+
+		private final BaiduPcsFileStore store;
+		private final ExecutorService executor;
+		/**
+		 * 元素为路径、列出时的异常，或者表示全部列出完成的{@link #END}。
+		 */
+		private final BlockingQueue<Object> queue;
+		/**
+		 * 还未完成的列出任务数。
+		 */
+		private final AtomicInteger pendingDirs = new AtomicInteger();
+		private Object next;
+		private boolean finished = false;
+
+		UnorderedWalker(Entry start, BaiduPcsFileStore store, ExecutorService executor, int parallelism) {
+			this.store = store;
+			this.executor = executor;
+			this.queue = new ArrayBlockingQueue<>(parallelism * QUEUE_CAPACITY_PER_THREAD);
+			this.next = start.path;
+			submit(start.path);
+		}
+
+		private void submit(BaiduPcsPath dir) {
+			pendingDirs.incrementAndGet();
+			try {
+				executor.execute(() -> list(dir));
+			} catch (RejectedExecutionException e) {
+				// 流已关闭
+				pendingDirs.decrementAndGet();
+			}
+		}
+
+		private void list(BaiduPcsPath dir) {
+			try {
+				try {
+					for (Entry child : listDir(dir, store)) {
+						if (child.isDir)
+							submit(child.path);
+						queue.put(child.path);
+					}
+				} catch (IOException e) {
+					queue.put(e);
+				} catch (RuntimeException | Error e) {
+					queue.put(e);
+					throw e;
+				} finally {
+					if (pendingDirs.decrementAndGet() == 0)
+						queue.put(END);
+				}
+			} catch (InterruptedException e) {
+				// 流已关闭
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next != null)
+				return true;
+			if (finished)
+				return false;
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				finished = true;
+				throw new UncheckedIOException(new InterruptedIOException("Interrupted while walking."));
+			}
+			if (next == END) {
+				next = null;
+				finished = true;
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public Path next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Object element = next;
+			next = null;
+			if (element instanceof IOException) {
+				finished = true;
+				throw new UncheckedIOException((IOException) element);
+			} else if (element instanceof RuntimeException) {
+				finished = true;
+				throw (RuntimeException) element;
+			} else if (element instanceof Error) {
+				finished = true;
+				throw (Error) element;
+			}
+			return (Path) element;
+		}
+	}
+}
@@ -16,19 +16,43 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
+import blove.baidupcs.api.response.FileMeta;
+
 public class BaiduPcsPath extends AbstractNonDefaultFSPath {
 	private final BaiduPcsFileSystem fs;
 	private final boolean absolute;
 	private final List<String> items;
 
+	/**
+	 * 列出目录时得到的元信息快照。可以为null。不参与equals和hashCode。
+	 */
+	private final FileMeta metaSnapshot;
+	private final long metaSnapshotTime;
+	private final long metaSnapshotGeneration;
+
 	BaiduPcsPath(BaiduPcsFileSystem fs, boolean absolute, List<String> items) {
 		this.fs = fs;
 		this.absolute = absolute;
 		this.items = new ArrayList<>(items);
+		this.metaSnapshot = null;
+		this.metaSnapshotTime = 0;
+		this.metaSnapshotGeneration = 0;
+	}
+
+	private BaiduPcsPath(BaiduPcsPath path, FileMeta metaSnapshot, long metaSnapshotGeneration) {
+		this.fs = path.fs;
+		this.absolute = path.absolute;
+		this.items = path.items;
+		this.metaSnapshot = metaSnapshot;
+		this.metaSnapshotTime = System.currentTimeMillis();
+		this.metaSnapshotGeneration = metaSnapshotGeneration;
 	}
 
 	BaiduPcsPath(BaiduPcsFileSystem fs, String pathStr) {
 		this.fs = fs;
+		this.metaSnapshot = null;
+		this.metaSnapshotTime = 0;
+		this.metaSnapshotGeneration = 0;
 
 		this.absolute = pathStr.startsWith(fs.getSeparator());
 
@@ -291,6 +315,33 @@ public class BaiduPcsPath extends AbstractNonDefaultFSPath {
 		return this.toString().compareTo(((BaiduPcsPath) other).toString());
 	}
 
+	/**
+	 * 返回一个带有元信息快照的相同路径。
+	 * 
+	 * @param meta
+	 *             元信息
+	 * @param generation
+	 *             获取元信息之前文件存储的元信息版本
+	 * @return 路径
+	 * @see BaiduPcsFileStore#metaGeneration()
+	 */
+	BaiduPcsPath withMetaSnapshot(FileMeta meta, long generation) {
+		return new BaiduPcsPath(this, meta, generation);
+	}
+
+	/**
+	 * 返回元信息快照。如果没有快照，或快照已超过元信息缓存超时时间，或此后文件存储中有文件发生了改变，则返回null。
+	 * 
+	 * @return 元信息快照
+	 */
+	FileMeta getMetaSnapshot() {
+		if (metaSnapshot == null)
+			return null;
+		if (!fs.getFileStore().isMetaSnapshotValid(metaSnapshotTime, metaSnapshotGeneration))
+			return null;
+		return metaSnapshot;
+	}
+
 	/**
 	 * 返回以文件系统根目录为根目录的路径字符串。
 	 * 
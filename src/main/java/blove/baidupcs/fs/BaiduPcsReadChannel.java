@@ -0,0 +1,183 @@
+package blove.baidupcs.fs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Collection;
+
+import blove.baidupcs.api.BaiduPcs;
+import blove.baidupcs.api.error.BaiduPcsFileNotExistsException;
+import blove.baidupcs.api.response.FileMeta;
+import blove.baidupcs.fs.CachedFileAccessor.AccessorView;
+import blove.baidupcs.fs.CachedFileAccessor.CacheItem;
+import blove.baidupcs.fs.CachedFileAccessor.FileAccessor;
+
+/**
+ * 只读的文件通道。打开时只获取一次元信息，读取时通过分段下载取得需要的部分，并通过文件存储的{@link CachedFileAccessor}缓存已读取的块。
+ *
+ * @author blove
+ */
+public class BaiduPcsReadChannel implements SeekableByteChannel {
+	private final BaiduPcs service;
+	private final String pathServiceStr;
+	private final long size;
+	private final AccessorView view;
+
+	private boolean isOpen = true;
+	private long position = 0;
+
+	BaiduPcsReadChannel(BaiduPcsPath path) throws IOException {
+		BaiduPcsFileStore store = path.getFileSystem().getFileStore();
+		this.service = store.getService();
+		this.pathServiceStr = path.toServiceString();
+
+		FileMeta meta;
+		try {
+			meta = service.meta(pathServiceStr);
+		} catch (BaiduPcsFileNotExistsException e) {
+			throw new NoSuchFileException(path.toString());
+		}
+		if (meta.isDir())
+			throw new IOException("It is a directory: " + path);
+		this.size = meta.getSize();
+
+		Path cachePath = path.toAbsolutePath();
+		this.view = store.getFileAccessor().newView(cachePath, BaiduPcsFileStore.fileVersion(meta),
+				new RangeFileAccessor());
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return isOpen;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		isOpen = false;
+	}
+
+	private void checkOpen() throws ClosedChannelException {
+		if (!isOpen)
+			throw new ClosedChannelException();
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		checkOpen();
+		if (position >= size)
+			return -1;
+		if (!dst.hasRemaining())
+			return 0;
+
+		// 不读超过文件末尾的部分
+		int oriLimit = dst.limit();
+		if (dst.remaining() > size - position)
+			dst.limit(dst.position() + (int) (size - position));
+		int readSize;
+		try {
+			readSize = view.read(position, dst);
+		} finally {
+			dst.limit(oriLimit);
+		}
+		if (readSize == 0)
+			// 文件在打开之后变短了
+			return -1;
+		position += readSize;
+		return readSize;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		checkOpen();
+		return position;
+	}
+
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+		checkOpen();
+		if (newPosition < 0)
+			throw new IllegalArgumentException("Position cannot be negative: " + newPosition);
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public synchronized long size() throws IOException {
+		checkOpen();
+		return size;
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	/**
+	 * 下载文件的指定范围。
+	 *
+	 * @param service
+	 *             百度云存储
+	 * @param pathServiceStr
+	 *             文件路径
+	 * @param start
+	 *             起始位置
+	 * @param end
+	 *             结束位置，不包含。必须大于起始位置，且不超过文件大小。
+	 * @return 下载的内容
+	 * @throws IOException
+	 */
+	static byte[] downloadRange(BaiduPcs service, String pathServiceStr, long start, long end) throws IOException {
+		byte[] bytes = new byte[(int) (end - start)];
+		try (InputStream in = service.download(pathServiceStr, start, end - 1).in()) {
+			int readCount = 0;
+			while (readCount < bytes.length) {
+				int readOnce = in.read(bytes, readCount, bytes.length - readCount);
+				if (readOnce < 0)
+					throw new EOFException("Unexpected end of range " + start + "-" + (end - 1) + ": "
+							+ pathServiceStr);
+				readCount += readOnce;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * 通过分段下载读取文件的FileAccessor。只读。
+	 *
+	 * @author blove
+	 */
+	private class RangeFileAccessor implements FileAccessor {
+
+		@Override
+		public byte[] read(long startIndex, long size) throws IOException {
+			long end = Math.min(startIndex + size, BaiduPcsReadChannel.this.size);
+			if (startIndex >= end)
+				return new byte[0];
+
+			return downloadRange(service, pathServiceStr, startIndex, end);
+		}
+
+		@Override
+		public void write(Collection<CacheItem> cacheItems) throws IOException {
+			throw new NonWritableChannelException();
+		}
+
+		@Override
+		public void truncate(long size) throws IOException {
+			throw new NonWritableChannelException();
+		}
+
+	}
+
+}
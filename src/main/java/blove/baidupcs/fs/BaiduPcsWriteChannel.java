@@ -0,0 +1,257 @@
+package blove.baidupcs.fs;
+
+import static java.nio.file.StandardOpenOption.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import blove.baidupcs.api.BaiduPcs;
+import blove.baidupcs.api.BlockUploader;
+import blove.baidupcs.api.error.BaiduPcsFileNotExistsException;
+import blove.baidupcs.api.request.OnDup;
+import blove.baidupcs.api.response.FileMeta;
+import blove.baidupcs.util.BufferPool;
+
+/**
+ * 顺序写入的文件通道。写入的数据先装满内存中的一个块，每装满一块即在后台通过{@link BaiduPcs#uploadBlock}上传，
+ * 写入者同时继续写入下一块；关闭时通过{@link BaiduPcs#createSuperFile}合并为文件。<br>
+ * 同时上传的块数有上限，达到上限时写入会阻塞，直到有块上传完成。因此占用的内存不超过（上限+1）个块。<br>
+ * 只能从头顺序写入，文件大小不能超过分块大小乘以{@link BlockUploader#MAX_BLOCK_COUNT}。
+ *
+ * @author blove
+ */
+public class BaiduPcsWriteChannel implements SeekableByteChannel {
+	private final String pathServiceStr;
+	private final BaiduPcs service;
+	private final BlockUploader uploader;
+	private final int blockSize;
+
+	private final ExecutorService executor;
+	private final Semaphore inFlight;
+	private final List<Future<String>> blockFutures = new ArrayList<>();
+
+	private boolean isOpen = true;
+	private byte[] block;
+	private int blockFill = 0;
+	private long size = 0;
+
+	BaiduPcsWriteChannel(BaiduPcsPath path, Set<? extends OpenOption> options) throws IOException {
+		BaiduPcsFileStore store = path.getFileSystem().getFileStore();
+		this.pathServiceStr = path.toServiceString();
+		this.service = store.getService();
+		this.blockSize = store.getWriteBlockSize();
+		this.uploader = new BlockUploader(service, blockSize, 1, BlockUploader.DEFAULT_RETRY_TIMES);
+
+		boolean createNew = options.contains(CREATE_NEW);
+		boolean create = options.contains(CREATE);
+
+		// 检查文件是否存在
+		boolean alreadyExists;
+		try {
+			FileMeta meta = service.meta(pathServiceStr);
+			if (meta.isDir())// 不可以是目录
+				throw new IOException("It is a directory: " + path);
+			alreadyExists = true;
+		} catch (BaiduPcsFileNotExistsException e) {
+			alreadyExists = false;
+		}
+
+		// 如果指定了CREATE_NEW，则必须保证文件不存在
+		if (createNew && alreadyExists)
+			throw new FileAlreadyExistsException(path.toString());
+
+		// 如果CREATE和CREATE_NEW都未指定，则必须保证文件存在
+		if (!(create || createNew) && !alreadyExists)
+			throw new NoSuchFileException(path.toString());
+
+		int blocksInFlight = store.getWriteBlocksInFlight();
+		this.inFlight = new Semaphore(blocksInFlight);
+		this.executor = Executors.newFixedThreadPool(blocksInFlight, runnable -> {
+			Thread thread = new Thread(runnable, "baidupcs-upload");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return isOpen;
+	}
+
+	private void checkOpen() throws ClosedChannelException {
+		if (!isOpen)
+			throw new ClosedChannelException();
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		throw new NonReadableChannelException();
+	}
+
+	@Override
+	public synchronized int write(ByteBuffer src) throws IOException {
+		checkOpen();
+		int writeSize = src.remaining();
+		if (size + writeSize > (long) blockSize * BlockUploader.MAX_BLOCK_COUNT)
+			throw new IOException("File is too large to write by blocks of " + blockSize + " bytes: "
+					+ pathServiceStr);
+
+		while (src.hasRemaining()) {
+			if (block == null) {
+				block = BufferPool.shared().acquire(blockSize);
+				blockFill = 0;
+			}
+			int putSize = Math.min(blockSize - blockFill, src.remaining());
+			src.get(block, blockFill, putSize);
+			blockFill += putSize;
+			if (blockFill == blockSize)
+				shipBlock();
+		}
+		size += writeSize;
+		return writeSize;
+	}
+
+	/**
+	 * 将当前块交给后台上传。如果同时上传的块数已达上限，则等待直到有块上传完成。
+	 *
+	 * @throws IOException
+	 *              已有块上传失败，或等待被中断
+	 */
+	private void shipBlock() throws IOException {
+		checkFailedBlocks();
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for uploading blocks.");
+		}
+
+		final byte[] bytes = block;
+		final int length = blockFill;
+		block = null;
+		blockFill = 0;
+		try {
+			blockFutures.add(executor.submit(() -> {
+				try {
+					return uploader.uploadBlock(bytes, length);
+				} finally {
+					BufferPool.shared().release(bytes);
+					inFlight.release();
+				}
+			}));
+		} catch (RuntimeException e) {
+			inFlight.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * 检查已经完成的块，如果有上传失败的，则抛出其异常，尽早结束写入。
+	 *
+	 * @throws IOException
+	 */
+	private void checkFailedBlocks() throws IOException {
+		for (Future<String> future : blockFutures)
+			if (future.isDone())
+				getBlockMD5(future);
+	}
+
+	private String getBlockMD5(Future<String> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for uploading blocks.");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			else
+				throw new RuntimeException(cause);
+		}
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		checkOpen();
+		return size;
+	}
+
+	/**
+	 * 只能顺序写入，因此只能“设置”为当前位置。
+	 *
+	 * @throws UnsupportedOperationException
+	 *              新位置不是当前位置
+	 */
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+		checkOpen();
+		if (newPosition != size)
+			throw new UnsupportedOperationException("Only sequential writing is supported.");
+		return this;
+	}
+
+	@Override
+	public synchronized long size() throws IOException {
+		checkOpen();
+		return size;
+	}
+
+	/**
+	 * 只能顺序写入，因此只能“截断”到不小于当前大小，这时什么也不做。
+	 *
+	 * @throws UnsupportedOperationException
+	 *              截断到的大小小于当前大小
+	 */
+	@Override
+	public synchronized SeekableByteChannel truncate(long size) throws IOException {
+		checkOpen();
+		if (size < this.size)
+			throw new UnsupportedOperationException("Only sequential writing is supported.");
+		return this;
+	}
+
+	/**
+	 * 上传最后一块，等待所有块上传完成，合并为文件。
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (!isOpen)
+			return;
+		isOpen = false;
+		try {
+			if (size == 0) {
+				service.upload(pathServiceStr, new byte[0], OnDup.OVERWRITE);
+				return;
+			}
+
+			if (blockFill > 0)
+				shipBlock();
+			List<String> md5s = new ArrayList<>(blockFutures.size());
+			for (Future<String> future : blockFutures)
+				md5s.add(getBlockMD5(future));
+			service.createSuperFile(pathServiceStr, md5s, OnDup.OVERWRITE);
+		} finally {
+			block = null;
+			executor.shutdownNow();
+		}
+	}
+
+}
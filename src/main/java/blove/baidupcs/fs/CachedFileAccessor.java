@@ -1,23 +1,24 @@
 package blove.baidupcs.fs;
 
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.NavigableMap;
 import java.util.Set;
-import java.util.TreeSet;
-import java.util.WeakHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * 带有缓存的文件读写工具。<br>
@@ -25,28 +26,72 @@ import java.util.stream.Stream;
  * AccessorView向使用者提供此类的功能。所有使用者共用一个读缓存，每个使用者独用自己的写缓存。<br>
  * 缓存有两个容量，分别是缓存总容量和写缓存容量，由构造方法的参数设定，写缓存容量不能超过缓存总容量。缓存总大小等于读缓存和各个使用者的写缓存大小之总和，
  * 写缓存大小等于各个使用者的写缓存大小之和
- * 。当缓存总大小到达缓存总容量时，最长时间未访问的读缓存会被清除；当写缓存大小到达写缓存容量时，写缓存最大的使用者的写缓存会被写出。
- * 
+ * 。当缓存总大小到达缓存总容量时，最长时间未访问的读缓存会被清除；当写缓存大小到达写缓存容量时，正在写入的使用者先将自己的写缓存写出再返回。
+ * 写缓存只由其所属的使用者访问，不会由其他使用者的线程写出。<br>
+ * 每个文件的读缓存和每个使用者的写缓存都是以起始位置为key的有序映射，其中的item互不重叠，查找某个位置或某个范围的item只需O(log n)。
+ * 多个视图可能同时读入同一文件相近的位置，所以新读入的数据放入读缓存时裁掉与已有item重叠的部分；读入期间文件被写出或截断时，
+ * 读入的数据可能已过时，不放入读缓存。
+ * 首尾相接的小item会合并为一个，合并后不超过{@link #COALESCE_MAX_SIZE}。<br>
+ * 读缓存和写缓存的字节数在插入和删除时即时累计，不需要遍历item或视图计算。读缓存item按CLOCK算法淘汰：
+ * 命中时只设置访问标记，淘汰时从环上依次检查，有标记的清除标记后放回，没有标记的淘汰，均摊O(1)。
+ * 环是串在item上的双向链表，item从读缓存中删除（被替换、合并、截断或随版本清除）时立即从环上摘下，不会滞留在环上占用内存。
+ * 读缓存的修改、字节数的累计和环的操作在同一个锁中进行，三者始终一致；查找读缓存不需要加锁。<br>
+ * 可以指定一个堆外的第二层读缓存（{@link OffHeapCache}），从堆上淘汰的读缓存item移到堆外，以较小的堆容纳较大的缓存。
+ * 移到堆外与写出时删除堆外的相关部分都在读缓存的锁中进行，淘汰的item不会在写出之后才带着旧数据移到堆外。
+ *
  * @author blove
  */
-// TODO 监控文件变化，清除有变化的文件的读缓存。但要注意，自己的修改不要导致读缓存删除。
 public class CachedFileAccessor {
+	/**
+	 * 相邻item合并后的最大字节数。合并需要复制数据，所以只合并较小的item，避免连续的小写入反复复制大数组。
+	 */
+	static final int COALESCE_MAX_SIZE = 1024 * 64;
+
 	private long totalCacheLimit;
 	private long writeCacheLimit;
 	private int readMinSize;
 
+	/**
+	 * 堆外的第二层读缓存。如果为null则不使用。
+	 */
+	private final OffHeapCache offHeapCache;
+
 	/**
 	 * 所有View公用的读缓存。
 	 */
-	private final Map<Path, Set<CacheItem>> readCache = Collections
-			.synchronizedMap(new HashMap<>());
+	private final Map<Path, FileReadCache> readCache = new ConcurrentHashMap<>();
+
+	/**
+	 * 读缓存的总字节数。
+	 */
+	private final AtomicLong readCacheSize = new AtomicLong();
+
+	/**
+	 * 读缓存的锁。对读缓存映射的修改、读缓存字节数的累计以及对CLOCK环的操作都在此锁上同步。
+	 */
+	private final Object readCacheLock = new Object();
+	/**
+	 * CLOCK淘汰用的环的头和尾。环按加入顺序串起读缓存中的item，淘汰时从头开始检查，新item和获得第二次机会的item放到尾。
+	 */
+	private CacheItem clockHead, clockTail;
+
+	/**
+	 * 各文件读缓存对应的文件版本。新建视图时如果指定的版本与此不同，说明文件已经变化，清除其读缓存。
+	 */
+	private final Map<Path, Object> readCacheVersions = new HashMap<>();
 
 	/**
-	 * 现有的views。view的逻辑保证当view有写缓存时，即存在于此集合中，否则不存在于此集合中。另外，此集合使用弱引用，
-	 * 以保证view中存在写缓存但使用者将其废弃的情况下，该view可以随垃圾回收自动从此集合中移除。
+	 * 各个视图写缓存的总字节数。
 	 */
-	private final Set<AccessorView> currentViews = Collections
-			.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+	private final AtomicLong writeCacheSize = new AtomicLong();
+
+	/**
+	 * 现有视图的弱引用。使用者将存在写缓存的视图废弃时，视图随垃圾回收清除，其弱引用进入队列，
+	 * 此时将其写缓存大小从总字节数中扣除。弱引用本身需要由此集合保持可达，才能进入队列。
+	 */
+	private final Set<ViewReference> viewReferences = ConcurrentHashMap
+			.newKeySet();
+	private final ReferenceQueue<AccessorView> discardedViews = new ReferenceQueue<>();
 
 	/**
 	 * 创建一个实例。
@@ -62,6 +107,37 @@ public class CachedFileAccessor {
 	 */
 	public CachedFileAccessor(long totalCacheSize, long writeCacheLimit,
 			int readMinSize) {
+		this(totalCacheSize, writeCacheLimit, readMinSize, null);
+	}
+
+	/**
+	 * 创建一个带有堆外第二层读缓存的实例。
+	 * 
+	 * @param totalCacheSize
+	 *            堆上缓存总容量
+	 * @param writeCacheLimit
+	 *            写缓存容量
+	 * @param readMinSize
+	 *            一次实际读取的最小字节数
+	 * @param offHeapCacheSize
+	 *            堆外读缓存容量。如果为0则不使用堆外读缓存。
+	 * @param spillFile
+	 *            堆外读缓存使用的溢出文件。如果为null则使用直接内存。
+	 * @throws IllegalArgumentException
+	 *             任何一个容量为负数，或写缓存容量大于缓存总容量
+	 * @throws IOException
+	 *             创建溢出文件错误
+	 */
+	public CachedFileAccessor(long totalCacheSize, long writeCacheLimit,
+			int readMinSize, long offHeapCacheSize, Path spillFile)
+			throws IOException {
+		this(totalCacheSize, writeCacheLimit, readMinSize,
+				offHeapCacheSize > 0 ? new OffHeapCache(offHeapCacheSize,
+						spillFile) : null);
+	}
+
+	private CachedFileAccessor(long totalCacheSize, long writeCacheLimit,
+			int readMinSize, OffHeapCache offHeapCache) {
 		if (totalCacheSize < 0 || writeCacheLimit < 0)
 			throw new IllegalArgumentException("Cache size cannot be negative.");
 		if (writeCacheLimit > totalCacheSize)
@@ -71,6 +147,7 @@ public class CachedFileAccessor {
 		this.totalCacheLimit = totalCacheSize;
 		this.writeCacheLimit = writeCacheLimit;
 		this.readMinSize = readMinSize > 0 ? readMinSize : 0;
+		this.offHeapCache = offHeapCache;
 	}
 
 	/**
@@ -87,136 +164,365 @@ public class CachedFileAccessor {
 	}
 
 	/**
-	 * 从指定缓存item集合中查找包含指定范围内任意字节的item。
+	 * 新建一个指定路径文件的缓存视图，并检查文件版本。如果此文件已有的读缓存属于其他版本，则先清除之。
+	 * 
+	 * @param path
+	 *            路径
+	 * @param version
+	 *            文件当前的版本，可以是任何能用equals比较的对象，例如由修改时间和大小组成的字符串
+	 * @param fileAccessor
+	 *            文件访问工具
+	 * @return 视图实例
+	 */
+	public AccessorView newView(Path path, Object version,
+			FileAccessor fileAccessor) {
+		synchronized (readCacheVersions) {
+			Object oldVersion = readCacheVersions.put(path, version);
+			if (oldVersion != null && !oldVersion.equals(version))
+				dropReadItems(path);
+		}
+		return new AccessorView(path, fileAccessor);
+	}
+
+	/**
+	 * 更新指定路径文件的版本，而不清除其读缓存。用于使用者自己修改了文件，且已经通过视图更新了读缓存的情况。
+	 * 
+	 * @param path
+	 *            路径
+	 * @param version
+	 *            文件修改后的版本
+	 */
+	public void updateVersion(Path path, Object version) {
+		synchronized (readCacheVersions) {
+			readCacheVersions.put(path, version);
+		}
+	}
+
+	/**
+	 * 清除指定路径文件的读缓存。
+	 * 
+	 * @param path
+	 *            路径
+	 */
+	public void invalidate(Path path) {
+		synchronized (readCacheVersions) {
+			readCacheVersions.remove(path);
+			dropReadItems(path);
+		}
+	}
+
+	/**
+	 * 释放堆外读缓存占用的直接内存或溢出文件。关闭后不能再使用此实例。
+	 * 
+	 * @throws IOException
+	 *             关闭溢出文件错误
+	 */
+	public void close() throws IOException {
+		if (offHeapCache != null)
+			offHeapCache.close();
+	}
+
+	/**
+	 * 从指定缓存item映射中查找包含指定范围内任意字节的item。
 	 * 
 	 * @param source
-	 *            缓存item集合。如果为null则视为没找到。
+	 *            缓存item映射。如果为null则视为没找到。
 	 * @param startIndex
 	 *            起始索引
 	 * @param size
 	 *            范围大小
-	 * @return 此范围相关的item集合。如果没找到则返回空集合。
+	 * @return 此范围相关的item，按起始位置排序。如果没找到则返回空集合。
 	 */
-	private static Set<CacheItem> findItemsInRange(Set<CacheItem> source,
-			long startIndex, long size) {
+	private static Collection<CacheItem> findItemsInRange(
+			NavigableMap<Long, CacheItem> source, long startIndex, long size) {
 		if (source == null || source.isEmpty())
-			return Collections.emptySet();
-		return source
-				.stream()
-				.filter(item -> item.startIndex < startIndex + size
-						&& item.startIndex + item.bytes.length > startIndex)
-				.sorted().collect(Collectors.toSet());
+			return Collections.emptyList();
+		long endIndex = size > Long.MAX_VALUE - startIndex ? Long.MAX_VALUE
+				: startIndex + size;
+
+		// item互不重叠，起始位置之前的item只有最近的一个可能与范围相交
+		long fromKey = startIndex;
+		Map.Entry<Long, CacheItem> floor = source.floorEntry(startIndex);
+		if (floor != null && floor.getValue().endIndex() > startIndex)
+			fromKey = floor.getKey();
+		return source.subMap(fromKey, true, endIndex, false).values();
 	}
 
 	/**
-	 * 从指定缓存item集合中查找包含指定位置的item，如果不存在则查找指定位置之后最近的item，如果再不存在则返回null。
+	 * 从指定缓存item映射中查找包含指定位置的item，如果不存在则查找指定位置之后最近的item，如果再不存在则返回null。
 	 * 
 	 * @param source
-	 *            缓存item集合。如果为null则视为没找到。
+	 *            缓存item映射。如果为null则视为没找到。
 	 * @param position
 	 *            查找位置
 	 * @return 见方法描述
 	 */
 	private static CacheItemForPosition findItemForPosition(
-			Set<CacheItem> source, long position) {
+			NavigableMap<Long, CacheItem> source, long position) {
 		if (source == null || source.isEmpty())
 			return null;
-		Optional<CacheItem> foundItem = source.stream()
-				.filter(item -> item.startIndex + item.bytes.length > position)
-				.min(Comparator.naturalOrder());
-		if (!foundItem.isPresent())
+		Map.Entry<Long, CacheItem> floor = source.floorEntry(position);
+		if (floor != null && floor.getValue().endIndex() > position)
+			return new CacheItemForPosition(position,
+					(int) (position - floor.getKey()), floor.getValue());
+		Map.Entry<Long, CacheItem> higher = source.higherEntry(position);
+		if (higher == null)
 			return null;
-		CacheItem item = foundItem.get();
-		return new CacheItemForPosition(position,
-				(int) (position - item.startIndex), item);
+		// 距离很远时，偏移量限制在int范围内，不影响按此计算的读写字节数
+		long offset = Math.max(position - higher.getKey(), -Integer.MAX_VALUE);
+		return new CacheItemForPosition(position, (int) offset,
+				higher.getValue());
 	}
 
 	/**
-	 * 计算指定缓存item集合的总大小。
+	 * 将指定item与映射中首尾相接的前后item合并，合并后的item不超过{@link #COALESCE_MAX_SIZE}。合并不改变总字节数。
+	 * 对于读缓存，调用者需要在{@link #readCacheLock}上同步，查找前后item到替换完成之间映射不会被其他线程修改。
 	 * 
 	 * @param items
-	 *            缓存item集合
-	 * @return 总大小
-	 */
-	private static long countItemsSize(Collection<CacheItem> items) {
-		if (items == null || items.isEmpty())
-			return 0;
-		return items.parallelStream().mapToLong(item -> item.bytes.length)
-				.sum();
+	 *            缓存item映射，必须包含指定item
+	 * @param item
+	 *            item
+	 * @param isReadCache
+	 *            是否是读缓存。读缓存需要更新CLOCK环。
+	 */
+	private void coalesce(NavigableMap<Long, CacheItem> items, CacheItem item,
+			boolean isReadCache) {
+		CacheItem merged = item;
+		List<CacheItem> replaced = new LinkedList<>();
+		replaced.add(item);
+
+		Map.Entry<Long, CacheItem> lower = items.lowerEntry(item.startIndex);
+		if (lower != null && lower.getValue().endIndex() == item.startIndex
+				&& lower.getValue().bytes.length + item.bytes.length <= COALESCE_MAX_SIZE) {
+			merged = concat(lower.getValue(), merged);
+			replaced.add(lower.getValue());
+		}
+
+		Map.Entry<Long, CacheItem> higher = items.higherEntry(item.startIndex);
+		if (higher != null && higher.getKey() == item.endIndex()
+				&& merged.bytes.length + higher.getValue().bytes.length <= COALESCE_MAX_SIZE) {
+			merged = concat(merged, higher.getValue());
+			replaced.add(higher.getValue());
+		}
+
+		if (merged == item)
+			return;
+
+		// 先放入合并后的item再删除被合并的，并发读取者总能找到数据
+		items.put(merged.startIndex, merged);
+		for (CacheItem oldItem : replaced)
+			if (oldItem.startIndex != merged.startIndex)
+				items.remove(oldItem.startIndex, oldItem);
+		if (isReadCache) {
+			for (CacheItem oldItem : replaced)
+				unlinkFromClock(oldItem);
+			linkToClock(merged);
+		}
 	}
 
 	/**
-	 * 判断指定缓存item集合是否全是空的。
+	 * 向指定文件的读缓存中加入一个item，累计读缓存大小并放入CLOCK环。如果已有相同起始位置的item，将其替换。
+	 * 调用者需要在{@link #readCacheLock}上同步。
 	 * 
 	 * @param items
-	 *            缓存item集合
-	 * @return
+	 *            文件的读缓存
+	 * @param item
+	 *            新item
 	 */
-	private static boolean isItemsEmpty(Collection<CacheItem> items) {
-		if (items == null || items.isEmpty())
-			return true;
-		return items.parallelStream().allMatch(item -> item.bytes.length == 0);
+	private void addReadItem(NavigableMap<Long, CacheItem> items, CacheItem item) {
+		CacheItem oldItem = items.put(item.startIndex, item);
+		if (oldItem != null && oldItem != item) {
+			unlinkFromClock(oldItem);
+			readCacheSize.addAndGet(-oldItem.bytes.length);
+		}
+		readCacheSize.addAndGet(item.bytes.length);
+		linkToClock(item);
 	}
 
 	/**
-	 * 检查写缓存总大小。如果写缓存大小到达写缓存容量，将写缓存最大的若干使用者的写缓存写出。
+	 * 向指定文件的读缓存中加入新读入的item，裁掉与已有item重叠的部分，使item互不重叠，然后与首尾相接的前后item合并。
+	 * 调用者需要在{@link #readCacheLock}上同步。
+	 * 
+	 * @param items
+	 *            文件的读缓存
+	 * @param item
+	 *            新读入的item
 	 */
-	private synchronized void checkWriteCacheSize() {
-		// 检查是否超出以及超出的字节数
-		long size = currentViews.parallelStream()
-				.mapToLong(view -> countItemsSize(view.writeCache)).sum();
-		final AtomicLong beyondSize = new AtomicLong(size - writeCacheLimit);// 用AtomicLong是因为下面要在Lambda表达式里用，需要是final的
-		if (beyondSize.get() <= 0)
-			// 没超出限制
+	private void insertReadItem(NavigableMap<Long, CacheItem> items,
+			CacheItem item) {
+		long start = item.startIndex;
+		long end = item.endIndex();
+		Map.Entry<Long, CacheItem> floor = items.floorEntry(start);
+		if (floor != null)
+			start = Math.max(start, floor.getValue().endIndex());
+		Long ceiling = items.ceilingKey(start);
+		if (ceiling != null)
+			end = Math.min(end, ceiling);
+		if (start >= end)
 			return;
 
-		// 超出限制了，flush一部分读缓存
-		currentViews.parallelStream()
-				// 计算所有view的写缓存大小
-				.collect(
-						Collectors.toMap(
-								view -> countItemsSize(view.writeCache),
-								view -> view)).entrySet().parallelStream()
-				// 从大到小排序
-				.sorted(Comparator.comparingLong(entry -> -entry.getKey()))
-				// 找出写缓存最大的若干个，直到写缓存总大小不超限制
-				.forEachOrdered(entry -> {
-					if (beyondSize.getAndAdd(-entry.getKey()) > 0) {
-						// TODO 异常因为在lambda表达式里，未处理
-						try {
-							entry.getValue().flush();
-						} catch (IOException e) {
-							e.printStackTrace();
-						}
-					}
-				});
+		CacheItem clipped = item;
+		if (start != item.startIndex || end != item.endIndex())
+			clipped = new CacheItem(item.path, start, Arrays.copyOfRange(
+					item.bytes, (int) (start - item.startIndex),
+					(int) (end - item.startIndex)));
+		addReadItem(items, clipped);
+		coalesce(items, clipped, true);
+	}
+
+	/**
+	 * 从指定文件的读缓存中删除一个item，累计读缓存大小。调用者需要在{@link #readCacheLock}上同步。
+	 * 
+	 * @param items
+	 *            文件的读缓存
+	 * @param item
+	 *            要删除的item
+	 * @return 是否删除了。如果映射中此位置已经不是此item则不删除。
+	 */
+	private boolean removeReadItem(NavigableMap<Long, CacheItem> items,
+			CacheItem item) {
+		if (!items.remove(item.startIndex, item))
+			return false;
+		unlinkFromClock(item);
+		readCacheSize.addAndGet(-item.bytes.length);
+		return true;
+	}
+
+	/**
+	 * 删除指定文件的全部读缓存。
+	 * 
+	 * @param path
+	 *            路径
+	 */
+	private void dropReadItems(Path path) {
+		synchronized (readCacheLock) {
+			if (offHeapCache != null)
+				offHeapCache.drop(path);
+			FileReadCache fileCache = readCache.remove(path);
+			if (fileCache == null)
+				return;
+			for (CacheItem item : fileCache.items.values()) {
+				unlinkFromClock(item);
+				readCacheSize.addAndGet(-item.bytes.length);
+			}
+		}
 	}
 
 	/**
-	 * 检查缓存总大小。如果缓存总大小超过缓存总容量，清除最长时间未访问的读缓存。
+	 * 将item放到CLOCK环的尾。调用者需要在{@link #readCacheLock}上同步。
 	 */
-	private synchronized void checkTotalCacheSize() {
-		// 检查是否超出以及超出的字节数
-		long size = Stream
-				.concat(currentViews.parallelStream().map(
-						view -> view.writeCache),
-						readCache.values().parallelStream())
-				.mapToLong(items -> countItemsSize(items)).sum();
-		final AtomicLong beyondSize = new AtomicLong(size - totalCacheLimit);// 用AtomicLong是因为下面要在Lambda表达式里用，需要是final的
-		if (beyondSize.longValue() <= 0)
-			// 没超过限制
+	private void linkToClock(CacheItem item) {
+		if (item.inClock)
 			return;
+		item.clockPrev = clockTail;
+		item.clockNext = null;
+		if (clockTail != null)
+			clockTail.clockNext = item;
+		else
+			clockHead = item;
+		clockTail = item;
+		item.inClock = true;
+	}
+
+	/**
+	 * 将item从CLOCK环上摘下。如果不在环上则什么也不做。调用者需要在{@link #readCacheLock}上同步。
+	 */
+	private void unlinkFromClock(CacheItem item) {
+		if (!item.inClock)
+			return;
+		if (item.clockPrev != null)
+			item.clockPrev.clockNext = item.clockNext;
+		else
+			clockHead = item.clockNext;
+		if (item.clockNext != null)
+			item.clockNext.clockPrev = item.clockPrev;
+		else
+			clockTail = item.clockPrev;
+		item.clockPrev = item.clockNext = null;
+		item.inClock = false;
+	}
+
+	private static CacheItem concat(CacheItem first, CacheItem second) {
+		byte[] bytes = new byte[first.bytes.length + second.bytes.length];
+		System.arraycopy(first.bytes, 0, bytes, 0, first.bytes.length);
+		System.arraycopy(second.bytes, 0, bytes, first.bytes.length,
+				second.bytes.length);
+		CacheItem merged = new CacheItem(first.path, first.startIndex, bytes);
+		merged.referenced = first.referenced || second.referenced;
+		return merged;
+	}
+
+	/**
+	 * 返回各个视图写缓存大小之和。先扣除已被废弃的视图的写缓存。
+	 * 
+	 * @return 写缓存大小
+	 */
+	private long writeCacheSize() {
+		Reference<? extends AccessorView> ref;
+		while ((ref = discardedViews.poll()) != null) {
+			ViewReference viewRef = (ViewReference) ref;
+			if (viewReferences.remove(viewRef))
+				writeCacheSize.addAndGet(-viewRef.writeCacheSize);
+		}
+		return writeCacheSize.get();
+	}
 
-		// 超出限制了，删除一部分读缓存
-		readCache.values().parallelStream().flatMap(items -> items.stream())
-				.sorted(Comparator.comparingLong(item -> item.lastAccessTime))
-				.forEachOrdered(item -> {
-					if (beyondSize.getAndAdd(-item.bytes.length) > 0) {
-						readCache.get(item.path).remove(item);
+	/**
+	 * 返回写缓存大小是否超过写缓存容量。
+	 * 
+	 * @return 是否超过
+	 */
+	private boolean isWriteCacheFull() {
+		return writeCacheSize() > writeCacheLimit;
+	}
+
+	/**
+	 * 检查缓存总大小。如果缓存总大小超过缓存总容量，按CLOCK算法清除读缓存，直到不超过缓存总容量。
+	 */
+	private void checkTotalCacheSize() {
+		long writeCacheSize = writeCacheSize();
+		while (readCacheSize.get() + writeCacheSize > totalCacheLimit) {
+			CacheItem item;
+			synchronized (readCacheLock) {
+				item = clockHead;
+				if (item == null)
+					// 读缓存已全清空。不可能还超限制，因为总缓存限制一定不小于写缓存限制
+					return;
+				if (item.referenced) {
+					// 最近访问过，给它第二次机会
+					item.referenced = false;
+					unlinkFromClock(item);
+					linkToClock(item);
+					continue;
+				}
+				// 环上的item一定在其文件的读缓存中
+				removeReadItem(readCache.get(item.path).items, item);
+				if (offHeapCache != null) {
+					// 移到堆外。仍在锁中，写出不会在删除堆上item与放入堆外之间更新此文件
+					try {
+						offHeapCache.put(item.path, item.startIndex, item.bytes);
+					} catch (IOException e) {
+						// 映射溢出文件失败，只是不能移到堆外，直接丢弃即可
 					}
-				});
+				}
+			}
+		}
+	}
 
-		// 不可能出现读缓存全清空还超限制的情况，因为总缓存限制一定不小于写缓存限制
+	/**
+	 * 一个文件的读缓存。
+	 * 
+	 * @author blove
+	 */
+	private static class FileReadCache {
+		/**
+		 * 以起始位置为key的item。查找不需要加锁，修改在{@link CachedFileAccessor#readCacheLock}上同步。
+		 */
+		final NavigableMap<Long, CacheItem> items = new ConcurrentSkipListMap<>();
+		/**
+		 * 写出标记。每次写出或截断文件时递增，在{@link CachedFileAccessor#readCacheLock}上同步访问。
+		 */
+		long writeStamp;
 	}
 
 	/**
@@ -228,13 +534,20 @@ public class CachedFileAccessor {
 		Path path;
 		long startIndex;
 		byte[] bytes;
-		long lastAccessTime;// 只有读缓存有用，所以写缓存没有更新此时间
+		/**
+		 * CLOCK算法的访问标记。只有读缓存有用，所以写缓存没有更新此标记。
+		 */
+		volatile boolean referenced;
+		/**
+		 * CLOCK环上的前后item，以及是否在环上。只有读缓存有用，在{@link CachedFileAccessor#readCacheLock}上同步访问。
+		 */
+		CacheItem clockPrev, clockNext;
+		boolean inClock;
 
 		CacheItem(Path path, long startIndex, byte[] bytes) {
 			this.path = path;
 			this.startIndex = startIndex;
 			this.bytes = bytes;
-			this.lastAccessTime = System.currentTimeMillis();
 		}
 
 		public long getStartIndex() {
@@ -245,8 +558,15 @@ public class CachedFileAccessor {
 			return bytes;
 		}
 
+		/**
+		 * 返回此item的结束位置，不包含。
+		 */
+		long endIndex() {
+			return startIndex + bytes.length;
+		}
+
 		void refreshTime() {
-			lastAccessTime = System.currentTimeMillis();
+			referenced = true;
 		}
 
 		@Override
@@ -312,12 +632,17 @@ public class CachedFileAccessor {
 	}
 
 	/**
-	 * 使用者使用的视图。这里“视图”的意思是共用的读缓存的视图，而写缓存是独用的。
+	 * 使用者使用的视图。这里“视图”的意思是共用的读缓存的视图，而写缓存是独用的。<br>
+	 * 视图不是线程安全的，使用者需要自己同步对视图的访问。
 	 * 
 	 * @author blove
 	 */
 	public class AccessorView {
-		private Set<CacheItem> writeCache = new HashSet<>();
+		private NavigableMap<Long, CacheItem> writeCache = new TreeMap<>();
+		/**
+		 * 此视图的弱引用，记录写缓存的字节数。
+		 */
+		private final ViewReference reference;
 
 		private final Path path;
 		private final FileAccessor fileAccessor;
@@ -325,26 +650,28 @@ public class CachedFileAccessor {
 		public AccessorView(Path path, FileAccessor fileAccessor) {
 			this.path = path;
 			this.fileAccessor = fileAccessor;
+			this.reference = new ViewReference(this);
+			viewReferences.add(reference);
+		}
+
+		/**
+		 * 累计此视图和全部视图的写缓存字节数。
+		 */
+		private void addWriteCacheSize(long delta) {
+			reference.writeCacheSize += delta;
+			writeCacheSize.addAndGet(delta);
 		}
 
 		public int read(long position, ByteBuffer dst) throws IOException {
 			int readCount = 0;
 
-			// 从写缓存中搞出这一段相关的item
-			Set<CacheItem> wCacheItems = findItemsInRange(writeCache, position,
-					dst.remaining());
-
-			// 从读缓存中搞出这一段相关的item
-			Set<CacheItem> rCacheItems = findItemsInRange(readCache.get(path),
-					position, dst.remaining());
-
 			// 开始往buffer里装
 			while (dst.hasRemaining()) {
 				long crtPosition = position + readCount;
 
 				// 先在写缓存里找
 				CacheItemForPosition wCacheItem = findItemForPosition(
-						wCacheItems, crtPosition);
+						writeCache, crtPosition);
 				if (wCacheItem != null && wCacheItem.offset >= 0) {
 					readCount += readFromCache(wCacheItem.item,
 							wCacheItem.offset, dst);
@@ -352,8 +679,9 @@ public class CachedFileAccessor {
 				}
 
 				// 写缓存没有，在读缓存里找
+				FileReadCache fileCache = readCache.get(path);
 				CacheItemForPosition rCacheItem = findItemForPosition(
-						rCacheItems, crtPosition);
+						fileCache == null ? null : fileCache.items, crtPosition);
 				if (rCacheItem != null && rCacheItem.offset >= 0) {
 					readCount += readFromCache(rCacheItem.item,
 							rCacheItem.offset, dst);
@@ -367,6 +695,17 @@ public class CachedFileAccessor {
 					needReadSize = Math.min(needReadSize, -wCacheItem.offset);
 				if (rCacheItem != null)
 					needReadSize = Math.min(needReadSize, -rCacheItem.offset);
+
+				// 堆上没有，在堆外读缓存里找，直接复制到buffer
+				if (offHeapCache != null) {
+					int offHeapReadSize = offHeapCache.read(path, crtPosition,
+							dst, needReadSize);
+					if (offHeapReadSize > 0) {
+						readCount += offHeapReadSize;
+						continue;
+					}
+				}
+
 				int maxReadSize = Integer.MAX_VALUE;
 				if (rCacheItem != null)
 					maxReadSize = Math.min(maxReadSize, -rCacheItem.offset);
@@ -400,13 +739,9 @@ public class CachedFileAccessor {
 			return putSize;
 		}
 
-		public void write(long position, ByteBuffer src) {
+		public void write(long position, ByteBuffer src) throws IOException {
 			int writeCount = 0;
 
-			// 从写缓存中搞出这一段相关的item
-			Set<CacheItem> existedItems = findItemsInRange(writeCache,
-					position, src.remaining());
-
 			// 开始往写缓存里装
 			List<CacheItem> newItems = new LinkedList<>();
 			while (src.hasRemaining()) {
@@ -414,7 +749,7 @@ public class CachedFileAccessor {
 
 				// 在写缓存里找
 				CacheItemForPosition cacheItem = findItemForPosition(
-						existedItems, crtPosition);
+						writeCache, crtPosition);
 				if (cacheItem != null && cacheItem.offset >= 0) {
 					// 找到了，更新写缓存
 					int getSize = Math.min(cacheItem.item.bytes.length
@@ -441,19 +776,18 @@ public class CachedFileAccessor {
 
 		public void truncate(long size) throws IOException {
 			// 先从写缓存中搞出size之内相关的item
-			Set<CacheItem> cacheItems = findItemsInRange(writeCache, 0, size);
+			NavigableMap<Long, CacheItem> cacheItems = new TreeMap<>(
+					writeCache.headMap(size, false));
 
 			// 如果最后一个item超出了size的范围，将其缩小
 			if (!cacheItems.isEmpty()) {
-				CacheItem lastItem = Collections.max(cacheItems);
-				if (lastItem.startIndex + lastItem.bytes.length > size) {
+				CacheItem lastItem = cacheItems.lastEntry().getValue();
+				if (lastItem.endIndex() > size) {
 					byte[] newBytes = new byte[(int) (size - lastItem.startIndex)];
 					System.arraycopy(lastItem.bytes, 0, newBytes, 0,
 							newBytes.length);
-					CacheItem newItem = new CacheItem(path,
-							lastItem.startIndex, newBytes);
-					cacheItems.remove(lastItem);
-					cacheItems.add(newItem);
+					cacheItems.put(lastItem.startIndex, new CacheItem(path,
+							lastItem.startIndex, newBytes));
 				}
 			}
 
@@ -465,30 +799,36 @@ public class CachedFileAccessor {
 
 			// 清除写缓存
 			writeCache.clear();
-			currentViews.remove(AccessorView.this);
+			addWriteCacheSize(-reference.writeCacheSize);
 
 			// 最后，把读缓存中truncate掉的相应部分删除
-			// --找出读缓存中相应部分的items
-			Set<CacheItem> rCacheItems = findItemsInRange(readCache.get(path),
-					size, Long.MAX_VALUE);
-			if (!rCacheItems.isEmpty()) {
-				// --如果第一个在size范围之内，只将其超过部分删除
-				CacheItem firstItem = Collections.min(rCacheItems);
-				if (firstItem.startIndex < size) {
-					byte[] newBytes = new byte[(int) (size - firstItem.startIndex)];
-					System.arraycopy(firstItem.bytes, 0, newBytes, 0,
-							newBytes.length);
-					firstItem.bytes = newBytes;
-					rCacheItems.remove(firstItem);
+			synchronized (readCacheLock) {
+				if (offHeapCache != null)
+					offHeapCache.remove(path, size, Long.MAX_VALUE);
+				FileReadCache fileCache = readCache.get(path);
+				if (fileCache != null) {
+					fileCache.writeStamp++;
+					NavigableMap<Long, CacheItem> rCacheItems = fileCache.items;
+					// --如果size之前的最后一个超出size范围，只将其超过部分删除
+					Map.Entry<Long, CacheItem> lower = rCacheItems.lowerEntry(size);
+					if (lower != null && lower.getValue().endIndex() > size) {
+						CacheItem item = lower.getValue();
+						byte[] newBytes = new byte[(int) (size - item.startIndex)];
+						System.arraycopy(item.bytes, 0, newBytes, 0,
+								newBytes.length);
+						addReadItem(rCacheItems, new CacheItem(path,
+								item.startIndex, newBytes));
+					}
+					// --删除该删除的items
+					for (CacheItem item : rCacheItems.tailMap(size, true).values())
+						removeReadItem(rCacheItems, item);
 				}
-				// --删除该删除的items
-				readCache.get(path).removeAll(rCacheItems);
 			}
 		}
 
 		public void flush() throws IOException {
 			// 把写缓存中的全部写出
-			writeOutAndUpdateReadCache(writeCache);
+			writeOutAndUpdateReadCache(new TreeMap<>(writeCache));
 		}
 
 		/**
@@ -506,15 +846,25 @@ public class CachedFileAccessor {
 		private CacheItemForPosition readToCache(long position, int minSize,
 				int maxSize) throws IOException {
 			int readSize = Math.min(Math.max(minSize, readMinSize), maxSize);
+			// 先记下读缓存的写出标记，读入期间文件被写出、截断或读缓存被清除时，不放入读缓存
+			FileReadCache fileCache;
+			long writeStamp;
+			synchronized (readCacheLock) {
+				fileCache = readCache.computeIfAbsent(path,
+						key -> new FileReadCache());
+				writeStamp = fileCache.writeStamp;
+			}
 			byte[] bytes = fileAccessor.read(position, readSize);
+			if (bytes.length == 0)
+				// 已到文件末尾
+				return null;
 			CacheItem newItem = new CacheItem(path, position, bytes);
 
-			Set<CacheItem> rCacheItems = readCache.get(path);
-			if (rCacheItems == null) {
-				rCacheItems = new TreeSet<>();
-				readCache.put(path, rCacheItems);
+			synchronized (readCacheLock) {
+				if (readCache.get(path) == fileCache
+						&& fileCache.writeStamp == writeStamp)
+					insertReadItem(fileCache.items, newItem);
 			}
-			rCacheItems.add(newItem);
 
 			checkTotalCacheSize();
 
@@ -522,16 +872,22 @@ public class CachedFileAccessor {
 		}
 
 		/**
-		 * 将指定的新items写入写缓存。处理超出写缓存容量或总容量的情况。
+		 * 将指定的新items写入写缓存。处理超出写缓存容量或总容量的情况：写缓存超出容量时，在当前线程中写出此视图自己的写缓存。
 		 * 
 		 * @param newItems
 		 *            新items
+		 * @throws IOException
+		 *             写出错误
 		 */
-		private void writeToCache(Collection<CacheItem> newItems) {
-			writeCache.addAll(newItems);
-			if (!isItemsEmpty(writeCache))
-				currentViews.add(AccessorView.this);
-			checkWriteCacheSize();
+		private void writeToCache(Collection<CacheItem> newItems)
+				throws IOException {
+			for (CacheItem item : newItems) {
+				writeCache.put(item.startIndex, item);
+				addWriteCacheSize(item.bytes.length);
+				coalesce(writeCache, item, false);
+			}
+			if (reference.writeCacheSize > 0 && isWriteCacheFull())
+				flush();
 			checkTotalCacheSize();
 		}
 
@@ -539,47 +895,67 @@ public class CachedFileAccessor {
 		 * 写出指定的items，将它们在写缓存中清除，并将读缓存中相关item更新（不更新时间）。
 		 * 
 		 * @param items
+		 *            以起始位置为key的items
 		 * @throws IOException
 		 */
-		private void writeOutAndUpdateReadCache(Set<CacheItem> items)
-				throws IOException {
+		private void writeOutAndUpdateReadCache(
+				NavigableMap<Long, CacheItem> items) throws IOException {
 			if (items == null || items.isEmpty())
 				return;
 
 			// 写出items
-			fileAccessor.write(items);
+			fileAccessor.write(items.values());
 
 			// 在写缓存中清除
-			writeCache.removeAll(items);
-			if (isItemsEmpty(writeCache))
-				currentViews.remove(AccessorView.this);
-
-			// 更新读缓存
-			Set<CacheItem> rCacheItems = readCache.get(path);
-			if (rCacheItems != null && rCacheItems.isEmpty()) {
-				rCacheItems.forEach(item -> {
-					int crtIndex = 0;
-					while (crtIndex < item.bytes.length) {
-						CacheItemForPosition wItem = findItemForPosition(items,
-								item.startIndex + crtIndex);
-						if (wItem == null)
-							break;
-						if (wItem.offset < 0) {
-							crtIndex += -wItem.offset;
-							wItem.offset = 0;
+			for (Long startIndex : items.keySet()) {
+				CacheItem removed = writeCache.remove(startIndex);
+				if (removed != null)
+					addWriteCacheSize(-removed.bytes.length);
+			}
+
+			// 更新读缓存。堆外的相关部分直接删除
+			synchronized (readCacheLock) {
+				if (offHeapCache != null)
+					for (CacheItem wItem : items.values())
+						offHeapCache.remove(path, wItem.startIndex,
+								wItem.bytes.length);
+				FileReadCache fileCache = readCache.get(path);
+				if (fileCache != null) {
+					// 正在读入的数据已过时
+					fileCache.writeStamp++;
+					for (CacheItem wItem : items.values()) {
+						for (CacheItem rItem : findItemsInRange(fileCache.items,
+								wItem.startIndex, wItem.bytes.length)) {
+							long from = Math.max(wItem.startIndex, rItem.startIndex);
+							long to = Math.min(wItem.endIndex(), rItem.endIndex());
+							System.arraycopy(wItem.bytes,
+									(int) (from - wItem.startIndex), rItem.bytes,
+									(int) (from - rItem.startIndex),
+									(int) (to - from));
 						}
-						int updateSize = Math.min(item.bytes.length - crtIndex,
-								wItem.item.bytes.length - wItem.offset);
-						System.arraycopy(wItem.item.bytes, wItem.offset,
-								item.bytes, crtIndex, updateSize);
-						crtIndex += updateSize;
 					}
-				});
+				}
 			}
 		}
 
 	}
 
+	/**
+	 * 视图的弱引用，记录视图写缓存的字节数，视图被回收后仍然可以得知。
+	 * 
+	 * @author blove
+	 */
+	private class ViewReference extends WeakReference<AccessorView> {
+		/**
+		 * 视图写缓存的字节数。只由视图的使用者修改。
+		 */
+		volatile long writeCacheSize;
+
+		ViewReference(AccessorView view) {
+			super(view, discardedViews);
+		}
+	}
+
 	/**
 	 * 实际访问文件系统文件的工具，由使用者提供，以保证此类与具体文件系统解耦。
 	 * 
@@ -0,0 +1,318 @@
+package blove.baidupcs.fs;
+
+import static java.nio.file.StandardOpenOption.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * {@link CachedFileAccessor}读缓存的第二层，将数据放在堆外：直接内存，或映射到内存的本地溢出文件。<br>
+ * 空间按固定大小的槽分配，槽来自若干个按需分配的大块（slab），一段数据占用若干个槽，不需要连续。释放的槽放回空闲列表重复使用，
+ * 空间不足时按CLOCK算法淘汰。CLOCK环是串在数据段上的双向链表，数据段被删除、替换时立即从环上摘下。
+ * 读取时直接从堆外复制到调用者的ByteBuffer，不经过堆上数组。<br>
+ * 每个文件的数据段互不重叠。所有方法都是同步的。
+ *
+ * @author blove
+ */
+class OffHeapCache {
+	/**
+	 * 槽大小。
+	 */
+	static final int SLOT_SIZE = 1024 * 64;// 64KB
+	/**
+	 * 每个大块的最大字节数。
+	 */
+	private static final int SLAB_SIZE = 1024 * 1024 * 64;// 64MB
+
+	private final int slotsPerSlab;
+	private final FileChannel spillChannel;
+
+	private final List<ByteBuffer> slabs = new ArrayList<>();
+	private final Deque<Integer> freeSlots = new ArrayDeque<>();
+	private int allocatedSlots = 0;
+	private final int maxSlots;
+
+	private final Map<Path, NavigableMap<Long, Segment>> index = new HashMap<>();
+	/**
+	 * CLOCK环的头和尾。淘汰时从头开始检查，新数据段和获得第二次机会的数据段放到尾。
+	 */
+	private Segment clockHead, clockTail;
+
+	/**
+	 * 新建一个实例。
+	 *
+	 * @param capacity
+	 *             容量。单位：字节。
+	 * @param spillFile
+	 *             溢出文件。如果为null则使用直接内存；否则将此文件映射到内存使用，文件已存在时将被覆盖，关闭时删除。
+	 * @throws IOException
+	 *              创建溢出文件错误
+	 */
+	OffHeapCache(long capacity, Path spillFile) throws IOException {
+		this.maxSlots = (int) Math.min(Integer.MAX_VALUE, capacity / SLOT_SIZE);
+		this.slotsPerSlab = Math.max(1, Math.min(SLAB_SIZE / SLOT_SIZE, maxSlots));
+		this.spillChannel = spillFile == null ? null : FileChannel.open(spillFile, CREATE, READ, WRITE,
+				TRUNCATE_EXISTING, DELETE_ON_CLOSE);
+	}
+
+	/**
+	 * 一段缓存的数据。
+	 */
+	private static class Segment {
+		final Path path;
+		final long startIndex;
+		final int length;
+		final int[] slots;
+		boolean referenced;
+		Segment clockPrev, clockNext;
+
+		Segment(Path path, long startIndex, int length, int[] slots) {
+			this.path = path;
+			this.startIndex = startIndex;
+			this.length = length;
+			this.slots = slots;
+		}
+
+		long endIndex() {
+			return startIndex + length;
+		}
+	}
+
+	/**
+	 * 放入一段数据。与已有数据重叠的部分被替换。
+	 *
+	 * @param path
+	 *             文件路径
+	 * @param startIndex
+	 *             数据在文件中的起始位置
+	 * @param bytes
+	 *             数据
+	 * @throws IOException
+	 *              映射溢出文件错误
+	 */
+	synchronized void put(Path path, long startIndex, byte[] bytes) throws IOException {
+		int slotCount = (bytes.length + SLOT_SIZE - 1) / SLOT_SIZE;
+		if (bytes.length == 0 || slotCount > maxSlots)
+			return;
+
+		remove(path, startIndex, bytes.length);
+		int[] slots = new int[slotCount];
+		int allocated = 0;
+		try {
+			for (; allocated < slotCount; allocated++)
+				slots[allocated] = allocateSlot();
+		} catch (IOException | RuntimeException e) {
+			for (int i = 0; i < allocated; i++)
+				freeSlots.push(slots[i]);
+			throw e;
+		}
+		Segment segment = new Segment(path, startIndex, bytes.length, slots);
+		for (int i = 0; i < slotCount; i++) {
+			int offset = i * SLOT_SIZE;
+			slotBuffer(slots[i]).put(bytes, offset, Math.min(SLOT_SIZE, bytes.length - offset));
+		}
+		index.computeIfAbsent(path, key -> new TreeMap<>()).put(startIndex, segment);
+		linkToClock(segment);
+	}
+
+	/**
+	 * 从指定位置开始读取数据，直接复制到指定ByteBuffer。
+	 *
+	 * @param path
+	 *             文件路径
+	 * @param position
+	 *             起始位置
+	 * @param dst
+	 *             目标
+	 * @param maxSize
+	 *             最多读取的字节数
+	 * @return 读取的字节数。如果此位置没有缓存数据，则返回0。
+	 */
+	synchronized int read(Path path, long position, ByteBuffer dst, int maxSize) {
+		NavigableMap<Long, Segment> segments = index.get(path);
+		if (segments == null)
+			return 0;
+		Map.Entry<Long, Segment> floor = segments.floorEntry(position);
+		if (floor == null || floor.getValue().endIndex() <= position)
+			return 0;
+
+		Segment segment = floor.getValue();
+		segment.referenced = true;
+		int offset = (int) (position - segment.startIndex);
+		int readSize = Math.min(Math.min(segment.length - offset, dst.remaining()), maxSize);
+		int remaining = readSize;
+		while (remaining > 0) {
+			int slotOffset = offset % SLOT_SIZE;
+			int size = Math.min(SLOT_SIZE - slotOffset, remaining);
+			ByteBuffer src = slotBuffer(segment.slots[offset / SLOT_SIZE]);
+			src.position(slotOffset).limit(slotOffset + size);
+			dst.put(src);
+			offset += size;
+			remaining -= size;
+		}
+		return readSize;
+	}
+
+	/**
+	 * 删除与指定范围重叠的数据。
+	 *
+	 * @param path
+	 *             文件路径
+	 * @param startIndex
+	 *             起始位置
+	 * @param size
+	 *             范围大小
+	 */
+	synchronized void remove(Path path, long startIndex, long size) {
+		NavigableMap<Long, Segment> segments = index.get(path);
+		if (segments == null)
+			return;
+		long endIndex = size > Long.MAX_VALUE - startIndex ? Long.MAX_VALUE : startIndex + size;
+		long fromKey = startIndex;
+		Map.Entry<Long, Segment> floor = segments.floorEntry(startIndex);
+		if (floor != null && floor.getValue().endIndex() > startIndex)
+			fromKey = floor.getKey();
+		Iterator<Segment> itr = segments.subMap(fromKey, true, endIndex, false).values().iterator();
+		while (itr.hasNext()) {
+			free(itr.next());
+			itr.remove();
+		}
+		if (segments.isEmpty())
+			index.remove(path);
+	}
+
+	/**
+	 * 删除指定文件的全部数据。
+	 *
+	 * @param path
+	 *             文件路径
+	 */
+	synchronized void drop(Path path) {
+		NavigableMap<Long, Segment> segments = index.remove(path);
+		if (segments != null)
+			for (Segment segment : segments.values())
+				free(segment);
+	}
+
+	/**
+	 * 返回缓存数据的总字节数。
+	 */
+	synchronized long size() {
+		return (long) (allocatedSlots - freeSlots.size()) * SLOT_SIZE;
+	}
+
+	/**
+	 * 释放全部空间。使用溢出文件时将其关闭并删除。
+	 *
+	 * @throws IOException
+	 */
+	synchronized void close() throws IOException {
+		index.clear();
+		clockHead = clockTail = null;
+		freeSlots.clear();
+		slabs.clear();
+		allocatedSlots = 0;
+		if (spillChannel != null)
+			spillChannel.close();
+	}
+
+	/**
+	 * 释放数据段的槽，并将其从环上摘下。调用者负责将其从索引中删除。
+	 */
+	private void free(Segment segment) {
+		unlinkFromClock(segment);
+		for (int slot : segment.slots)
+			freeSlots.push(slot);
+	}
+
+	private void linkToClock(Segment segment) {
+		segment.clockPrev = clockTail;
+		segment.clockNext = null;
+		if (clockTail != null)
+			clockTail.clockNext = segment;
+		else
+			clockHead = segment;
+		clockTail = segment;
+	}
+
+	private void unlinkFromClock(Segment segment) {
+		if (segment.clockPrev != null)
+			segment.clockPrev.clockNext = segment.clockNext;
+		else
+			clockHead = segment.clockNext;
+		if (segment.clockNext != null)
+			segment.clockNext.clockPrev = segment.clockPrev;
+		else
+			clockTail = segment.clockPrev;
+		segment.clockPrev = segment.clockNext = null;
+	}
+
+	/**
+	 * 分配一个槽。没有空闲的槽时，如果还未达到容量则分配新的大块，否则按CLOCK算法淘汰数据。
+	 */
+	private int allocateSlot() throws IOException {
+		while (freeSlots.isEmpty()) {
+			if (allocatedSlots < maxSlots)
+				newSlab();
+			else
+				evictOne();
+		}
+		return freeSlots.pop();
+	}
+
+	private void newSlab() throws IOException {
+		int slotCount = Math.min(slotsPerSlab, maxSlots - allocatedSlots);
+		int slabSize = slotCount * SLOT_SIZE;
+		ByteBuffer slab;
+		if (spillChannel == null)
+			slab = ByteBuffer.allocateDirect(slabSize);
+		else
+			slab = spillChannel.map(MapMode.READ_WRITE, (long) slabs.size() * slotsPerSlab * SLOT_SIZE, slabSize);
+		slabs.add(slab);
+		for (int i = 0; i < slotCount; i++)
+			freeSlots.push(allocatedSlots + i);
+		allocatedSlots += slotCount;
+	}
+
+	private void evictOne() {
+		while (true) {
+			Segment segment = clockHead;
+			if (segment == null)
+				throw new IllegalStateException("No segment to evict.");
+			if (segment.referenced) {
+				segment.referenced = false;
+				unlinkFromClock(segment);
+				linkToClock(segment);
+				continue;
+			}
+			NavigableMap<Long, Segment> segments = index.get(segment.path);
+			segments.remove(segment.startIndex);
+			if (segments.isEmpty())
+				index.remove(segment.path);
+			free(segment);
+			return;
+		}
+	}
+
+	/**
+	 * 返回指定槽对应的ByteBuffer，位置为0，界限为槽大小。
+	 */
+	private ByteBuffer slotBuffer(int slot) {
+		ByteBuffer buffer = slabs.get(slot / slotsPerSlab).duplicate();
+		int offset = (slot % slotsPerSlab) * SLOT_SIZE;
+		buffer.position(offset).limit(offset + SLOT_SIZE);
+		return buffer.slice();
+	}
+}
@@ -0,0 +1,251 @@
+package blove.baidupcs.fs.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 将短时间内对单个键的加载请求合并为批量加载。<br>
+ * 第一个请求开启一批，并在等待指定的时间窗口后执行这一批；期间到达的请求加入同一批，一批达到最大数量时由使其满的请求立即执行。
+ * 如果开启一批时没有其他进行中的请求，则不等待，立即执行，所以没有并发时单个请求不会因合并而变慢。
+ * 执行批量加载的是某个请求的线程，不需要额外的线程。<br>
+ * 默认情况下同一批中相同键的请求合并为一个，共用一个结果，适用于查询。对于修改操作（如删除），相同键的每个请求都必须各自执行，
+ * 此时可以指定不合并：已在当前一批中的键再次请求时，当前一批立即执行，此请求开启新的一批。<br>
+ * 批量加载失败时，将这一批分成两半分别批量加载，直到只剩单个键时逐个加载，所以一批中只有个别键出错（如查询的路径不存在）时，
+ * 只需O(log n)次额外的加载，而不是对所有键逐个加载。结果中缺少的键也逐个加载。每个请求都得到各自的结果或异常。<br>
+ * 对于修改操作，批量加载失败时应返回空的结果而不抛出异常，使每个键逐个执行、得到各自的结果或异常，而不是再分成两半批量执行。<br>
+ * 线程安全。
+ *
+ * @param <K>
+ *             键类型
+ * @param <V>
+ *             值类型
+ * @author blove
+ */
+public class Batcher<K, V> {
+	private final long window;
+	private final int maxBatchSize;
+	private final boolean mergeKeys;
+	private final BatchLoader<K, V> batchLoader;
+	private final Cache.Loader<? super K, ? extends V> loader;
+
+	/**
+	 * 正在收集请求的一批。如果为null，则下一个请求开启新的一批。
+	 */
+	private Batch current;
+
+	/**
+	 * 进行中（还未返回）的请求数。
+	 */
+	private final AtomicInteger activeRequests = new AtomicInteger();
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong loadCount = new AtomicLong();
+
+	/**
+	 * 新建一个合并相同键的实例。
+	 *
+	 * @param window
+	 *             时间窗口。单位：毫秒。
+	 * @param maxBatchSize
+	 *             一批的最大键数。如果为1则不合并。
+	 * @param batchLoader
+	 *             批量加载
+	 * @param loader
+	 *             单个加载。一批只有一个键，或批量加载失败时使用。
+	 * @throws IllegalArgumentException
+	 *              时间窗口为负数，或最大键数不是正数
+	 */
+	public Batcher(long window, int maxBatchSize, BatchLoader<K, V> batchLoader,
+			Cache.Loader<? super K, ? extends V> loader) {
+		this(window, maxBatchSize, true, batchLoader, loader);
+	}
+
+	/**
+	 * 新建一个实例。
+	 *
+	 * @param window
+	 *             时间窗口。单位：毫秒。
+	 * @param maxBatchSize
+	 *             一批的最大键数。如果为1则不合并。
+	 * @param mergeKeys
+	 *             是否将同一批中相同键的请求合并为一个。修改操作应指定为false。
+	 * @param batchLoader
+	 *             批量加载
+	 * @param loader
+	 *             单个加载。一批只有一个键，或批量加载失败时使用。
+	 * @throws IllegalArgumentException
+	 *              时间窗口为负数，或最大键数不是正数
+	 */
+	public Batcher(long window, int maxBatchSize, boolean mergeKeys, BatchLoader<K, V> batchLoader,
+			Cache.Loader<? super K, ? extends V> loader) {
+		if (window < 0)
+			throw new IllegalArgumentException("Window cannot be negative: " + window);
+		if (maxBatchSize <= 0)
+			throw new IllegalArgumentException("Max batch size must be positive: " + maxBatchSize);
+		this.window = window;
+		this.maxBatchSize = maxBatchSize;
+		this.mergeKeys = mergeKeys;
+		this.batchLoader = batchLoader;
+		this.loader = loader;
+	}
+
+	/**
+	 * 批量加载。
+	 *
+	 * @param <K>
+	 *             键类型
+	 * @param <V>
+	 *             值类型
+	 * @author blove
+	 */
+	public interface BatchLoader<K, V> {
+		/**
+		 * 加载指定的多个键对应的值。
+		 *
+		 * @param keys
+		 *             键。不重复。
+		 * @return 各个键对应的值。缺少的键将逐个加载。
+		 * @throws IOException
+		 */
+		Map<K, V> load(List<K> keys) throws IOException;
+	}
+
+	private class Batch {
+		final Map<K, CompletableFuture<V>> futures = new LinkedHashMap<>();
+	}
+
+	/**
+	 * 获取指定键对应的值。当前线程可能等待一个时间窗口，以便与其他请求合并。
+	 *
+	 * @param key
+	 *             键
+	 * @return 值
+	 * @throws IOException
+	 *              加载错误
+	 */
+	public V get(K key) throws IOException {
+		requestCount.incrementAndGet();
+		activeRequests.incrementAndGet();
+		try {
+			return doGet(key);
+		} finally {
+			activeRequests.decrementAndGet();
+		}
+	}
+
+	private V doGet(K key) throws IOException {
+		Batch batch, previous = null;
+		CompletableFuture<V> future;
+		boolean leader = false, full = false;
+		synchronized (this) {
+			if (!mergeKeys && current != null && current.futures.containsKey(key)) {
+				// 不合并相同的键：当前一批由此请求立即执行，此请求开启新的一批
+				previous = current;
+				current = null;
+			}
+			if (current == null) {
+				current = new Batch();
+				leader = true;
+			}
+			batch = current;
+			future = batch.futures.computeIfAbsent(key, k -> new CompletableFuture<>());
+			if (batch.futures.size() >= maxBatchSize) {
+				current = null;
+				full = true;
+			}
+		}
+
+		if (previous != null)
+			run(previous);
+		if (full) {
+			run(batch);
+		} else if (leader) {
+			boolean interrupted = false;
+			// 没有其他进行中的请求时，不会有请求等着加入这一批，不必等待
+			if (window > 0 && activeRequests.get() > 1) {
+				try {
+					Thread.sleep(window);
+				} catch (InterruptedException e) {
+					// 其他请求还在等待这一批，仍然要执行
+					interrupted = true;
+				}
+			}
+			boolean claimed = false;
+			synchronized (this) {
+				// 如果已经满了，则已由其他请求执行
+				if (current == batch) {
+					current = null;
+					claimed = true;
+				}
+			}
+			if (claimed)
+				run(batch);
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+		return Cache.waitFor(future);
+	}
+
+	/**
+	 * 执行一批加载，完成其中的所有请求。
+	 */
+	private void run(Batch batch) {
+		load(new ArrayList<>(batch.futures.keySet()), batch.futures);
+	}
+
+	/**
+	 * 加载指定的键，完成其请求。批量加载失败时分成两半分别加载。
+	 */
+	private void load(List<K> keys, Map<K, CompletableFuture<V>> futures) {
+		Map<K, V> values = null;
+		if (keys.size() > 1) {
+			loadCount.incrementAndGet();
+			try {
+				values = batchLoader.load(keys);
+			} catch (IOException | RuntimeException e) {
+				int half = keys.size() / 2;
+				load(keys.subList(0, half), futures);
+				load(keys.subList(half, keys.size()), futures);
+				return;
+			}
+		}
+
+		for (K key : keys) {
+			CompletableFuture<V> future = futures.get(key);
+			V value = values == null ? null : values.get(key);
+			if (value != null) {
+				future.complete(value);
+				continue;
+			}
+			loadCount.incrementAndGet();
+			try {
+				future.complete(loader.load(key));
+			} catch (IOException | RuntimeException | Error e) {
+				future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * 返回到目前为止的请求数。
+	 *
+	 * @return 请求数
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * 返回到目前为止实际的加载次数，包括批量加载和单个加载。
+	 *
+	 * @return 加载次数
+	 */
+	public long getLoadCount() {
+		return loadCount.get();
+	}
+}
@@ -1,11 +1,27 @@
 package blove.baidupcs.fs.util;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * 以指定类型对象为键，存放指定类型对象的缓存，可指定超时时间。
- * 
+ * 以指定类型对象为键，存放指定类型对象的缓存，可指定超时时间和最大条目数。<br>
+ * 条目数超过上限时，按LRU淘汰最久未访问的条目，并检查其后的少量（{@value #SWEEP_SIZE}个）条目，清除其中已超时的，每次放入都是O(1)。
+ * 其余已超时的条目在访问时清除，也可以通过{@link #cleanUp()}全部清除。<br>
+ * 通过{@link #get(Object, Loader)}获取时，同一个键同时只会加载一次，其他线程等待并共用加载结果。<br>
+ * 如果指定了键的比较器，则同时维护有序的键索引，可以通过{@link #removeRange(Object, Object)}以O(log n + m)删除一个范围内的所有键。<br>
+ * 线程安全。命中、未命中、加载和淘汰次数可以通过{@link #stats()}获取。
+ *
  * @param <K>
  *             键类型
  * @param <V>
@@ -13,69 +29,369 @@ import java.util.Map;
  * @author blove
  */
 public class Cache<K, V> {
-	private final int expireTime;
+	/**
+	 * 条目数超过上限时，从最久未访问的一端检查是否超时的最大条目数。
+	 */
+	private static final int SWEEP_SIZE = 8;
 
-	private final Map<K, Long> keyTimes = new HashMap<>();
-	private final Map<K, V> keyValues = new HashMap<>();
+	private final long expireTime;
+	private final int maxSize;
 
 	/**
-	 * 新建一个实例。
-	 * 
+	 * 按访问顺序排列的条目，最久未访问的在最前。
+	 */
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+	/**
+	 * 正在加载的键。
+	 */
+	private final Map<K, CompletableFuture<V>> loadings = new ConcurrentHashMap<>();
+	/**
+	 * 有序的键索引。如果没有指定比较器则为null。
+	 */
+	private final NavigableSet<K> keyIndex;
+	private final Comparator<? super K> comparator;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong loadCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * 新建一个不限条目数的实例。
+	 *
 	 * @param expireTime
 	 *             缓存超时时间。单位：毫秒。
 	 */
 	public Cache(int expireTime) {
+		this(expireTime, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * 新建一个实例。
+	 *
+	 * @param expireTime
+	 *             缓存超时时间。单位：毫秒。
+	 * @param maxSize
+	 *             最大条目数
+	 * @throws IllegalArgumentException
+	 *              超时时间为负数，或最大条目数不是正数
+	 */
+	public Cache(long expireTime, int maxSize) {
+		this(expireTime, maxSize, null);
+	}
+
+	/**
+	 * 新建一个维护有序键索引的实例。
+	 *
+	 * @param expireTime
+	 *             缓存超时时间。单位：毫秒。
+	 * @param maxSize
+	 *             最大条目数
+	 * @param comparator
+	 *             键的比较器。如果为null则不维护键索引。
+	 * @throws IllegalArgumentException
+	 *              超时时间为负数，或最大条目数不是正数
+	 */
+	public Cache(long expireTime, int maxSize, Comparator<? super K> comparator) {
+		if (expireTime < 0)
+			throw new IllegalArgumentException("Expire time cannot be negative: " + expireTime);
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("Max size must be positive: " + maxSize);
 		this.expireTime = expireTime;
+		this.maxSize = maxSize;
+		this.comparator = comparator;
+		this.keyIndex = comparator == null ? null : new TreeSet<>(comparator);
+	}
+
+	/**
+	 * 加载缓存中没有的值。
+	 *
+	 * @param <K>
+	 *             键类型
+	 * @param <V>
+	 *             值类型
+	 * @author blove
+	 */
+	public interface Loader<K, V> {
+		/**
+		 * 加载指定键对应的值。
+		 *
+		 * @param key
+		 *             键
+		 * @return 值。如果为null则不放入缓存。
+		 * @throws IOException
+		 */
+		V load(K key) throws IOException;
+	}
+
+	private static class Entry<V> {
+		final V value;
+		final long time;
+
+		Entry(V value, long time) {
+			this.value = value;
+			this.time = time;
+		}
 	}
 
 	/**
 	 * 将指定对象以指定键放入缓存。如果键已存在，则会覆盖，并重新计时。
-	 * 
+	 *
 	 * @param key
 	 *             键
 	 * @param value
 	 *             值
 	 */
-	public void put(K key, V value) {
-		keyValues.put(key, value);
-		keyTimes.put(key, System.currentTimeMillis());
+	public synchronized void put(K key, V value) {
+		entries.put(key, new Entry<>(value, System.currentTimeMillis()));
+		if (keyIndex != null)
+			keyIndex.add(key);
+		if (entries.size() > maxSize) {
+			// 淘汰最前面的条目，再顺便清除其后少量已超时的条目，不遍历整个缓存
+			long now = System.currentTimeMillis();
+			Iterator<Map.Entry<K, Entry<V>>> itr = entries.entrySet().iterator();
+			for (int checked = 0; itr.hasNext() && (checked < SWEEP_SIZE || entries.size() > maxSize); checked++) {
+				Map.Entry<K, Entry<V>> eldest = itr.next();
+				if (entries.size() > maxSize || isExpired(eldest.getValue(), now)) {
+					itr.remove();
+					if (keyIndex != null)
+						keyIndex.remove(eldest.getKey());
+					evictionCount.incrementAndGet();
+				}
+			}
+		}
 	}
 
 	/**
 	 * 获取指定键对应的值。
-	 * 
+	 *
 	 * @param key
 	 *             键
 	 * @return 值。如果没有或已超时则返回null。
 	 */
-	public V get(K key) {
-		Long time = keyTimes.get(key);
-		if (time == null)
-			return null;
-		if (System.currentTimeMillis() - time > expireTime) {
-			keyTimes.remove(key);
-			keyValues.remove(key);
+	public synchronized V get(K key) {
+		Entry<V> entry = entries.get(key);
+		if (entry != null && isExpired(entry, System.currentTimeMillis())) {
+			removeEntry(key);
+			evictionCount.incrementAndGet();
+			entry = null;
+		}
+		if (entry == null || entry.value == null) {
+			missCount.incrementAndGet();
 			return null;
 		}
+		hitCount.incrementAndGet();
+		return entry.value;
+	}
 
-		V value = keyValues.get(key);
-		if (value == null) {
-			keyTimes.remove(key);
-			return null;
+	/**
+	 * 获取指定键对应的值。如果没有或已超时，则通过指定的Loader加载并放入缓存。<br>
+	 * 如果其他线程正在加载同一个键，则不再加载，而是等待其结果（包括抛出的异常）。加载期间如果此键被删除，加载的值将不放入缓存。
+	 *
+	 * @param key
+	 *             键
+	 * @param loader
+	 *             Loader
+	 * @return 值
+	 * @throws IOException
+	 *              加载错误
+	 */
+	public V get(K key, Loader<? super K, ? extends V> loader) throws IOException {
+		V value = get(key);
+		if (value != null)
+			return value;
+
+		CompletableFuture<V> future = new CompletableFuture<>();
+		CompletableFuture<V> loading = loadings.putIfAbsent(key, future);
+		if (loading != null)
+			return waitFor(loading);
+
+		try {
+			loadCount.incrementAndGet();
+			value = loader.load(key);
+			synchronized (this) {
+				// 如果已经不在加载中，说明加载期间被删除了，加载到的值可能已过时
+				if (loadings.remove(key, future) && value != null)
+					put(key, value);
+			}
+			future.complete(value);
+			return value;
+		} catch (IOException | RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			loadings.remove(key, future);
 		}
+	}
 
-		return value;
+	/**
+	 * 等待加载完成并返回结果。加载时抛出的异常原样抛出。
+	 */
+	static <V> V waitFor(Future<V> loading) throws IOException {
+		try {
+			return loading.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for loading.");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			else
+				throw new RuntimeException(cause);
+		}
 	}
 
 	/**
-	 * 删除指定键对应的值。
-	 * 
+	 * 删除指定键对应的值。如果此键正在加载，加载的值将不放入缓存。
+	 *
 	 * @param key
 	 *             键
 	 */
-	public void remove(K key) {
-		Long time = keyTimes.remove(key);
-		if (time != null)
-			keyValues.remove(key);
+	public synchronized void remove(K key) {
+		removeEntry(key);
+		loadings.remove(key);
+	}
+
+	/**
+	 * 删除键在指定范围内的所有值。范围内正在加载的键，加载的值将不放入缓存。
+	 *
+	 * @param fromKey
+	 *             范围起点，包含
+	 * @param toKey
+	 *             范围终点，不包含
+	 * @throws IllegalStateException
+	 *              没有指定键的比较器
+	 */
+	public synchronized void removeRange(K fromKey, K toKey) {
+		if (keyIndex == null)
+			throw new IllegalStateException("No comparator specified.");
+		Iterator<K> itr = keyIndex.subSet(fromKey, true, toKey, false).iterator();
+		while (itr.hasNext()) {
+			entries.remove(itr.next());
+			itr.remove();
+		}
+		// 正在加载的键一般很少，直接遍历
+		loadings.keySet().removeIf(
+				key -> comparator.compare(key, fromKey) >= 0 && comparator.compare(key, toKey) < 0);
+	}
+
+	/**
+	 * 删除所有值。
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		if (keyIndex != null)
+			keyIndex.clear();
+		loadings.clear();
+	}
+
+	private void removeEntry(K key) {
+		if (entries.remove(key) != null && keyIndex != null)
+			keyIndex.remove(key);
+	}
+
+	/**
+	 * 清除所有已超时的条目。需要遍历所有条目。
+	 */
+	public synchronized void cleanUp() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<K, Entry<V>>> itr = entries.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry<K, Entry<V>> entry = itr.next();
+			if (isExpired(entry.getValue(), now)) {
+				itr.remove();
+				if (keyIndex != null)
+					keyIndex.remove(entry.getKey());
+				evictionCount.incrementAndGet();
+			}
+		}
+	}
+
+	private boolean isExpired(Entry<V> entry, long now) {
+		return now - entry.time > expireTime;
+	}
+
+	/**
+	 * 返回当前的条目数，可能包含已超时但还未清除的条目。
+	 *
+	 * @return 条目数
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * 返回此缓存到目前为止的统计信息。
+	 *
+	 * @return 统计信息
+	 */
+	public Stats stats() {
+		return new Stats(hitCount.get(), missCount.get(), loadCount.get(), evictionCount.get(), size());
+	}
+
+	/**
+	 * 缓存的统计信息。
+	 *
+	 * @author blove
+	 */
+	public static class Stats {
+		private final long hitCount;
+		private final long missCount;
+		private final long loadCount;
+		private final long evictionCount;
+		private final int size;
+
+		Stats(long hitCount, long missCount, long loadCount, long evictionCount, int size) {
+			this.hitCount = hitCount;
+			this.missCount = missCount;
+			this.loadCount = loadCount;
+			this.evictionCount = evictionCount;
+			this.size = size;
+		}
+
+		/**
+		 * 命中次数。
+		 */
+		public long getHitCount() {
+			return hitCount;
+		}
+
+		/**
+		 * 未命中次数。
+		 */
+		public long getMissCount() {
+			return missCount;
+		}
+
+		/**
+		 * 实际加载次数。同时等待同一次加载的多个请求只算一次。
+		 */
+		public long getLoadCount() {
+			return loadCount;
+		}
+
+		/**
+		 * 因超时或超过条目数上限而清除的条目数。
+		 */
+		public long getEvictionCount() {
+			return evictionCount;
+		}
+
+		/**
+		 * 当前的条目数。
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		@Override
+		public String toString() {
+			return "Stats [hitCount=" + hitCount + ", missCount=" + missCount + ", loadCount=" + loadCount
+					+ ", evictionCount=" + evictionCount + ", size=" + size + "]";
+		}
 	}
 }
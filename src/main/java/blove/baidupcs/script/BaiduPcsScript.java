@@ -1,6 +1,5 @@
 package blove.baidupcs.script;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -15,6 +14,7 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -43,8 +43,11 @@ import javax.script.ScriptEngineFactory;
 import javax.script.ScriptException;
 import javax.script.SimpleBindings;
 
-import retrofit.mime.TypedInput;
 import blove.baidupcs.api.BaiduPcs;
+import blove.baidupcs.api.BlockUploader;
+import blove.baidupcs.api.FileHashIndex;
+import blove.baidupcs.api.FileHashes;
+import blove.baidupcs.api.RangeDownloader;
 import blove.baidupcs.api.error.BaiduPcsException;
 import blove.baidupcs.api.error.BaiduPcsFileExistsException;
 import blove.baidupcs.api.error.BaiduPcsFileNotExistsException;
@@ -57,8 +60,6 @@ import blove.baidupcs.api.response.CloudDownloadMeta;
 import blove.baidupcs.api.response.CloudDownloadProgress;
 import blove.baidupcs.api.response.FileMeta;
 import blove.baidupcs.api.response.Quota;
-import blove.baidupcs.util.ProgressInputStream;
-import blove.baidupcs.util.ProgressObserver;
 
 /**
  * 百度个人云存储的脚本语言形式实现。实现{@link ScriptEngine}接口。
@@ -76,6 +77,13 @@ public class BaiduPcsScript extends AbstractScriptEngine {
 	 */
 	public static final String CURR_DIR = "blove.baidupcs.curr_dir";
 
+	/**
+	 * Attribute项，本地文件摘要值索引所在的目录。类型为String。不设置时为用户目录下的“.baidupcs/hash-index”。
+	 * 
+	 * @see FileHashIndex
+	 */
+	public static final String HASH_INDEX_DIR = "blove.baidupcs.hash_index_dir";
+
 	/**
 	 * 当前行数。执行一个命令时实时设置，供命令方法使用。类型为Integer。
 	 */
@@ -354,34 +362,36 @@ public class BaiduPcsScript extends AbstractScriptEngine {
 
 		final String pcsOriPath = absolutePcsPath;
 
-		if (Files.isDirectory(localOriPath)) {
-			Files.walkFileTree(localOriPath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
-					new SimpleFileVisitor<Path>() {
-
-						@Override
-						public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
-								throws IOException {
-							String pcsCurrPath = genePcsPath(localOriPath, dir, pcsOriPath);
-							pcs.mkdir(pcsCurrPath);
-							return FileVisitResult.CONTINUE;
-						}
+		try (final FileHashIndex index = openHashIndex(context)) {
+			if (Files.isDirectory(localOriPath)) {
+				Files.walkFileTree(localOriPath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+						new SimpleFileVisitor<Path>() {
+
+							@Override
+							public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+									throws IOException {
+								String pcsCurrPath = genePcsPath(localOriPath, dir, pcsOriPath);
+								pcs.mkdir(pcsCurrPath);
+								return FileVisitResult.CONTINUE;
+							}
 
-						@Override
-						public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-							String pcsCurrPath = genePcsPath(localOriPath, file, pcsOriPath);
-							try {
-								uploadFile(context, file, pcsCurrPath);
-							} catch (ScriptException e) {
-								throw new IOException(e);
+							@Override
+							public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+								String pcsCurrPath = genePcsPath(localOriPath, file, pcsOriPath);
+								try {
+									uploadFile(context, index, file, pcsCurrPath);
+								} catch (ScriptException e) {
+									throw new IOException(e);
+								}
+								return FileVisitResult.CONTINUE;
 							}
-							return FileVisitResult.CONTINUE;
-						}
 
-					});
-		} else if (Files.isRegularFile(localOriPath)) {
-			uploadFile(context, localOriPath, absolutePcsPath);
-		} else {
-			errorOut.println("File type is unsupported.");
+						});
+			} else if (Files.isRegularFile(localOriPath)) {
+				uploadFile(context, index, localOriPath, absolutePcsPath);
+			} else {
+				errorOut.println("File type is unsupported.");
+			}
 		}
 	}
 
@@ -403,70 +413,84 @@ public class BaiduPcsScript extends AbstractScriptEngine {
 		return pcsCurrPath.toString();
 	}
 
-	private void uploadFile(final ScriptContext context, Path localPath, final String absolutePcsPath)
-			throws ScriptException, IOException {
+	private void uploadFile(final ScriptContext context, FileHashIndex index, Path localPath,
+			final String absolutePcsPath) throws ScriptException, IOException {
 		final PrintWriter out = getOutput(context);
 
-		// 先尝试秒传，失败再以普通方式上传
+		BaiduPcs pcs = checkBaiduPcs(context);
+		BlockUploader uploader = new BlockUploader(pcs);
+
+		// 只读一遍文件，同时得到秒传识别信息和各块MD5（文件未变化时直接取自索引）；先尝试秒传，失败再分块上传
 		out.print("HASHING \t" + absolutePcsPath);
 		out.flush();
-		if (tryRapidUploadFile(context, localPath, absolutePcsPath)) {
+		int blockSize = uploader.blockSizeFor(Math.max(1, Files.size(localPath)));
+		FileHashes hashes = index != null ? index.compute(localPath, blockSize) : FileHashes.compute(localPath,
+				blockSize);
+		if (tryRapidUploadFile(context, hashes, absolutePcsPath)) {
 			// 秒传成功
 			out.println("\rRAPID \t" + absolutePcsPath);
 			return;
 		}
 
-		BaiduPcs pcs = checkBaiduPcs(context);
-
-		// 设一个允许显示进度的标志。避免在监视器多线程通知的情况下出问题，比如上传完了进度还没显示完。
+		// 设一个允许显示进度的标志。上传线程可能在上传完成或失败之后才通知进度，此时不再显示，避免与结果或错误输出交错。
 		final String RATE_PRINT_ALLOWED = "blove.baidupcs.rate_print_allowed." + Thread.currentThread().getId();
 		context.setAttribute(RATE_PRINT_ALLOWED, 1, ScriptContext.ENGINE_SCOPE);
-
-		try (InputStream in = new BufferedInputStream(Files.newInputStream(localPath))) {
-			long length = Files.size(localPath);
-			ProgressInputStream pin = new ProgressInputStream(in, length);
-			pin.addObserver(new ProgressObserver() {
-
-				@Override
-				public void update(ProgressInputStream stream, double rate) {
+		try {
+			uploader.upload(absolutePcsPath, localPath, hashes, OnDup.EXCEPTION, (uploaded, total) -> {
+				synchronized (out) {
 					if (context.getAttribute(RATE_PRINT_ALLOWED) != null) {
-						out.print("\r" + (int) (rate * 100) + "%   \t" + absolutePcsPath);
+						out.print("\r" + (int) (uploaded * 100 / total) + "%   \t" + absolutePcsPath);
 						out.flush();
 					}
 				}
 			});
-
-			pcs.upload(absolutePcsPath, pin, length, OnDup.EXCEPTION);
+		} finally {
+			synchronized (out) {
+				context.removeAttribute(RATE_PRINT_ALLOWED, ScriptContext.ENGINE_SCOPE);
+			}
 		}
-
-		context.removeAttribute(RATE_PRINT_ALLOWED, ScriptContext.ENGINE_SCOPE);
 		out.println();
 	}
 
+	/**
+	 * 打开本地文件摘要值索引。使用完毕后应关闭。
+	 * 
+	 * @param context
+	 * @return 索引。如果无法打开（如正被其他进程使用）则返回null，此时每次都重新计算摘要值。
+	 */
+	private FileHashIndex openHashIndex(ScriptContext context) {
+		Object dir = context.getAttribute(HASH_INDEX_DIR);
+		Path indexDir = dir != null ? Paths.get(dir.toString()) : Paths.get(System.getProperty("user.home"),
+				".baidupcs", "hash-index");
+		try {
+			return FileHashIndex.open(indexDir);
+		} catch (IOException e) {
+			getErrorOutput(context).println("Cannot open hash index " + indexDir + ", continue without it: " + e);
+			return null;
+		}
+	}
+
 	/**
 	 * 尝试秒传文件。
 	 * 
 	 * @param context
-	 * @param localPath
-	 *             文件本地路径
+	 * @param hashes
+	 *             文件的摘要值
 	 * @param absolutePcsPath
 	 *             上传为文件路径
 	 * @return 成功返回true；失败返回false。
 	 * @throws IOException
 	 * @throws ScriptException
 	 */
-	private boolean tryRapidUploadFile(final ScriptContext context, Path localPath, final String absolutePcsPath)
+	private boolean tryRapidUploadFile(final ScriptContext context, FileHashes hashes, final String absolutePcsPath)
 			throws IOException, ScriptException {
-		if (Files.size(localPath) <= 1024 * 256)
+		if (hashes.getSize() <= 1024 * 256)
 			// 256K及以下的文件不使用快速上传（REST API的规定）
 			return false;
 
 		BaiduPcs pcs = checkBaiduPcs(context);
 
-		RapidUploadRecogInfo param;
-		try (InputStream in = new BufferedInputStream(Files.newInputStream(localPath))) {
-			param = RapidUploadRecogInfo.fromInputStream(in);
-		}
+		RapidUploadRecogInfo param = hashes.getRecogInfo();
 		if (param == null)
 			return false;
 
@@ -523,27 +547,27 @@ public class BaiduPcsScript extends AbstractScriptEngine {
 		final PrintWriter out = getOutput(context);
 
 		BaiduPcs pcs = checkBaiduPcs(context);
-		TypedInput typedInput = pcs.download(pcsAbsolutePath);
+		// 未完成的下载继续下载，已存在的其他文件不覆盖
+		if (Files.exists(localPath) && !RangeDownloader.isPartial(localPath))
+			throw new FileAlreadyExistsException(localPath.toString());
 
 		// 设一个允许显示进度的标志。避免在监视器多线程通知的情况下出问题，比如上传完了进度还没显示完。
 		final String RATE_PRINT_ALLOWED = "blove.baidupcs.rate_print_allowed." + Thread.currentThread().getId();
 		context.setAttribute(RATE_PRINT_ALLOWED, 1, ScriptContext.ENGINE_SCOPE);
 
-		try (InputStream in = typedInput.in()) {
-			ProgressInputStream pin = new ProgressInputStream(in, typedInput.length());
-			pin.addObserver(new ProgressObserver() {
+		new RangeDownloader(pcs).downloadResumable(pcsAbsolutePath, localPath, new RangeDownloader.ProgressListener() {
+			private int lastPercent = -1;
 
-				@Override
-				public void update(ProgressInputStream stream, double rate) {
-					if (context.getAttribute(RATE_PRINT_ALLOWED) != null) {
-						out.print("\r" + (int) (rate * 100) + "% " + localPath);
-						out.flush();
-					}
+			@Override
+			public void update(long downloaded, long total) {
+				int percent = (int) (downloaded * 100 / total);
+				if (percent != lastPercent && context.getAttribute(RATE_PRINT_ALLOWED) != null) {
+					lastPercent = percent;
+					out.print("\r" + percent + "% " + localPath);
+					out.flush();
 				}
-			});
-
-			Files.copy(pin, localPath);
-		}
+			}
+		});
 
 		context.removeAttribute(RATE_PRINT_ALLOWED, ScriptContext.ENGINE_SCOPE);
 		out.println();
@@ -849,8 +873,8 @@ public class BaiduPcsScript extends AbstractScriptEngine {
 		if (Files.isDirectory(localPath)) {
 			// 存在，是目录
 			localPath = localPath.resolve(fileName);
-		} else if (Files.exists(localPath)) {
-			// 存在，是文件，不覆盖，忽略
+		} else if (Files.exists(localPath) && !RangeDownloader.isPartial(localPath)) {
+			// 存在，是文件，不覆盖，忽略。未完成的下载继续下载。
 			return null;
 		} else {
 			// 不存在，就这样了
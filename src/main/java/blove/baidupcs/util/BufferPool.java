@@ -0,0 +1,286 @@
+package blove.baidupcs.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * 传输用缓冲区的池，可以重复使用字节数组或直接内存ByteBuffer，减少大量并发传输时的分配和GC。<br>
+ * 缓冲区按2的幂分为若干大小级别，从{@link #MIN_POOLED_SIZE}到{@link #MAX_POOLED_SIZE}，取得的缓冲区可能比请求的大。
+ * 超出此范围的请求直接分配，归还时丢弃。<br>
+ * 每个线程先在自己的本地缓存中存取，本地缓存满了或空了再使用全局的溢出队列；1MB及以上的级别只使用全局队列，
+ * 因为大缓冲区常在一个线程中取得、在另一个线程中归还。全局队列中每个级别保留的字节数有上限，超出的缓冲区丢弃。<br>
+ * 缓冲区归还之后不能再使用。线程安全。分配和重用的次数可以通过{@link #stats()}获取。
+ *
+ * @author blove
+ */
+public class BufferPool {
+	/**
+	 * 池中最小的缓冲区大小。
+	 */
+	public static final int MIN_POOLED_SIZE = 1024 * 4;// 4KB
+	/**
+	 * 池中最大的缓冲区大小。
+	 */
+	public static final int MAX_POOLED_SIZE = 1024 * 1024 * 8;// 8MB
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_POOLED_SIZE);
+	private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE) - MIN_SHIFT + 1;
+	/**
+	 * 只使用全局队列的最小级别大小。
+	 */
+	private static final int MIN_GLOBAL_ONLY_SIZE = 1024 * 1024;// 1MB
+	/**
+	 * 每个线程本地缓存中每个级别最多保留的缓冲区数。
+	 */
+	private static final int LOCAL_CAPACITY = 4;
+	/**
+	 * 全局队列中每个级别默认最多保留的字节数。
+	 */
+	private static final long DEFAULT_GLOBAL_CAPACITY = 1024 * 1024 * 32;// 32MB
+
+	private static final BufferPool SHARED = new BufferPool(DEFAULT_GLOBAL_CAPACITY);
+
+	private final Pool<byte[]> heapPool;
+	private final Pool<ByteBuffer> directPool;
+
+	/**
+	 * 返回全局共用的实例。
+	 *
+	 * @return 实例
+	 */
+	public static BufferPool shared() {
+		return SHARED;
+	}
+
+	/**
+	 * 新建一个实例。
+	 *
+	 * @param globalCapacity
+	 *             全局队列中每个级别最多保留的字节数。堆上和直接内存分别计算。
+	 * @throws IllegalArgumentException
+	 *              容量为负数
+	 */
+	public BufferPool(long globalCapacity) {
+		if (globalCapacity < 0)
+			throw new IllegalArgumentException("Global capacity cannot be negative: " + globalCapacity);
+		this.heapPool = new Pool<>(globalCapacity, byte[]::new, array -> array.length);
+		this.directPool = new Pool<>(globalCapacity, ByteBuffer::allocateDirect, ByteBuffer::capacity);
+	}
+
+	/**
+	 * 取得一个字节数组。
+	 *
+	 * @param minSize
+	 *             最小长度
+	 * @return 字节数组。长度不小于minSize，内容不确定。
+	 */
+	public byte[] acquire(int minSize) {
+		return heapPool.acquire(minSize);
+	}
+
+	/**
+	 * 归还一个通过{@link #acquire(int)}取得的字节数组。
+	 *
+	 * @param buffer
+	 *             字节数组。如果为null则忽略。
+	 */
+	public void release(byte[] buffer) {
+		if (buffer != null)
+			heapPool.release(buffer);
+	}
+
+	/**
+	 * 取得一个直接内存ByteBuffer。
+	 *
+	 * @param minSize
+	 *             最小容量
+	 * @return ByteBuffer。位置为0，界限为minSize，内容不确定。
+	 */
+	public ByteBuffer acquireDirect(int minSize) {
+		ByteBuffer buffer = directPool.acquire(minSize);
+		buffer.clear().limit(minSize);
+		return buffer;
+	}
+
+	/**
+	 * 归还一个通过{@link #acquireDirect(int)}取得的ByteBuffer。
+	 *
+	 * @param buffer
+	 *             ByteBuffer。如果为null则忽略。
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer != null)
+			directPool.release(buffer);
+	}
+
+	/**
+	 * 返回此池到目前为止的统计信息，堆上和直接内存合计。
+	 *
+	 * @return 统计信息
+	 */
+	public Stats stats() {
+		return new Stats(heapPool.acquireCount.get() + directPool.acquireCount.get(), heapPool.allocationCount.get()
+				+ directPool.allocationCount.get(), heapPool.allocatedBytes.get() + directPool.allocatedBytes.get(),
+				heapPool.discardCount.get() + directPool.discardCount.get());
+	}
+
+	/**
+	 * 返回指定大小所在的级别。如果超出池的范围则返回-1。
+	 */
+	private static int sizeClass(int size) {
+		if (size > MAX_POOLED_SIZE)
+			return -1;
+		if (size <= MIN_POOLED_SIZE)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	private static int classSize(int sizeClass) {
+		return MIN_POOLED_SIZE << sizeClass;
+	}
+
+	/**
+	 * 一种缓冲区的池。
+	 *
+	 * @param <T>
+	 *             缓冲区类型
+	 */
+	private static class Pool<T> {
+		final IntFunction<T> allocator;
+		final ToIntFunction<T> sizeOf;
+		final int[] globalLimits = new int[CLASS_COUNT];
+		final Queue<T>[] globals;
+		final AtomicInteger[] globalSizes = new AtomicInteger[CLASS_COUNT];
+		final ThreadLocal<ArrayDeque<T>[]> locals;
+
+		final AtomicLong acquireCount = new AtomicLong();
+		final AtomicLong allocationCount = new AtomicLong();
+		final AtomicLong allocatedBytes = new AtomicLong();
+		final AtomicLong discardCount = new AtomicLong();
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Pool(long globalCapacity, IntFunction<T> allocator, ToIntFunction<T> sizeOf) {
+			this.allocator = allocator;
+			this.sizeOf = sizeOf;
+			this.globals = new Queue[CLASS_COUNT];
+			for (int i = 0; i < CLASS_COUNT; i++) {
+				globals[i] = new ConcurrentLinkedQueue<>();
+				globalSizes[i] = new AtomicInteger();
+				globalLimits[i] = (int) Math.min(Integer.MAX_VALUE, globalCapacity / classSize(i));
+			}
+			this.locals = ThreadLocal.withInitial(() -> new ArrayDeque[CLASS_COUNT]);
+		}
+
+		T acquire(int minSize) {
+			acquireCount.incrementAndGet();
+			int sizeClass = sizeClass(minSize);
+			if (sizeClass < 0)
+				return allocate(minSize);
+
+			T buffer = null;
+			if (classSize(sizeClass) < MIN_GLOBAL_ONLY_SIZE) {
+				ArrayDeque<T> local = locals.get()[sizeClass];
+				if (local != null)
+					buffer = local.poll();
+			}
+			if (buffer == null) {
+				buffer = globals[sizeClass].poll();
+				if (buffer != null)
+					globalSizes[sizeClass].decrementAndGet();
+			}
+			return buffer != null ? buffer : allocate(classSize(sizeClass));
+		}
+
+		private T allocate(int size) {
+			allocationCount.incrementAndGet();
+			allocatedBytes.addAndGet(size);
+			return allocator.apply(size);
+		}
+
+		void release(T buffer) {
+			int size = sizeOf.applyAsInt(buffer);
+			int sizeClass = sizeClass(size);
+			// 不是池中分配的大小，丢弃
+			if (sizeClass < 0 || classSize(sizeClass) != size) {
+				discardCount.incrementAndGet();
+				return;
+			}
+
+			if (size < MIN_GLOBAL_ONLY_SIZE) {
+				ArrayDeque<T>[] localArray = locals.get();
+				ArrayDeque<T> local = localArray[sizeClass];
+				if (local == null)
+					local = localArray[sizeClass] = new ArrayDeque<>(LOCAL_CAPACITY);
+				if (local.size() < LOCAL_CAPACITY) {
+					local.push(buffer);
+					return;
+				}
+			}
+			if (globalSizes[sizeClass].incrementAndGet() <= globalLimits[sizeClass]) {
+				globals[sizeClass].offer(buffer);
+			} else {
+				globalSizes[sizeClass].decrementAndGet();
+				discardCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * 缓冲区池的统计信息。
+	 *
+	 * @author blove
+	 */
+	public static class Stats {
+		private final long acquireCount;
+		private final long allocationCount;
+		private final long allocatedBytes;
+		private final long discardCount;
+
+		Stats(long acquireCount, long allocationCount, long allocatedBytes, long discardCount) {
+			this.acquireCount = acquireCount;
+			this.allocationCount = allocationCount;
+			this.allocatedBytes = allocatedBytes;
+			this.discardCount = discardCount;
+		}
+
+		/**
+		 * 取得缓冲区的次数。
+		 */
+		public long getAcquireCount() {
+			return acquireCount;
+		}
+
+		/**
+		 * 实际新分配缓冲区的次数。取得次数减去此值即为重用的次数。
+		 */
+		public long getAllocationCount() {
+			return allocationCount;
+		}
+
+		/**
+		 * 新分配的缓冲区的总字节数。
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		/**
+		 * 归还时因池已满或大小不符而丢弃的缓冲区数。
+		 */
+		public long getDiscardCount() {
+			return discardCount;
+		}
+
+		@Override
+		public String toString() {
+			return "Stats [acquireCount=" + acquireCount + ", allocationCount=" + allocationCount
+					+ ", allocatedBytes=" + allocatedBytes + ", discardCount=" + discardCount + "]";
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package blove.baidupcs.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 计算和表示摘要值的工具方法。
+ *
+ * @author blove
+ */
+public class Hashes {
+	private Hashes() {
+	}
+
+	/**
+	 * 新建一个MD5摘要实例。
+	 *
+	 * @return MessageDigest
+	 */
+	public static MessageDigest newMD5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			// 每个Java平台实现都必须支持MD5
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 计算字节数组中指定部分的MD5，以十六进制小写字符串表示。
+	 *
+	 * @param bytes
+	 *             字节数组
+	 * @param offset
+	 *             起始位置
+	 * @param length
+	 *             长度
+	 * @return MD5字符串
+	 */
+	public static String md5Hex(byte[] bytes, int offset, int length) {
+		MessageDigest md5 = newMD5();
+		md5.update(bytes, offset, length);
+		return hexString(md5.digest());
+	}
+
+	/**
+	 * 将字节数组转换为十六进制小写字符串。
+	 *
+	 * @param bytes
+	 *             字节数组
+	 * @return 字符串
+	 */
+	public static String hexString(byte[] bytes) {
+		StringBuilder hexString = new StringBuilder(bytes.length * 2);
+		for (int i = 0; i < bytes.length; i++) {
+			if ((0xff & bytes[i]) < 0x10)
+				hexString.append('0');
+			hexString.append(Integer.toHexString(0xFF & bytes[i]));
+		}
+		return hexString.toString();
+	}
+}
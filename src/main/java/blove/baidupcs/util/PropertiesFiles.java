@@ -0,0 +1,78 @@
+package blove.baidupcs.util;
+
+import static java.nio.file.StandardOpenOption.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * 读写本地Properties状态文件的工具方法。写出时先写到临时文件并落盘，再原子地替换原文件，保证进程在任何时刻崩溃都不会留下损坏的文件。
+ *
+ * @author blove
+ */
+public class PropertiesFiles {
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+	private PropertiesFiles() {
+	}
+
+	/**
+	 * 读取文件。
+	 *
+	 * @param file
+	 *             文件路径
+	 * @return 文件内容。如果文件不存在或无法解析则返回null。
+	 * @throws IOException
+	 */
+	public static Properties load(Path file) throws IOException {
+		Properties props = new Properties();
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			props.load(reader);
+			return props;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			// 内容格式不正确，当作没有
+			return null;
+		}
+	}
+
+	/**
+	 * 原子地写出文件。
+	 *
+	 * @param props
+	 *             文件内容
+	 * @param file
+	 *             文件路径
+	 * @param comments
+	 *             文件头部的注释
+	 * @throws IOException
+	 */
+	public static void storeAtomically(Properties props, Path file, String comments) throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		try (Writer writer = new OutputStreamWriter(content, StandardCharsets.UTF_8)) {
+			props.store(writer, comments);
+		}
+
+		// 临时文件内容落盘之后再替换，避免替换后的文件内容还未写到磁盘
+		Path tempFile = file.resolveSibling(file.getFileName() + TEMP_FILE_SUFFIX);
+		try (FileChannel channel = FileChannel.open(tempFile, CREATE, WRITE, TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(content.toByteArray());
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(true);
+		}
+		Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,134 @@
+package blove.baidupcs.api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import blove.baidupcs.api.response.FileMetaWithExtra1;
+import blove.baidupcs.util.PropertiesFiles;
+
+import com.google.gson.Gson;
+
+/**
+ * {@link DownloadJournal}的测试。
+ *
+ * @author blove
+ */
+public class DownloadJournalTest {
+	private static final long SIZE = 100;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path localFile;
+
+	@Before
+	public void setUp() throws IOException {
+		localFile = folder.getRoot().toPath().resolve("file");
+		Files.createFile(localFile);
+	}
+
+	private static FileMetaWithExtra1 meta(long size, long mtime) {
+		return new Gson().fromJson("{\"fsID\":1,\"path\":\"/apps/test/file\",\"mtime\":" + mtime + ",\"size\":" + size
+				+ ",\"blockList\":\"[\\\"abc\\\",\\\"def\\\"]\"}", FileMetaWithExtra1.class);
+	}
+
+	private static void assertRanges(long[][] expected, List<long[]> actual) {
+		assertEquals(expected.length, actual.size());
+		for (int i = 0; i < expected.length; i++)
+			assertArrayEquals(expected[i], actual.get(i));
+	}
+
+	@Test
+	public void newJournalMissesWholeFile() throws IOException {
+		DownloadJournal journal = DownloadJournal.open(localFile, meta(SIZE, 1));
+		assertRanges(new long[][] { { 0, SIZE } }, journal.missing(SIZE));
+		assertTrue(Files.exists(DownloadJournal.journalFileOf(localFile)));
+	}
+
+	@Test
+	public void adjacentAndOverlappingRangesMerge() throws IOException {
+		DownloadJournal journal = DownloadJournal.open(localFile, meta(SIZE, 1));
+		journal.add(0, 10);
+		journal.add(20, 30);
+		journal.add(50, 60);
+		assertRanges(new long[][] { { 10, 20 }, { 30, 50 }, { 60, SIZE } }, journal.missing(SIZE));
+
+		// 相邻
+		journal.add(10, 20);
+		assertRanges(new long[][] { { 30, 50 }, { 60, SIZE } }, journal.missing(SIZE));
+		// 被已有范围包含
+		journal.add(5, 25);
+		assertRanges(new long[][] { { 30, 50 }, { 60, SIZE } }, journal.missing(SIZE));
+		// 跨越多个范围
+		journal.add(25, 70);
+		assertRanges(new long[][] { { 70, SIZE } }, journal.missing(SIZE));
+
+		journal.add(70, SIZE);
+		assertTrue(journal.missing(SIZE).isEmpty());
+	}
+
+	@Test
+	public void savedRangesSurviveReopen() throws IOException {
+		DownloadJournal journal = DownloadJournal.open(localFile, meta(SIZE, 1));
+		journal.add(0, 10);
+		journal.add(40, 50);
+		journal.save(null);
+
+		DownloadJournal reopened = DownloadJournal.open(localFile, meta(SIZE, 1));
+		assertRanges(new long[][] { { 10, 40 }, { 50, SIZE } }, reopened.missing(SIZE));
+	}
+
+	@Test
+	public void changedRemoteFileStartsOver() throws IOException {
+		DownloadJournal journal = DownloadJournal.open(localFile, meta(SIZE, 1));
+		journal.add(0, 10);
+		journal.save(null);
+
+		DownloadJournal reopened = DownloadJournal.open(localFile, meta(SIZE, 2));
+		assertRanges(new long[][] { { 0, SIZE } }, reopened.missing(SIZE));
+	}
+
+	@Test
+	public void missingLocalFileStartsOver() throws IOException {
+		DownloadJournal journal = DownloadJournal.open(localFile, meta(SIZE, 1));
+		journal.add(0, 10);
+		journal.save(null);
+		Files.delete(localFile);
+
+		DownloadJournal reopened = DownloadJournal.open(localFile, meta(SIZE, 1));
+		assertRanges(new long[][] { { 0, SIZE } }, reopened.missing(SIZE));
+	}
+
+	@Test
+	public void invalidRangesStartOver() throws IOException {
+		DownloadJournal journal = DownloadJournal.open(localFile, meta(SIZE, 1));
+		journal.save(null);
+		Path journalFile = DownloadJournal.journalFileOf(localFile);
+		Properties props = PropertiesFiles.load(journalFile);
+		props.setProperty("ranges", "0-10,90-" + (SIZE + 1));
+		PropertiesFiles.storeAtomically(props, journalFile, null);
+
+		DownloadJournal reopened = DownloadJournal.open(localFile, meta(SIZE, 1));
+		assertRanges(new long[][] { { 0, SIZE } }, reopened.missing(SIZE));
+	}
+
+	@Test
+	public void deleteRemovesJournalFile() throws IOException {
+		DownloadJournal journal = DownloadJournal.open(localFile, meta(SIZE, 1));
+		journal.delete();
+		assertFalse(Files.exists(DownloadJournal.journalFileOf(localFile)));
+	}
+}
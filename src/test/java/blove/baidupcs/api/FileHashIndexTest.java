@@ -0,0 +1,205 @@
+package blove.baidupcs.api;
+
+import static java.nio.file.StandardOpenOption.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import blove.baidupcs.api.request.RapidUploadRecogInfo;
+
+/**
+ * {@link FileHashIndex}的测试。
+ *
+ * @author blove
+ */
+public class FileHashIndexTest {
+	private static final int BLOCK_SIZE = 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path indexDir;
+	private Path logFile;
+	private FileHashIndex index;
+
+	@Before
+	public void setUp() throws IOException {
+		indexDir = folder.getRoot().toPath().resolve("index");
+		logFile = indexDir.resolve("log");
+		index = FileHashIndex.open(indexDir);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (index != null)
+			index.close();
+	}
+
+	private Path newFile(String name, String content) throws IOException {
+		Path file = folder.getRoot().toPath().resolve(name);
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	private void reopen() throws IOException {
+		index.close();
+		index = null;
+		index = FileHashIndex.open(indexDir);
+	}
+
+	@Test
+	public void computedHashesSurviveReopen() throws IOException {
+		// 足够大，才有秒传所需的摘要值
+		Path file = folder.getRoot().toPath().resolve("a");
+		byte[] content = new byte[(int) RapidUploadRecogInfo.SLICE_SIZE + 100];
+		for (int i = 0; i < content.length; i++)
+			content[i] = (byte) i;
+		Files.write(file, content);
+		FileHashes hashes = index.compute(file, BLOCK_SIZE);
+		assertEquals(FileHashes.compute(file, BLOCK_SIZE).getBlockMD5s(), hashes.getBlockMD5s());
+
+		reopen();
+		FileHashes indexed = index.get(file, BLOCK_SIZE);
+		assertNotNull(indexed);
+		assertEquals(hashes.getBlockMD5s(), indexed.getBlockMD5s());
+		assertEquals(hashes.getRecogInfo().getContentMD5(), indexed.getRecogInfo().getContentMD5());
+		assertEquals(hashes.getRecogInfo().getSliceMD5(), indexed.getRecogInfo().getSliceMD5());
+		assertEquals(hashes.getRecogInfo().getContentCRC32(), indexed.getRecogInfo().getContentCRC32());
+		assertNull(index.get(file, BLOCK_SIZE * 2));
+	}
+
+	@Test
+	public void changedFileMisses() throws IOException {
+		Path file = newFile("a", "hello world");
+		index.compute(file, BLOCK_SIZE);
+		newFile("a", "hello world, again");
+		assertNull(index.get(file, BLOCK_SIZE));
+
+		FileHashes hashes = index.compute(file, BLOCK_SIZE);
+		assertEquals(FileHashes.compute(file, BLOCK_SIZE).getBlockMD5s(), hashes.getBlockMD5s());
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void tornTailIsTruncated() throws IOException {
+		Path fileA = newFile("a", "first");
+		Path fileB = newFile("b", "second");
+		index.compute(fileA, BLOCK_SIZE);
+		index.compute(fileB, BLOCK_SIZE);
+		index.close();
+		index = null;
+		long validSize = Files.size(logFile);
+
+		// 模拟写到一半时崩溃：记录头声明100字节，实际只写了10字节
+		try (FileChannel channel = FileChannel.open(logFile, WRITE, APPEND)) {
+			ByteBuffer torn = ByteBuffer.allocate(18);
+			torn.putInt(100).putInt(12345).put(new byte[10]);
+			torn.flip();
+			channel.write(torn);
+		}
+
+		index = FileHashIndex.open(indexDir);
+		assertEquals(2, index.size());
+		assertEquals(validSize, Files.size(logFile));
+		assertNotNull(index.get(fileA, BLOCK_SIZE));
+		assertNotNull(index.get(fileB, BLOCK_SIZE));
+
+		// 截掉之后追加的记录可以正常读取
+		Path fileC = newFile("c", "third");
+		index.compute(fileC, BLOCK_SIZE);
+		reopen();
+		assertEquals(3, index.size());
+		assertNotNull(index.get(fileC, BLOCK_SIZE));
+	}
+
+	@Test
+	public void corruptedTailRecordIsDropped() throws IOException {
+		Path fileA = newFile("a", "first");
+		Path fileB = newFile("b", "second");
+		index.compute(fileA, BLOCK_SIZE);
+		index.compute(fileB, BLOCK_SIZE);
+		index.close();
+		index = null;
+
+		// 破坏最后一条记录的最后一个字节，使校验值不符
+		try (FileChannel channel = FileChannel.open(logFile, READ, WRITE)) {
+			ByteBuffer last = ByteBuffer.allocate(1);
+			channel.read(last, channel.size() - 1);
+			last.put(0, (byte) ~last.get(0));
+			last.rewind();
+			channel.write(last, channel.size() - 1);
+		}
+
+		index = FileHashIndex.open(indexDir);
+		assertEquals(1, index.size());
+		assertNotNull(index.get(fileA, BLOCK_SIZE));
+		assertNull(index.get(fileB, BLOCK_SIZE));
+	}
+
+	@Test
+	public void explicitCompactionKeepsEntries() throws IOException {
+		Path fileA = newFile("a", "first");
+		Path fileB = newFile("b", "second");
+		index.compute(fileA, BLOCK_SIZE);
+		index.compute(fileB, BLOCK_SIZE);
+		index.compact();
+		assertEquals(0, Files.size(logFile));
+		assertTrue(Files.exists(indexDir.resolve("snapshot")));
+
+		// 快照之后的日志应用在快照之上
+		newFile("a", "first, changed");
+		FileHashes hashes = index.compute(fileA, BLOCK_SIZE);
+		reopen();
+		assertEquals(2, index.size());
+		assertEquals(hashes.getBlockMD5s(), index.get(fileA, BLOCK_SIZE).getBlockMD5s());
+		assertNotNull(index.get(fileB, BLOCK_SIZE));
+	}
+
+	@Test
+	public void logIsCompactedWhenRecordsOutnumberEntries() throws IOException {
+		Path file = newFile("a", "content");
+		for (int i = 1; i < 1000; i++) {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(i * 1000L));
+			index.compute(file, BLOCK_SIZE);
+		}
+		assertTrue(Files.size(logFile) > 0);
+
+		Files.setLastModifiedTime(file, FileTime.fromMillis(1000 * 1000L));
+		index.compute(file, BLOCK_SIZE);
+		assertEquals(0, Files.size(logFile));
+		assertEquals(1, index.size());
+
+		reopen();
+		assertEquals(1, index.size());
+		assertNotNull(index.get(file, BLOCK_SIZE));
+	}
+
+	@Test
+	public void secondOpenFailsWhileInUse() throws IOException {
+		try {
+			FileHashIndex.open(indexDir).close();
+			fail();
+		} catch (IOException e) {
+			// 预期
+		}
+
+		reopen();
+		assertEquals(0, index.size());
+	}
+}
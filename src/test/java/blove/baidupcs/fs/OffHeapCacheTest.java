@@ -0,0 +1,172 @@
+package blove.baidupcs.fs;
+
+import static blove.baidupcs.fs.OffHeapCache.SLOT_SIZE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * {@link OffHeapCache}的测试。
+ *
+ * @author blove
+ */
+public class OffHeapCacheTest {
+	private static final Path FILE_A = Paths.get("/a");
+	private static final Path FILE_B = Paths.get("/b");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private OffHeapCache cache;
+
+	@After
+	public void tearDown() throws IOException {
+		if (cache != null)
+			cache.close();
+	}
+
+	/**
+	 * 返回指定长度的数据，每个字节由种子和位置决定。
+	 */
+	private static byte[] bytes(int seed, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = (byte) (seed * 31 + i);
+		return bytes;
+	}
+
+	private byte[] read(Path path, long position, int maxSize) {
+		ByteBuffer dst = ByteBuffer.allocate(maxSize);
+		int size = cache.read(path, position, dst, maxSize);
+		return Arrays.copyOf(dst.array(), size);
+	}
+
+	@Test
+	public void readsAcrossSlots() throws IOException {
+		cache = new OffHeapCache(SLOT_SIZE * 8, null);
+		byte[] data = bytes(1, SLOT_SIZE * 2 + 100);
+		cache.put(FILE_A, 1000, data);
+		assertEquals(SLOT_SIZE * 3, cache.size());
+
+		assertArrayEquals(data, read(FILE_A, 1000, data.length));
+		// 从中间开始，跨越槽的边界
+		int offset = SLOT_SIZE - 10;
+		assertArrayEquals(Arrays.copyOfRange(data, offset, offset + 20), read(FILE_A, 1000 + offset, 20));
+		// 读到数据段末尾为止
+		assertEquals(100, read(FILE_A, 1000 + SLOT_SIZE * 2, SLOT_SIZE).length);
+	}
+
+	@Test
+	public void missReturnsZero() throws IOException {
+		cache = new OffHeapCache(SLOT_SIZE * 8, null);
+		cache.put(FILE_A, 100, bytes(1, 100));
+		assertEquals(0, read(FILE_A, 0, 10).length);
+		assertEquals(0, read(FILE_A, 200, 10).length);
+		assertEquals(0, read(FILE_B, 100, 10).length);
+	}
+
+	@Test
+	public void putReplacesOverlappingSegments() throws IOException {
+		cache = new OffHeapCache(SLOT_SIZE * 8, null);
+		cache.put(FILE_A, 0, bytes(1, SLOT_SIZE * 2));
+		byte[] data = bytes(2, 10);
+		cache.put(FILE_A, SLOT_SIZE, data);
+
+		assertEquals(0, read(FILE_A, 0, 10).length);
+		assertArrayEquals(data, read(FILE_A, SLOT_SIZE, 10));
+		assertEquals(SLOT_SIZE, cache.size());
+	}
+
+	@Test
+	public void removeAndDropFreeSlots() throws IOException {
+		cache = new OffHeapCache(SLOT_SIZE * 8, null);
+		cache.put(FILE_A, 0, bytes(1, 100));
+		cache.put(FILE_A, 1000, bytes(2, 100));
+		cache.put(FILE_B, 0, bytes(3, 100));
+		assertEquals(SLOT_SIZE * 3, cache.size());
+
+		// 与范围重叠的整个数据段被删除
+		cache.remove(FILE_A, 50, 10);
+		assertEquals(0, read(FILE_A, 0, 10).length);
+		assertEquals(10, read(FILE_A, 1000, 10).length);
+		assertEquals(SLOT_SIZE * 2, cache.size());
+
+		cache.drop(FILE_A);
+		assertEquals(0, read(FILE_A, 1000, 10).length);
+		assertEquals(10, read(FILE_B, 0, 10).length);
+		assertEquals(SLOT_SIZE, cache.size());
+	}
+
+	@Test
+	public void evictsUnreferencedSegmentFirst() throws IOException {
+		cache = new OffHeapCache(SLOT_SIZE * 4, null);
+		for (int i = 0; i < 4; i++)
+			cache.put(FILE_A, i * 1000, bytes(i, 100));
+		// 第一个数据段被访问过，获得第二次机会
+		read(FILE_A, 0, 10);
+		cache.put(FILE_A, 4000, bytes(4, 100));
+
+		assertEquals(SLOT_SIZE * 4, cache.size());
+		assertEquals(10, read(FILE_A, 0, 10).length);
+		assertEquals(0, read(FILE_A, 1000, 10).length);
+		assertArrayEquals(bytes(4, 100), read(FILE_A, 4000, 100));
+	}
+
+	@Test
+	public void tooLargeSegmentIsIgnored() throws IOException {
+		cache = new OffHeapCache(SLOT_SIZE * 2, null);
+		cache.put(FILE_A, 0, bytes(1, SLOT_SIZE * 2 + 1));
+		assertEquals(0, cache.size());
+		assertEquals(0, read(FILE_A, 0, 10).length);
+	}
+
+	@Test
+	public void churnDoesNotLeakSlots() throws IOException {
+		int capacitySlots = 8;
+		cache = new OffHeapCache(SLOT_SIZE * capacitySlots, null);
+		for (int i = 0; i < 10000; i++) {
+			long position = (i % 16) * 1000L;
+			cache.put(FILE_A, position, bytes(i, 100 + i % SLOT_SIZE));
+			if (i % 3 == 0)
+				cache.remove(FILE_A, position, 1);
+			if (i % 101 == 0)
+				cache.drop(FILE_A);
+			assertTrue(cache.size() <= (long) SLOT_SIZE * capacitySlots);
+		}
+
+		// 删除过的数据段都已从环上摘下，填满之后仍能正常淘汰
+		cache.drop(FILE_A);
+		assertEquals(0, cache.size());
+		for (int i = 0; i < capacitySlots * 2; i++)
+			cache.put(FILE_B, i * 1000L, bytes(i, 100));
+		assertEquals(SLOT_SIZE * capacitySlots, cache.size());
+		for (int i = capacitySlots; i < capacitySlots * 2; i++)
+			assertArrayEquals(bytes(i, 100), read(FILE_B, i * 1000L, 100));
+	}
+
+	@Test
+	public void spillFileIsDeletedOnClose() throws IOException {
+		Path spillFile = folder.getRoot().toPath().resolve("spill");
+		cache = new OffHeapCache(SLOT_SIZE * 4, spillFile);
+		byte[] data = bytes(1, SLOT_SIZE + 1);
+		cache.put(FILE_A, 0, data);
+		assertArrayEquals(data, read(FILE_A, 0, data.length));
+
+		cache.close();
+		cache = null;
+		assertFalse(Files.exists(spillFile));
+	}
+}
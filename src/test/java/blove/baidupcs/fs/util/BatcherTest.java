@@ -0,0 +1,206 @@
+package blove.baidupcs.fs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link Batcher}的测试。<br>
+ * 先用一个阻塞在单个加载中的请求占住，使之后的请求总能看到其他进行中的请求而等待时间窗口，从而确定地合并为一批。
+ *
+ * @author blove
+ */
+public class BatcherTest {
+	private static final String BLOCK = "block";
+	private static final String BAD = "bad";
+
+	private ExecutorService executor;
+	private final CountDownLatch blocked = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final List<List<String>> batchLoads = Collections.synchronizedList(new ArrayList<>());
+	private final List<String> singleLoads = Collections.synchronizedList(new ArrayList<>());
+
+	@Before
+	public void setUp() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		executor.shutdownNow();
+	}
+
+	private Batcher<String, String> newBatcher(long window, int maxBatchSize, boolean mergeKeys, String missing) {
+		return new Batcher<>(window, maxBatchSize, mergeKeys, keys -> {
+			batchLoads.add(new ArrayList<>(keys));
+			if (keys.contains(BAD))
+				throw new IOException("Batch contains " + BAD);
+			Map<String, String> values = new HashMap<>();
+			for (String key : keys)
+				if (!key.equals(missing))
+					values.put(key, "batch:" + key);
+			return values;
+		}, key -> {
+			if (key.equals(BLOCK)) {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			} else {
+				singleLoads.add(key);
+			}
+			if (key.equals(BAD))
+				throw new IOException("Cannot load " + BAD);
+			return "single:" + key;
+		});
+	}
+
+	/**
+	 * 启动一个阻塞在单个加载中的请求，并等待它开始加载。
+	 */
+	private void startBlocker(Batcher<String, String> batcher) throws InterruptedException {
+		executor.submit(() -> batcher.get(BLOCK));
+		assertTrue(blocked.await(5, TimeUnit.SECONDS));
+	}
+
+	private List<Future<String>> submitAll(Batcher<String, String> batcher, List<String> keys) {
+		List<Future<String>> futures = new ArrayList<>();
+		for (String key : keys)
+			futures.add(executor.submit(() -> batcher.get(key)));
+		return futures;
+	}
+
+	@Test
+	public void uncontendedRequestDoesNotWait() throws IOException {
+		Batcher<String, String> batcher = newBatcher(10000, 100, true, null);
+		long start = System.nanoTime();
+		assertEquals("single:a", batcher.get("a"));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		assertTrue(batchLoads.isEmpty());
+		assertEquals(1, batcher.getRequestCount());
+		assertEquals(1, batcher.getLoadCount());
+	}
+
+	@Test
+	public void concurrentRequestsAreBatched() throws Exception {
+		Batcher<String, String> batcher = newBatcher(100, 4, true, null);
+		startBlocker(batcher);
+		List<String> keys = Arrays.asList("a", "b", "c", "d");
+		List<Future<String>> futures = submitAll(batcher, keys);
+		for (int i = 0; i < keys.size(); i++)
+			assertEquals("batch:" + keys.get(i), futures.get(i).get(5, TimeUnit.SECONDS));
+
+		assertEquals(1, batchLoads.size());
+		assertEquals(4, batchLoads.get(0).size());
+		assertTrue(singleLoads.isEmpty());
+	}
+
+	@Test
+	public void failedBatchIsBisected() throws Exception {
+		Batcher<String, String> batcher = newBatcher(100, 8, true, null);
+		startBlocker(batcher);
+		List<String> keys = Arrays.asList("a", "b", "c", BAD, "d", "e", "f", "g");
+		List<Future<String>> futures = submitAll(batcher, keys);
+		for (int i = 0; i < keys.size(); i++) {
+			String key = keys.get(i);
+			if (key.equals(BAD)) {
+				try {
+					futures.get(i).get(5, TimeUnit.SECONDS);
+					fail();
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof IOException);
+				}
+			} else {
+				assertTrue(futures.get(i).get(5, TimeUnit.SECONDS).endsWith(":" + key));
+			}
+		}
+
+		// 8个键的一批失败后：4个失败、4个成功，2个失败、2个成功，最后剩下的2个键逐个加载
+		assertEquals(5, batchLoads.size());
+		assertEquals(2, singleLoads.size());
+		assertTrue(singleLoads.contains(BAD));
+	}
+
+	@Test
+	public void missingKeyIsLoadedSingly() throws Exception {
+		Batcher<String, String> batcher = newBatcher(100, 3, true, "b");
+		startBlocker(batcher);
+		List<Future<String>> futures = submitAll(batcher, Arrays.asList("a", "b", "c"));
+		assertEquals("batch:a", futures.get(0).get(5, TimeUnit.SECONDS));
+		assertEquals("single:b", futures.get(1).get(5, TimeUnit.SECONDS));
+		assertEquals("batch:c", futures.get(2).get(5, TimeUnit.SECONDS));
+
+		assertEquals(1, batchLoads.size());
+		assertEquals(Collections.singletonList("b"), singleLoads);
+	}
+
+	@Test
+	public void unmergedRequestsForSameKeyAllRun() throws Exception {
+		Batcher<String, String> batcher = newBatcher(100, 8, false, null);
+		startBlocker(batcher);
+		List<Future<String>> futures = submitAll(batcher, Arrays.asList("a", "a", "a"));
+		for (Future<String> future : futures)
+			assertEquals("single:a", future.get(5, TimeUnit.SECONDS));
+
+		// 相同的键不会进入同一批，每个请求各自加载
+		assertTrue(batchLoads.isEmpty());
+		assertEquals(Arrays.asList("a", "a", "a"), singleLoads);
+	}
+
+	@Test
+	public void emptyBatchResultFallsBackToSingleLoads() throws Exception {
+		Batcher<String, String> batcher = new Batcher<>(100, 3, false, keys -> {
+			batchLoads.add(new ArrayList<>(keys));
+			return Collections.emptyMap();
+		}, key -> {
+			if (key.equals(BLOCK)) {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			} else {
+				singleLoads.add(key);
+			}
+			if (key.equals(BAD))
+				throw new IOException("Cannot load " + BAD);
+			return "single:" + key;
+		});
+		startBlocker(batcher);
+		List<Future<String>> futures = submitAll(batcher, Arrays.asList("a", BAD, "c"));
+		assertEquals("single:a", futures.get(0).get(5, TimeUnit.SECONDS));
+		try {
+			futures.get(1).get(5, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertEquals("single:c", futures.get(2).get(5, TimeUnit.SECONDS));
+
+		// 批量执行只有一次，不再分成两半
+		assertEquals(1, batchLoads.size());
+		assertEquals(3, singleLoads.size());
+	}
+}
@@ -0,0 +1,103 @@
+package blove.baidupcs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+/**
+ * {@link BufferPool}的测试。
+ *
+ * @author blove
+ */
+public class BufferPoolTest {
+	private static final int MB = 1024 * 1024;
+
+	@Test
+	public void sizesRoundUpToPowerOfTwo() {
+		BufferPool pool = new BufferPool(32 * MB);
+		assertEquals(BufferPool.MIN_POOLED_SIZE, pool.acquire(1).length);
+		assertEquals(BufferPool.MIN_POOLED_SIZE, pool.acquire(BufferPool.MIN_POOLED_SIZE).length);
+		assertEquals(8192, pool.acquire(BufferPool.MIN_POOLED_SIZE + 1).length);
+		assertEquals(BufferPool.MAX_POOLED_SIZE, pool.acquire(BufferPool.MAX_POOLED_SIZE).length);
+		// 超出范围的按请求的大小直接分配
+		assertEquals(BufferPool.MAX_POOLED_SIZE + 1, pool.acquire(BufferPool.MAX_POOLED_SIZE + 1).length);
+	}
+
+	@Test
+	public void releasedBufferIsReused() {
+		BufferPool pool = new BufferPool(32 * MB);
+		byte[] buffer = pool.acquire(5000);
+		pool.release(buffer);
+		assertSame(buffer, pool.acquire(6000));
+		// 不同级别不共用
+		assertNotSame(buffer, pool.acquire(100));
+
+		BufferPool.Stats stats = pool.stats();
+		assertEquals(3, stats.getAcquireCount());
+		assertEquals(2, stats.getAllocationCount());
+		assertEquals(8192 + 4096, stats.getAllocatedBytes());
+		assertEquals(0, stats.getDiscardCount());
+	}
+
+	@Test
+	public void largeBufferIsSharedAcrossThreads() throws Exception {
+		BufferPool pool = new BufferPool(32 * MB);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			byte[] buffer = executor.submit(() -> pool.acquire(2 * MB)).get();
+			pool.release(buffer);
+			assertSame(buffer, executor.submit(() -> pool.acquire(2 * MB)).get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void foreignSizesAreDiscarded() {
+		BufferPool pool = new BufferPool(32 * MB);
+		pool.release(new byte[BufferPool.MAX_POOLED_SIZE + 1]);
+		pool.release(new byte[5000]);
+		pool.release((byte[]) null);
+		assertEquals(2, pool.stats().getDiscardCount());
+	}
+
+	@Test
+	public void globalCapacityIsBounded() {
+		BufferPool pool = new BufferPool(2 * MB);
+		byte[][] buffers = new byte[3][];
+		for (int i = 0; i < buffers.length; i++)
+			buffers[i] = pool.acquire(MB);
+		for (byte[] buffer : buffers)
+			pool.release(buffer);
+		assertEquals(1, pool.stats().getDiscardCount());
+	}
+
+	@Test
+	public void directBufferIsResetOnAcquire() {
+		BufferPool pool = new BufferPool(32 * MB);
+		ByteBuffer buffer = pool.acquireDirect(5000);
+		assertTrue(buffer.isDirect());
+		assertEquals(8192, buffer.capacity());
+		assertEquals(0, buffer.position());
+		assertEquals(5000, buffer.limit());
+
+		buffer.position(100);
+		pool.release(buffer);
+		ByteBuffer reused = pool.acquireDirect(6000);
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+		assertEquals(6000, reused.limit());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeCapacityIsRejected() {
+		new BufferPool(-1);
+	}
+}